@@ -0,0 +1,111 @@
+package cloud.cleo.squareup.benchmarks;
+
+import cloud.cleo.squareup.ChatGPTLambdaPinpoint.PinpointEvent;
+import cloud.cleo.squareup.JsonCodecs;
+import cloud.cleo.squareup.LexV2Event;
+import cloud.cleo.squareup.LexV2Response;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Deserialize and serialize throughput for the payloads handled every turn, using the sample Lex and Pinpoint events
+ * bundled in the Lambda jar. The "plain" variants are a mapper configured the same way without Blackbird and without
+ * pre-built readers/writers, which is how things were done before JsonCodecs.
+ *
+ * @author sjensen
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonBenchmarks {
+
+    private ObjectMapper plainMapper;
+
+    private byte[] lexEventBytes;
+    private byte[] pinpointEventBytes;
+
+    private LexV2Event lexEvent;
+    private LexV2Response lexResponse;
+
+    @Setup
+    public void setup() throws IOException {
+        plainMapper = JsonCodecs.buildMapper(false);
+        lexEventBytes = JsonCodecs.sample(JsonCodecs.SAMPLE_LEX_EVENT);
+        pinpointEventBytes = JsonCodecs.sample(JsonCodecs.SAMPLE_PINPOINT_EVENT);
+
+        lexEvent = JsonCodecs.LEX_EVENT_READER.readValue(lexEventBytes);
+        lexResponse = LexV2Response.builder()
+                .withSessionState(LexV2Event.SessionState.builder()
+                        .withSessionAttributes(lexEvent.getSessionState().getSessionAttributes())
+                        .withDialogAction(LexV2Event.DialogAction.builder().withType("ElicitIntent").build())
+                        .build())
+                .withMessages(new LexV2Response.Message[]{LexV2Response.Message.builder()
+                    .withContentType("PlainText")
+                    .withContent("Yes, we carry several pine scented candles from local makers. Would you like me to text you a link?")
+                    .build()})
+                .build();
+    }
+
+    @Benchmark
+    public LexV2Event lexEventReadPlain() throws IOException {
+        return plainMapper.readValue(lexEventBytes, LexV2Event.class);
+    }
+
+    @Benchmark
+    public LexV2Event lexEventReadCodec() throws IOException {
+        return JsonCodecs.LEX_EVENT_READER.readValue(lexEventBytes);
+    }
+
+    @Benchmark
+    public byte[] lexEventWritePlain() throws IOException {
+        return plainMapper.writeValueAsBytes(lexEvent);
+    }
+
+    @Benchmark
+    public byte[] lexEventWriteCodec() throws IOException {
+        return JsonCodecs.LEX_EVENT_WRITER.writeValueAsBytes(lexEvent);
+    }
+
+    @Benchmark
+    public byte[] lexResponseWritePlain() throws IOException {
+        return plainMapper.writeValueAsBytes(lexResponse);
+    }
+
+    @Benchmark
+    public byte[] lexResponseWriteCodec() throws IOException {
+        return JsonCodecs.LEX_RESPONSE_WRITER.writeValueAsBytes(lexResponse);
+    }
+
+    @Benchmark
+    public PinpointEvent pinpointEventReadPlain() throws IOException {
+        return plainMapper.readValue(pinpointEventBytes, PinpointEvent.class);
+    }
+
+    @Benchmark
+    public PinpointEvent pinpointEventReadCodec() throws IOException {
+        return JsonCodecs.PINPOINT_EVENT_READER.readValue(pinpointEventBytes);
+    }
+
+    /**
+     * Copying the mapper per call throws away every cached serializer, this is what a per email copy() cost.
+     */
+    @Benchmark
+    public byte[] lexEventWriteMapperCopy() throws IOException {
+        return plainMapper.copy().setSerializationInclusion(JsonInclude.Include.NON_NULL).writeValueAsBytes(lexEvent);
+    }
+}
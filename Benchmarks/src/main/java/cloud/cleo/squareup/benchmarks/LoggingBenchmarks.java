@@ -0,0 +1,98 @@
+package cloud.cleo.squareup.benchmarks;
+
+import cloud.cleo.squareup.JsonCodecs;
+import cloud.cleo.squareup.openai.ChatMessage;
+import cloud.cleo.squareup.openai.ChatMessageRole;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The debug logging one GPT turn does (message list, completion, Facebook payload, bot response, phone type, etc.) with
+ * the logger at INFO like production. "concat" is how the calls were written before, "parameterized" is how they are
+ * now. Run with -prof gc, gc.alloc.rate.norm is the bytes a turn allocates just for log lines nobody sees.
+ *
+ * @author sjensen
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoggingBenchmarks {
+
+    private static final Logger log = LogManager.getLogger(LoggingBenchmarks.class);
+
+    private List<ChatMessage> chatMessages;
+    private ObjectNode fbPayload;
+    private String sessionId;
+    private String callingNumber;
+    private String botResponse;
+    private String functionName;
+
+    @Setup
+    public void setup() {
+        Configurator.setLevel(LoggingBenchmarks.class.getName(), Level.INFO);
+
+        chatMessages = new ArrayList<>();
+        chatMessages.add(new ChatMessage(ChatMessageRole.SYSTEM.value(), "You are a helpful assistant for Copper Fox Gifts. ".repeat(20)));
+        for (int i = 0; i < 6; i++) {
+            chatMessages.add(new ChatMessage(ChatMessageRole.USER.value(), "Do you have any pine scented candles in stock today?"));
+            chatMessages.add(new ChatMessage(ChatMessageRole.ASSISTANT.value(), "Yes, we carry several pine scented candles from local makers."));
+        }
+
+        fbPayload = JsonCodecs.mapper.createObjectNode();
+        fbPayload.put("target_app_id", "263902037430900");
+        fbPayload.putObject("recipient").put("id", "6029381746502938");
+
+        sessionId = "+16125551212";
+        callingNumber = "+16125551212";
+        botResponse = "Yes, we carry several pine scented candles from local makers. Would you like me to text you a link?";
+        functionName = "store_hours";
+    }
+
+    @Benchmark
+    public void turnConcat(Blackhole bh) {
+        log.debug("Lex Session ID is " + sessionId);
+        log.debug(chatMessages);
+        log.debug("Trying to execute " + functionName + "...");
+        log.debug("Executed " + functionName + ".");
+        log.debug("Post Payload for thread control " + fbPayload.toPrettyString());
+        log.debug("Phone type for " + callingNumber + " is " + "MOBILE");
+        log.debug("Facebook Call Response Code: " + 200);
+        log.debug("botResponse is [" + botResponse + "]");
+        bh.consume(botResponse);
+    }
+
+    @Benchmark
+    public void turnParameterized(Blackhole bh) {
+        log.debug("Lex Session ID is {}", sessionId);
+        log.debug("Chat messages {}", chatMessages);
+        log.debug("Trying to execute {}...", functionName);
+        log.debug("Executed {}.", functionName);
+        log.debug("Post Payload for thread control {}", fbPayload::toPrettyString);
+        log.debug("Phone type for {} is {}", callingNumber, "MOBILE");
+        if (log.isDebugEnabled()) {
+            log.debug("Facebook Call Response Code: {}", 200);
+        }
+        log.debug("botResponse is [{}]", botResponse);
+        bh.consume(botResponse);
+    }
+}
@@ -0,0 +1,164 @@
+package cloud.cleo.squareup.benchmarks;
+
+import cloud.cleo.chimesma.model.SMARequest;
+import cloud.cleo.chimesma.model.SMAResponse;
+import cloud.cleo.chimesma.squareup.ChimeSMA;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Chime SMA event handling throughput for the IVR flow. Setup walks a call from NEW_INBOUND_CALL through the welcome
+ * and open/closed prompts into the English bot the way SMA would (each ACTION_SUCCESSFUL carries the action just run
+ * and the transaction attributes from the last response), then the benchmarks replay the events of interest.
+ *
+ * switchLanguageConcurrent runs several calls at once, each with its own GPT response, and fails if a response ever
+ * carries another call's prompt.
+ *
+ * The flow creates a Lambda client when loaded, so a region is needed but nothing calls out with CALLER_PROFILE_FUNCTION
+ * and Square unset.
+ *
+ * @author sjensen
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Daws.region=us-east-1", "-Daws.accessKeyId=stub", "-Daws.secretAccessKey=stub"})
+@State(Scope.Benchmark)
+public class SmaBenchmarks {
+
+    private final static String SAMPLE_NEW_CALL = "/sma/new-inbound-call.json";
+
+    private final static ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final static AtomicInteger callIds = new AtomicInteger();
+
+    private ChimeSMA flow;
+
+    private ObjectNode newCallTree;
+
+    private SMARequest newCall;
+
+    /**
+     * Last response before the English bot hands back, the bot is the action in flight.
+     */
+    private SMAResponse inBot;
+
+    private SMARequest switchLanguage;
+
+    private SMARequest hangup;
+
+    @Setup
+    public void setup() throws IOException {
+        flow = new ChimeSMA();
+        try (var in = SmaBenchmarks.class.getResourceAsStream(SAMPLE_NEW_CALL)) {
+            newCallTree = (ObjectNode) mapper.readTree(in);
+        }
+        newCall = mapper.treeToValue(newCallTree, SMARequest.class);
+
+        // Welcome, then open/closed, then the bot
+        var res = flow.handleRequest(newCall, null);
+        res = flow.handleRequest(actionSuccessful(res, null), null);
+        inBot = flow.handleRequest(actionSuccessful(res, null), null);
+
+        switchLanguage = botResult("switch_language", "Claro, puedo ayudarle en español.");
+        hangup = botResult("hangup_call", "Thanks for calling, goodbye.");
+    }
+
+    @Benchmark
+    public SMAResponse newCall() {
+        return flow.handleRequest(newCall, null);
+    }
+
+    @Benchmark
+    public SMAResponse switchLanguage() {
+        return flow.handleRequest(switchLanguage, null);
+    }
+
+    @Benchmark
+    public SMAResponse hangup() {
+        return flow.handleRequest(hangup, null);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public SMAResponse switchLanguageConcurrent(Call call) {
+        final var res = flow.handleRequest(call.switchLanguage, null);
+        if (!mapper.valueToTree(res).toString().contains(call.botResponse)) {
+            throw new IllegalStateException("Call " + call.botResponse + " got another call's prompt: " + mapper.valueToTree(res));
+        }
+        return res;
+    }
+
+    /**
+     * One call per benchmark thread, with its own GPT response.
+     */
+    @State(Scope.Thread)
+    public static class Call {
+
+        private String botResponse;
+
+        private SMARequest switchLanguage;
+
+        @Setup
+        public void setup(SmaBenchmarks sma) throws IOException {
+            botResponse = "Claro, le ayudo en español, llamada " + callIds.incrementAndGet() + ".";
+            switchLanguage = sma.botResult("switch_language", botResponse);
+        }
+    }
+
+    /**
+     * The English bot handing back with GPT's action and response in the session attributes.
+     */
+    SMARequest botResult(String action, String botResponse) throws IOException {
+        final var intentResult = mapper.createObjectNode();
+        intentResult.put("SessionId", "16125551212");
+        final var sessionState = intentResult.putObject("SessionState");
+        sessionState.putObject("SessionAttributes")
+                .put("action", action)
+                .put("language", "Spanish")
+                .put("bot_response", botResponse)
+                .put("callingNumber", "+16125551212");
+        sessionState.putObject("Intent")
+                .put("Name", "FallbackIntent")
+                .put("State", "ReadyForFulfillment");
+        return actionSuccessful(inBot, intentResult);
+    }
+
+    /**
+     * What SMA sends once the first action in the response has run.
+     */
+    private SMARequest actionSuccessful(SMAResponse previous, ObjectNode intentResult) throws IOException {
+        final JsonNode prev = mapper.valueToTree(previous);
+        final var event = newCallTree.deepCopy();
+        event.put("InvocationEventType", "ACTION_SUCCESSFUL");
+        event.put("Sequence", event.path("Sequence").asInt() + 1);
+
+        final var action = prev.path("Actions").path(0);
+        final var actionData = event.putObject("ActionData");
+        actionData.set("Type", action.path("Type"));
+        actionData.set("Parameters", action.path("Parameters"));
+        if (intentResult != null) {
+            actionData.set("IntentResult", intentResult);
+        }
+        ((ObjectNode) event.path("CallDetails")).set("TransactionAttributes", prev.path("TransactionAttributes"));
+        return mapper.treeToValue(event, SMARequest.class);
+    }
+}
@@ -0,0 +1,212 @@
+package cloud.cleo.squareup.benchmarks;
+
+import cloud.cleo.squareup.ChatGPTLambdaPinpoint.PinpointEvent;
+import cloud.cleo.squareup.ChatGPTSessionState;
+import cloud.cleo.squareup.DynamoConverters;
+import cloud.cleo.squareup.JsonCodecs;
+import cloud.cleo.squareup.LexV2Event;
+import cloud.cleo.squareup.LexV2EventWrapper;
+import cloud.cleo.squareup.LexV2Response;
+import cloud.cleo.squareup.functions.AbstractFunction;
+import cloud.cleo.squareup.openai.ChatCompletionRequest;
+import cloud.cleo.squareup.openai.ChatCompletionResult;
+import cloud.cleo.squareup.openai.ChatFunctionCall;
+import cloud.cleo.squareup.openai.ChatMessage;
+import cloud.cleo.squareup.openai.ChatMessageRole;
+import cloud.cleo.squareup.openai.FunctionExecutor;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.enhanced.dynamodb.AttributeConverter;
+import software.amazon.awssdk.enhanced.dynamodb.EnhancedType;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+/**
+ * Each step of a GPT turn that runs on our side of the completion call, plus the whole thing end to end. Nothing goes
+ * over the network, the completion is a canned assistant message and the session is built from a canned item map like
+ * getItem() would return. Square is disabled (no SQUARE_API_KEY) so no functions talk to it either.
+ *
+ * Run with -prof gc for allocation per step, see README.
+ *
+ * @author sjensen
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Daws.region=us-east-1", "-Daws.accessKeyId=stub", "-Daws.secretAccessKey=stub"})
+@State(Scope.Benchmark)
+public class TurnBenchmarks {
+
+    private final static String SEARCH_TEXT = "large pine scented soy candle";
+
+    private LexV2Event lexEvent;
+    private PinpointEvent pinpointEvent;
+    private LexV2EventWrapper wrapper;
+
+    private TableSchema<ChatGPTSessionState> schema;
+    private ChatGPTSessionState session;
+    private Map<String, AttributeValue> sessionItem;
+
+    private FunctionExecutor functionExecutor;
+    private ChatMessage completionMessage;
+    private byte[] completionBytes;
+
+    private AttributeConverter<ChatFunctionCall> functionCallConverter;
+    private ChatFunctionCall functionCall;
+    private AttributeValue functionCallValue;
+
+    @Setup
+    public void setup() throws IOException {
+        lexEvent = JsonCodecs.LEX_EVENT_READER.readValue(JsonCodecs.sample(JsonCodecs.SAMPLE_LEX_EVENT));
+        pinpointEvent = JsonCodecs.PINPOINT_EVENT_READER.readValue(JsonCodecs.sample(JsonCodecs.SAMPLE_PINPOINT_EVENT));
+        wrapper = new LexV2EventWrapper(lexEvent);
+
+        schema = TableSchema.fromBean(ChatGPTSessionState.class);
+        session = new ChatGPTSessionState(wrapper);
+        // A few turns in, which is where most turns are
+        for (int i = 0; i < 4; i++) {
+            session.addUserMessage("Do you have any pine scented candles in stock today?");
+            session.addAssistantMessage("Yes, we carry several pine scented candles from local makers.");
+        }
+        sessionItem = schema.itemToMap(session, true);
+
+        functionExecutor = AbstractFunction.getFunctionExecuter(wrapper);
+        completionBytes = JsonCodecs.sample(JsonCodecs.SAMPLE_COMPLETION);
+        completionMessage = new ChatMessage(ChatMessageRole.ASSISTANT.value(),
+                "Yes, we carry several pine scented candles from local makers. Would you like me to text you a link?");
+
+        functionCallConverter = DynamoConverters.create().converterFor(EnhancedType.of(ChatFunctionCall.class));
+        functionCall = new ChatFunctionCall("square_item_search", JsonCodecs.mapper.createObjectNode().put("search_text", SEARCH_TEXT));
+        functionCallValue = functionCallConverter.transformFrom(functionCall);
+    }
+
+    @Benchmark
+    public LexV2EventWrapper lexEventWrapper() {
+        return new LexV2EventWrapper(lexEvent);
+    }
+
+    @Benchmark
+    public LexV2EventWrapper pinpointEventWrapper() {
+        return new LexV2EventWrapper(pinpointEvent);
+    }
+
+    @Benchmark
+    public ChatGPTSessionState sessionStateNew() {
+        return new ChatGPTSessionState(wrapper);
+    }
+
+    @Benchmark
+    public ChatGPTSessionState sessionStateFromItem() {
+        return schema.mapToItem(sessionItem);
+    }
+
+    @Benchmark
+    public Map<String, AttributeValue> sessionStateToItem() {
+        return schema.itemToMap(session, true);
+    }
+
+    @Benchmark
+    public FunctionExecutor functionExecuter() {
+        return AbstractFunction.getFunctionExecuter(wrapper);
+    }
+
+    @Benchmark
+    public ChatCompletionRequest completionRequest() {
+        return buildRequest(session, functionExecutor);
+    }
+
+    /**
+     * The request body as it goes to OpenAI, function schemas included.
+     */
+    @Benchmark
+    public byte[] completionRequestWrite() throws IOException {
+        return JsonCodecs.COMPLETION_REQUEST_WRITER.writeValueAsBytes(buildRequest(session, functionExecutor));
+    }
+
+    @Benchmark
+    public ChatCompletionResult completionResultRead() throws IOException {
+        return JsonCodecs.COMPLETION_RESULT_READER.readValue(completionBytes);
+    }
+
+    @Benchmark
+    public ChatFunctionCall dynamoConvertersRoundTrip() {
+        return functionCallConverter.transformTo(functionCallConverter.transformFrom(functionCall));
+    }
+
+    @Benchmark
+    public ChatFunctionCall dynamoConvertersRead() {
+        return functionCallConverter.transformTo(functionCallValue);
+    }
+
+    @Benchmark
+    public List<String> allCombinations() {
+        return AbstractFunction.allCombinations(SEARCH_TEXT);
+    }
+
+    @Benchmark
+    public LexV2Response lexResponse() {
+        return buildResponse(wrapper, completionMessage.getContent());
+    }
+
+    /**
+     * Everything in processGPT around a single completion with no function call: wrap, load the session, build the
+     * request, add the reply, write the session item and build the Lex response.
+     */
+    @Benchmark
+    public Map<String, AttributeValue> turn() {
+        final var event = new LexV2EventWrapper(lexEvent);
+        final var state = schema.mapToItem(sessionItem);
+        state.addUserMessage("Are you open tomorrow?");
+        final var executor = AbstractFunction.getFunctionExecuter(event);
+        buildRequest(state, executor);
+        state.addMessage(completionMessage);
+        state.incrementCounter();
+        final var item = schema.itemToMap(state, true);
+        buildResponse(event, completionMessage.getContent());
+        return item;
+    }
+
+    /**
+     * Same as processGPT builds it.
+     */
+    private static ChatCompletionRequest buildRequest(ChatGPTSessionState state, FunctionExecutor executor) {
+        return ChatCompletionRequest.builder()
+                .withMessages(state.getChatMessages())
+                .withModel("gpt-4o-mini")
+                .withMaxTokens(500)
+                .withTemperature(0.2)
+                .withN(1)
+                .withFunctions(executor.getFunctions())
+                .withFunctionCall("auto")
+                .build();
+    }
+
+    /**
+     * Same as ChatGPTLambda.buildResponse without a card.
+     */
+    private static LexV2Response buildResponse(LexV2EventWrapper event, String content) {
+        return LexV2Response.builder()
+                .withSessionState(LexV2Event.SessionState.builder()
+                        .withSessionAttributes(event.getSessionAttributes())
+                        .withDialogAction(LexV2Event.DialogAction.builder().withType("ElicitIntent").build())
+                        .build())
+                .withMessages(new LexV2Response.Message[]{LexV2Response.Message.builder()
+                    .withContentType("PlainText")
+                    .withContent(content)
+                    .build()})
+                .build();
+    }
+}
@@ -0,0 +1,39 @@
+package cloud.cleo.squareup;
+
+import java.time.Duration;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.appender.AsyncAppender;
+
+/**
+ * log4j2.xml logs through an AsyncAppender so the request thread only enqueues. Lambda freezes the container as soon
+ * as the handler returns, so the queue has to be emptied first or those lines only show up (interleaved with the
+ * wrong request) on the next invoke.
+ *
+ * @author sjensen
+ */
+public final class AsyncLogging {
+
+    private final static Duration MAX_DRAIN_WAIT = Duration.ofMillis(500);
+
+    private AsyncLogging() {
+    }
+
+    /**
+     * Wait for the async appenders to write out what is queued, call last before the Lambda returns.
+     */
+    public static void drain() {
+        if (!(LogManager.getContext(false) instanceof LoggerContext ctx)) {
+            return;
+        }
+        final long deadline = System.nanoTime() + MAX_DRAIN_WAIT.toNanos();
+        for (var appender : ctx.getConfiguration().getAppenders().values()) {
+            if (appender instanceof AsyncAppender async) {
+                while (async.getQueueRemainingCapacity() < async.getQueueCapacity() && System.nanoTime() < deadline) {
+                    LockSupport.parkNanos(100_000);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package cloud.cleo.squareup;
+
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbAsyncTable;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedAsyncClient;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.crt.AwsCrtAsyncHttpClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+
+/**
+ * AWS clients shared by the Lambdas in this module. Kept out of ChatGPTLambda so a handler that only needs Dynamo
+ * (CallerProfileLambda) gets them without running the GPT init (functions, OpenAI client, priming).
+ *
+ * @author sjensen
+ */
+public final class AwsClients {
+
+    // Create an AwsCrtAsyncHttpClient shared instance.
+    public final static SdkAsyncHttpClient crtAsyncHttpClient = AwsCrtAsyncHttpClient.create();
+
+    public final static DynamoDbAsyncClient dynamoDbAsyncClient = DynamoDbAsyncClient.builder().httpClient(crtAsyncHttpClient).build();
+
+    public final static DynamoDbEnhancedAsyncClient enhancedClient = DynamoDbEnhancedAsyncClient.builder().dynamoDbClient(dynamoDbAsyncClient).build();
+
+    final static TableSchema<ChatGPTSessionState> sessionSchema = TableSchema.fromBean(ChatGPTSessionState.class);
+
+    final static DynamoDbAsyncTable<ChatGPTSessionState> sessionState = enhancedClient.table(System.getenv("SESSION_TABLE_NAME"), sessionSchema);
+
+    private AwsClients() {
+    }
+}
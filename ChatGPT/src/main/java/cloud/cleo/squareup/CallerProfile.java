@@ -0,0 +1,78 @@
+package cloud.cleo.squareup;
+
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Data;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbBean;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbIgnore;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbPartitionKey;
+
+/**
+ * What we know about a caller before they say anything, built when the call starts.
+ *
+ * @author sjensen
+ */
+@DynamoDbBean
+@Data
+public class CallerProfile {
+
+    /**
+     * E164 calling number.
+     */
+    private String phoneNumber;
+    /**
+     * Pinpoint phone type (MOBILE, LANDLINE, VOIP, INVALID, PREPAID, OTHER), null if lookup failed.
+     */
+    private String phoneType;
+    /**
+     * Square Customer ID if the number matched a customer.
+     */
+    private String customerId;
+    private String givenName;
+    private String familyName;
+    private String email;
+    /**
+     * Square Customer record as JSON (cards removed), for appending to emails.
+     */
+    private String customerRecord;
+    /**
+     * Short summaries of the most recent prior sessions, newest first.
+     */
+    private List<String> recentSessions = new ArrayList<>();
+    /**
+     * Unix timestamp when built.
+     */
+    private Long updatedAt;
+    /**
+     * Unix timestamp when this Dynamo record should be deleted.
+     */
+    private Long ttl;
+
+    @DynamoDbPartitionKey
+    public String getPhoneNumber() {
+        return phoneNumber;
+    }
+
+    /**
+     * Did the number match a Square Customer.
+     *
+     * @return
+     */
+    @DynamoDbIgnore
+    public boolean isCustomer() {
+        return customerId != null;
+    }
+
+    /**
+     * Customer name for greeting, null if not known.
+     *
+     * @return
+     */
+    @DynamoDbIgnore
+    public String getName() {
+        if (givenName == null && familyName == null) {
+            return null;
+        }
+        return ((givenName != null ? givenName : "") + " " + (familyName != null ? familyName : "")).trim();
+    }
+}
@@ -0,0 +1,54 @@
+package cloud.cleo.squareup;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import java.util.Map;
+import java.util.regex.Pattern;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Build the Caller Profile when a call starts. Invoked asynchronously (Event) by the Chime SMA Lambda with the calling
+ * number, so the Square customer, phone type and prior sessions are all collected while the caller hears the welcome
+ * prompts.
+ *
+ * Stands alone rather than extending ChatGPTLambda, only the profile service, phone type cache and Dynamo clients are
+ * initialized (no GPT functions, OpenAI client or priming turns in the snapshot).
+ *
+ * @author sjensen
+ */
+public class CallerProfileLambda implements RequestHandler<Map<String, String>, Void> {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(CallerProfileLambda.class);
+
+    private static final Pattern E164_PATTERN = Pattern.compile("^\\+[1-9]\\d{6,14}$");
+
+    // Hit static initializers so it's loaded and hot at SnapStart init
+    private final static CallerProfileService profileService = CallerProfileService.getInstance();
+    private final static PhoneTypeCache phoneTypeCache = PhoneTypeCache.getInstance();
+
+    @Override
+    public Void handleRequest(Map<String, String> input, Context cntxt) {
+        final var callingNumber = input.get("callingNumber");
+        log.debug("Building caller profile for {}", callingNumber);
+
+        if (callingNumber == null || !E164_PATTERN.matcher(callingNumber).matches()) {
+            log.debug("Not a valid E164 number, no profile to build");
+            return null;
+        }
+
+        try {
+            final var start = System.currentTimeMillis();
+            profileService.buildAndSave(callingNumber).join();
+            Metrics.recordMillis("CallerProfile.BuildTime", System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            log.error("Unable to build caller profile", e);
+            Metrics.increment("CallerProfile.Failures");
+        } finally {
+            Metrics.flush();
+            AsyncLogging.drain();
+        }
+        return null;
+    }
+}
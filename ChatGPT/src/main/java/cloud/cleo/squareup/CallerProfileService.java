@@ -0,0 +1,213 @@
+package cloud.cleo.squareup;
+
+import static cloud.cleo.squareup.AwsClients.enhancedClient;
+import static cloud.cleo.squareup.AwsClients.sessionState;
+import static cloud.cleo.squareup.JsonCodecs.mapper;
+import cloud.cleo.squareup.functions.AbstractFunction;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.squareup.square.types.Customer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbAsyncTable;
+import software.amazon.awssdk.enhanced.dynamodb.Key;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.enhanced.dynamodb.model.QueryConditional;
+
+/**
+ * Builds, stores and reads Caller Profiles. The profile is built by CallerProfileLambda which Chime invokes when the call
+ * starts, so by the time the caller has heard the welcome prompts the profile is sitting in the table. The Lex Lambda
+ * starts reading it at the top of the turn and functions pick it up from memory.
+ *
+ * @author sjensen
+ */
+public final class CallerProfileService {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(CallerProfileService.class);
+
+    public final static String PHONE_INDEX = "phoneNumber-index";
+
+    /**
+     * Profiles are rebuilt on every call, this just keeps the table from growing forever.
+     */
+    private final static Duration TTL = Duration.ofDays(30);
+
+    /**
+     * A profile read into memory is reused for this long (the length of a call), then read again.
+     */
+    private final static Duration MEMORY_TTL = Duration.ofMinutes(10);
+
+    private final static int MAX_ENTRIES = 1_000;
+
+    private final static int RECENT_SESSIONS = 3;
+
+    private final static String TABLE_NAME = System.getenv("CALLER_PROFILE_TABLE_NAME");
+
+    private final static DynamoDbAsyncTable<CallerProfile> table = TABLE_NAME == null || TABLE_NAME.isBlank() ? null
+            : enhancedClient.table(TABLE_NAME, TableSchema.fromBean(CallerProfile.class));
+
+    // Don't include all the null fields when putting the customer in emails
+    private final static ObjectMapper customerMapper = mapper.copy().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+    private final static CallerProfileService me = new CallerProfileService();
+
+    private final Map<String, CompletableFuture<CallerProfile>> cache = Collections.synchronizedMap(new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<CallerProfile>> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    });
+
+    private CallerProfileService() {
+    }
+
+    public static CallerProfileService getInstance() {
+        return me;
+    }
+
+    /**
+     * Is the profile table configured.
+     *
+     * @return
+     */
+    public boolean isEnabled() {
+        return table != null;
+    }
+
+    /**
+     * Start reading the profile for the number if we don't have a recent copy.
+     *
+     * @param phoneNumber E164 number
+     */
+    public void prefetch(String phoneNumber) {
+        if (table == null || phoneNumber == null || phoneNumber.isBlank()) {
+            return;
+        }
+        final var existing = cache.get(phoneNumber);
+        if (existing != null && existing.isDone()) {
+            final var p = existing.getNow(null);
+            if (p == null || p.getUpdatedAt() == null || Instant.ofEpochSecond(p.getUpdatedAt()).plus(MEMORY_TTL).isBefore(Instant.now())) {
+                cache.remove(phoneNumber, existing);
+            }
+        }
+        cache.computeIfAbsent(phoneNumber, k -> table.getItem(Key.builder().partitionValue(k).build())
+                .exceptionally(e -> {
+                    log.error("Caller profile read failed for {}", k, e);
+                    return null;
+                }));
+    }
+
+    /**
+     * Get the profile for the number, waiting at most maxWait for it to be read.
+     *
+     * @param phoneNumber E164 number
+     * @param maxWait
+     * @return profile or null if there isn't one (yet)
+     */
+    public CallerProfile getProfile(String phoneNumber, Duration maxWait) {
+        if (table == null || phoneNumber == null) {
+            return null;
+        }
+        prefetch(phoneNumber);
+        final var future = cache.get(phoneNumber);
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get(maxWait.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.debug("Caller profile not ready for {}", phoneNumber);
+            return null;
+        }
+    }
+
+    /**
+     * Collect everything we know about the number (all lookups in parallel) and store it.
+     *
+     * @param phoneNumber E164 number
+     * @return the stored profile
+     */
+    public CompletableFuture<CallerProfile> buildAndSave(String phoneNumber) {
+        final var customerF = AbstractFunction.findCustomerByPhone(phoneNumber).exceptionally(e -> {
+            log.error("Customer lookup failed for {}", phoneNumber, e);
+            return Optional.empty();
+        });
+        final var phoneTypeF = PhoneTypeCache.getInstance().getPhoneType(phoneNumber).exceptionally(e -> {
+            log.error("Phone type lookup failed for {}", phoneNumber, e);
+            return null;
+        });
+        final var sessionsF = recentSessions(phoneNumber).exceptionally(e -> {
+            log.error("Recent sessions lookup failed for {}", phoneNumber, e);
+            return List.of();
+        });
+
+        return CompletableFuture.allOf(customerF, phoneTypeF, sessionsF).thenCompose(v -> {
+            final var profile = new CallerProfile();
+            profile.setPhoneNumber(phoneNumber);
+            profile.setPhoneType(phoneTypeF.join());
+            profile.setRecentSessions(sessionsF.join());
+            customerF.join().ifPresent(c -> {
+                profile.setCustomerId(c.getId().orElse(null));
+                profile.setGivenName(c.getGivenName().orElse(null));
+                profile.setFamilyName(c.getFamilyName().orElse(null));
+                profile.setEmail(c.getEmailAddress().orElse(null));
+                profile.setCustomerRecord(customerToJson(c));
+            });
+            profile.setUpdatedAt(Instant.now().getEpochSecond());
+            profile.setTtl(Instant.now().plus(TTL).getEpochSecond());
+            log.debug("Built caller profile {}", profile);
+
+            return table != null ? table.putItem(profile).thenApply(x -> profile) : CompletableFuture.completedFuture(profile);
+        });
+    }
+
+    /**
+     * Square Customer as readable JSON without null fields or any card info.
+     *
+     * @param customer
+     * @return
+     */
+    public static String customerToJson(Customer customer) {
+        final ObjectNode json = customerMapper.valueToTree(customer);
+        // Remove any card info if it exists
+        json.remove("cards");
+        return json.toPrettyString();
+    }
+
+    /**
+     * Summarize the most recent sessions for the number (what the caller asked about).
+     */
+    private CompletableFuture<List<String>> recentSessions(String phoneNumber) {
+        final var sessions = new ArrayList<ChatGPTSessionState>();
+        return sessionState.index(PHONE_INDEX)
+                .query(r -> r.queryConditional(QueryConditional.keyEqualTo(k -> k.partitionValue(phoneNumber)))
+                .scanIndexForward(false)
+                .limit(RECENT_SESSIONS))
+                .limit(1)
+                .subscribe(page -> sessions.addAll(page.items()))
+                .thenApply(v -> sessions.stream().map(CallerProfileService::summarize).toList());
+    }
+
+    private static String summarize(ChatGPTSessionState s) {
+        final var asked = s.getMessages().stream()
+                .filter(m -> "user".equals(m.getRole()))
+                .map(m -> m.getContent())
+                .filter(c -> c != null && !c.isBlank() && !c.equals("blank"))
+                .limit(3)
+                .map(c -> c.length() > 80 ? c.substring(0, 80) + "..." : c)
+                .toList();
+        return "On " + s.getDate() + " asked: " + String.join(" / ", asked);
+    }
+}
@@ -4,38 +4,32 @@ import cloud.cleo.squareup.LexV2Event.Intent;
 import cloud.cleo.squareup.LexV2Event.SessionState;
 import cloud.cleo.squareup.LexV2Response.Button;
 import cloud.cleo.squareup.LexV2Response.ImageResponseCard;
+import cloud.cleo.squareup.common.Tracing;
+import cloud.cleo.squareup.enums.ChannelPlatform;
 import static cloud.cleo.squareup.enums.LexDialogAction.*;
 import static cloud.cleo.squareup.enums.LexMessageContentType.*;
 import cloud.cleo.squareup.functions.AbstractFunction;
-import cloud.cleo.squareup.json.DurationDeserializer;
-import cloud.cleo.squareup.json.DurationSerializer;
-import cloud.cleo.squareup.json.LocalDateDeserializer;
-import cloud.cleo.squareup.json.LocalDateSerializer;
-import cloud.cleo.squareup.json.LocalTimeDeserializer;
-import cloud.cleo.squareup.json.LocalTimeSerializer;
-import cloud.cleo.squareup.json.ZoneIdDeserializer;
-import cloud.cleo.squareup.json.ZonedSerializer;
+import cloud.cleo.squareup.functions.SquareGateway;
+import cloud.cleo.squareup.functions.TransferCall;
 import static cloud.cleo.squareup.lang.LangUtil.LanguageIds.*;
+import cloud.cleo.squareup.openai.ChatCompletionRequest;
+import cloud.cleo.squareup.openai.ChatCompletionResult;
+import cloud.cleo.squareup.openai.ChatFunctionCall;
+import cloud.cleo.squareup.openai.ChatMessage;
+import cloud.cleo.squareup.openai.FunctionExecutor;
+import cloud.cleo.squareup.openai.HedgedCompletions;
+import cloud.cleo.squareup.openai.OpenAiClient;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.databind.module.SimpleModule;
-import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
-import com.theokanning.openai.completion.chat.ChatCompletionRequest;
-import com.theokanning.openai.completion.chat.ChatFunctionCall;
-import com.theokanning.openai.completion.chat.ChatMessage;
-import com.theokanning.openai.service.FunctionExecutor;
-import com.theokanning.openai.service.OpenAiService;
-import java.net.SocketTimeoutException;
+import java.net.http.HttpTimeoutException;
 import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDate;
-import java.time.LocalTime;
 import java.time.ZoneId;
-import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletionException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import software.amazon.awssdk.enhanced.dynamodb.DynamoDbAsyncTable;
@@ -43,8 +37,8 @@ import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedAsyncClient;
 import software.amazon.awssdk.enhanced.dynamodb.Key;
 import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
 import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
-import software.amazon.awssdk.http.crt.AwsCrtAsyncHttpClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
 
 /**
  *
@@ -57,18 +51,19 @@ public abstract class ChatGPTLambda {
 
     public final static ObjectMapper mapper;
 
-    final static TableSchema<ChatGPTSessionState> schema = TableSchema.fromBean(ChatGPTSessionState.class);
+    final static TableSchema<ChatGPTSessionState> schema = AwsClients.sessionSchema;
 
-    // Create an AwsCrtAsyncHttpClient shared instance.
-    public final static SdkAsyncHttpClient crtAsyncHttpClient = AwsCrtAsyncHttpClient.create();
+    // Shared clients, see AwsClients
+    public final static SdkAsyncHttpClient crtAsyncHttpClient = AwsClients.crtAsyncHttpClient;
 
-    final static DynamoDbAsyncClient dynamoDbAsyncClient = DynamoDbAsyncClient.builder().httpClient(crtAsyncHttpClient).build();
+    public final static DynamoDbAsyncClient dynamoDbAsyncClient = AwsClients.dynamoDbAsyncClient;
 
-    final static DynamoDbEnhancedAsyncClient enhancedClient = DynamoDbEnhancedAsyncClient.builder().dynamoDbClient(dynamoDbAsyncClient).build();
+    public final static DynamoDbEnhancedAsyncClient enhancedClient = AwsClients.enhancedClient;
 
-    final static DynamoDbAsyncTable<ChatGPTSessionState> sessionState = enhancedClient.table(System.getenv("SESSION_TABLE_NAME"), schema);
+    final static DynamoDbAsyncTable<ChatGPTSessionState> sessionState = AwsClients.sessionState;
 
-    final static OpenAiService open_ai_service = new OpenAiService(System.getenv("OPENAI_API_KEY"), Duration.ofSeconds(50));
+    final static OpenAiClient open_ai_client = OpenAiClient.fromEnvironment(Duration.ofSeconds(50));
+    final static HedgedCompletions hedged_completions = HedgedCompletions.fromEnvironment(open_ai_client);
     final static String OPENAI_MODEL = System.getenv("OPENAI_MODEL");
 
     public final static String TRANSFER_FUNCTION_NAME = "transfer_call";
@@ -82,54 +77,100 @@ public abstract class ChatGPTLambda {
 
     public final static String WEBSITE_URL = "CopperFoxGifts.com";
 
+    /**
+     * How long a single turn should take at most, Lex will give up on us not long after this.
+     */
+    final static Duration TURN_BUDGET = Duration.ofSeconds(25);
+
+    /**
+     * Most we will hold up the first turn waiting to read the caller profile, it's built while the welcome prompts play.
+     */
+    final static Duration PROFILE_WAIT = Duration.ofMillis(300);
+
+    /**
+     * Saves that lose to another turn for the same session are merged and retried this many times in total.
+     */
+    final static int SESSION_SAVE_ATTEMPTS = 3;
+
+    /**
+     * Most we will wait on the Facebook name lookup, it's started at the top of the turn so normally ready.
+     */
+    public final static Duration FACEBOOK_NAME_WAIT = Duration.ofSeconds(2);
+
+    /**
+     * Span for the turn running on this thread, completions and terminating actions are recorded on it.
+     */
+    private final static ThreadLocal<Tracing.Span> turnSpan = new ThreadLocal<>();
+
     // Eveverything here will be done at SnapStart init
     static {
-        // Build up the mapper 
-        mapper = new ObjectMapper();
-        mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
-        
-        // Register module for Optional types
-        mapper.registerModule(new Jdk8Module());
-        // Register module for java.time types (LocalDate, LocalDateTime, etc.)
-        mapper.registerModule(new JavaTimeModule());
-        
-        // Add module for inputs
-        SimpleModule module = new SimpleModule();
-        
-        // Serializers
-        module.addSerializer(ZonedDateTime.class, new ZonedSerializer());
-        module.addSerializer(LocalTime.class, new LocalTimeSerializer());
-        module.addSerializer(LocalDate.class, new LocalDateSerializer());
-        module.addSerializer(Duration.class, new DurationSerializer());
-        //module.addSerializer((Class<Optional<?>>)(Class<?>) Optional.class, new OptionalSerializer());
-
-        // Deserializers for Input Types
-        module.addDeserializer(LocalTime.class, new LocalTimeDeserializer());
-        module.addDeserializer(LocalDate.class, new LocalDateDeserializer());
-        module.addDeserializer(ZoneId.class, new ZoneIdDeserializer());
-        module.addDeserializer(Duration.class, new DurationDeserializer());
-
-        mapper.registerModule(module);
+        // Shared mapper (Blackbird, our java.time handling), see JsonCodecs
+        mapper = JsonCodecs.mapper;
 
         // Create and init all the functions in the package
         AbstractFunction.init();
         // Hit static initializers in this as well so it's loaded and hot
         new FaceBookOperations();
+        PhoneTypeCache.getInstance();
+        // Build and exercise all the (de)serializers now so the snapshot has them
+        JsonCodecs.warm(AbstractFunction.getRequestClasses());
+        // Run synthetic turns before the snapshot is taken
+        Priming.register();
     }
 
+    /**
+     * Process one turn, traced. Voice turns carry the Chime call's traceparent in the session so they show up under
+     * the call, SMS and Facebook turns start their own trace.
+     *
+     * @param lexRequest
+     * @return
+     */
     protected LexV2Response processGPT(LexV2EventWrapper lexRequest) {
+        final var span = Tracing.startSpan("gpt.turn", lexRequest.getSessionAttributes().get(Tracing.TRACEPARENT))
+                .setAttribute("lex.session_id", lexRequest.getSessionId())
+                .setAttribute("channel", lexRequest.getChannelPlatform().toString())
+                .setAttribute("language", lexRequest.getLocale().toLanguageTag());
+        turnSpan.set(span);
+        try {
+            return processTurn(lexRequest);
+        } catch (RuntimeException e) {
+            span.setError(e);
+            throw e;
+        } finally {
+            // Handler threads are reused, don't leave this turn's (soon expired) deadline behind
+            SquareGateway.clearTurnDeadline();
+            turnSpan.remove();
+            span.end();
+        }
+    }
+
+    private LexV2Response processTurn(LexV2EventWrapper lexRequest) {
+        // Any Square calls made by functions this turn must finish (including retries) within the turn budget, same for OpenAI
+        final var turnDeadline = Instant.now().plus(TURN_BUDGET);
+        SquareGateway.setTurnDeadline(turnDeadline);
+
         var input = lexRequest.getInputTranscript();
         final var attrs = lexRequest.getSessionAttributes();
         // Will be phone if from SMS, Facebook the Page Scoped userID, Chime unique generated ID
         final var session_id = lexRequest.getSessionId();
 
+        // Chime passes the callers number, start the phone type and profile lookups now so they're ready when needed
+        final var callingNumber = attrs.get("callingNumber");
+        PhoneTypeCache.getInstance().prefetch(callingNumber);
+        CallerProfileService.getInstance().prefetch(callingNumber);
+
         // For Voice we support 9 Locales
-        log.debug("Java Locale is " + lexRequest.getLocale());
+        log.debug("Java Locale is {}", lexRequest.getLocale());
+
+        if (lexRequest.getChannelPlatform() == ChannelPlatform.FACEBOOK) {
+            // Start the name lookup so it overlaps with loading the session and the GPT call
+            FaceBookOperations.getFacebookName(session_id);
+        }
 
         // Special Facebook Short Circut
         if (attrs.containsKey(FACEBOOK_HANDOVER_FUNCTION_NAME)) {
             log.debug("Facebook Short Circut, calling FB API to move thread to FB Inbox");
-            FaceBookOperations.transferToInbox(session_id);
+            FaceBookOperations.transferToInbox(session_id).join();
             // Clear out all sessions Attributes
             attrs.clear();
             // Send a close indicating we are done with this Lex Session
@@ -156,20 +197,23 @@ public abstract class ChatGPTLambda {
             attrs.put("blankCounter", "0");
         }
 
-        log.debug("Lex Session ID is " + session_id);
+        log.debug("Lex Session ID is {}", session_id);
 
         // Key to record in Dynamo which we key by date.  So SMS/Facebook session won't span forever (by day)
         final var key = Key.builder().partitionValue(session_id).sortValue(LocalDate.now(ZoneId.of("America/Chicago")).toString()).build();
 
         //  load session state if it exists
-        var session = sessionState.getItem(key).join();
+        var session = loadSession(key);
 
         boolean session_new = false;
         if (session == null) {
-            session = new ChatGPTSessionState(lexRequest);
+            session = new ChatGPTSessionState(lexRequest, CallerProfileService.getInstance().getProfile(callingNumber, PROFILE_WAIT));
             session_new = true;  // Track whether is new session so we can send welcome card for Facebook Channel
         }
 
+        // Everything after this is what this turn adds, needed if we have to merge with another turn on save
+        final int turnStart = session.getMessages().size();
+
         // add the user request to the session
         session.addUserMessage(input);
 
@@ -178,26 +222,26 @@ public abstract class ChatGPTLambda {
         List<ChatFunctionCall> functionCallsMade = new ArrayList<>();
         try {
             FunctionExecutor functionExecutor = AbstractFunction.getFunctionExecuter(lexRequest);
-            functionExecutor.setObjectMapper(mapper);
 
             //functionExecutor.getFunctions().forEach(log::debug);
             while (true) {
                 final var chatMessages = session.getChatMessages();
                 ChatCompletionRequest request = ChatCompletionRequest.builder()
-                        .messages(chatMessages)
-                        .model(OPENAI_MODEL)
-                        .maxTokens(500) // Limit the response tokens to something reasonable
-                        .temperature(0.2) // More focused
-                        .n(1) // Only return 1 completion
-                        .functions(functionExecutor.getFunctions())
-                        .functionCall(ChatCompletionRequest.ChatCompletionRequestFunctionCall.of("auto"))
+                        .withMessages(chatMessages)
+                        .withModel(OPENAI_MODEL)
+                        .withMaxTokens(500) // Limit the response tokens to something reasonable
+                        .withTemperature(0.2) // More focused
+                        .withN(1) // Only return 1 completion
+                        .withFunctions(functionExecutor.getFunctions())
+                        .withFunctionCall("auto")
                         .build();
 
-                log.debug(chatMessages);
+                // Message list and completion toString() are big, parameterized so nothing is built unless DEBUG
+                log.debug("Chat messages {}", chatMessages);
                 log.debug("Start API Completion Call to ChatGPT");
-                final var completion = open_ai_service.createChatCompletion(request);
+                final var completion = createCompletion(request, turnDeadline, lexRequest.isVoice());
                 log.debug("End API Completion Call to ChatGPT");
-                log.debug(completion);
+                log.debug("Completion {}", completion);
 
                 ChatMessage responseMessage = completion.getChoices().get(0).getMessage();
                 botResponse = completion.getChoices().get(0).getMessage().getContent();
@@ -207,18 +251,20 @@ public abstract class ChatGPTLambda {
 
                 ChatFunctionCall functionCall = responseMessage.getFunctionCall();
                 if (functionCall != null) {
-                    log.debug("Trying to execute " + functionCall.getName() + "...");
+                    log.debug("Trying to execute {}...", functionCall.getName());
 
                     Optional<ChatMessage> message = functionExecutor.executeAndConvertToMessageSafely(functionCall);
 
                     if (message.isPresent()) {
-                        log.debug("Executed " + functionCall.getName() + ".");
+                        log.debug("Executed {}.", functionCall.getName());
                         session.addMessage(message.get());
-                        // Track each call made
-                        functionCallsMade.add(functionCall);
+                        // Track each call made, unless the function refused it (like a transfer to a non employee number)
+                        if (!isFailedResult(message.get())) {
+                            functionCallsMade.add(functionCall);
+                        }
                         continue;
                     } else {
-                        log.debug("Something went wrong with the execution of " + functionCall.getName() + "...");
+                        log.debug("Something went wrong with the execution of {}...", functionCall.getName());
                         try {
                             functionExecutor.executeAndConvertToMessage(functionCall);
                         } catch (Exception e) {
@@ -231,12 +277,11 @@ public abstract class ChatGPTLambda {
             }
 
             // Save the session to dynamo
-            session.incrementCounter();
-            sessionState.putItem(session).join();
+            saveSession(session, key, turnStart);
         } catch (RuntimeException rte) {
             switch (rte.getCause()) {
-                case SocketTimeoutException ste -> {
-                    log.error("Response timed out", ste);
+                case HttpTimeoutException hte -> {
+                    log.error("Response timed out", hte);
                     botResponse = lexRequest.getLangString(OPERATION_TIMED_OUT);
                 }
                 case null ->
@@ -246,7 +291,7 @@ public abstract class ChatGPTLambda {
             }
         }
 
-        log.debug("botResponse is [" + botResponse + "]");
+        log.debug("botResponse is [{}]", botResponse);
 
         if (!functionCallsMade.isEmpty()) {
             // Did a terminating function get executed
@@ -256,12 +301,14 @@ public abstract class ChatGPTLambda {
                     .findAny()
                     .orElse(null);
             if (termCalled != null) {
-                log.debug("A terminating function was called = [" + termCalled.getName() + "]");
+                log.debug("A terminating function was called = [{}]", termCalled.getName());
                 final ChatFunctionCall gptFunCall = functionCallsMade.stream().filter(f -> f.getName().equals(termCalled.getName())).findAny().get();
                 final var args = mapper.convertValue(gptFunCall.getArguments(), Map.class);
+                // Chime dials and compares against MAIN_NUMBER in E164, whatever format GPT used
+                args.computeIfPresent("transfer_number", (k, v) -> TransferCall.normalizeNumber(v.toString()));
                 return buildTerminatingResponse(lexRequest, gptFunCall.getName(), args, botResponse);
             } else {
-                log.debug("The following function calls were made " + functionCallsMade + " but none are terminating");
+                log.debug("The following function calls were made {} but none are terminating", functionCallsMade);
             }
 
             // Special Facebook handoff check
@@ -284,6 +331,107 @@ public abstract class ChatGPTLambda {
         return buildResponse(lexRequest, botResponse);
     }
 
+    /**
+     * Response as JSON for logging.
+     */
+    private static String toJson(LexV2Response response) {
+        try {
+            return JsonCodecs.LEX_RESPONSE_WRITER.writeValueAsString(response);
+        } catch (Exception e) {
+            return response.toString();
+        }
+    }
+
+    /**
+     * Load the session for this turn.
+     *
+     * @param key
+     * @return session or null if this is a new session
+     */
+    protected ChatGPTSessionState loadSession(Key key) {
+        return sessionState.getItem(key).join();
+    }
+
+    /**
+     * Call OpenAI for the next completion.
+     *
+     * @param request
+     * @param deadline give up (and fail with HttpTimeoutException) if no answer by then
+     * @param hedge send a second call if this one is slow, for voice where the caller is waiting on silence
+     * @return
+     */
+    protected ChatCompletionResult createCompletion(ChatCompletionRequest request, Instant deadline, boolean hedge) {
+        final var turn = turnSpan.get();
+        final var span = Tracing.startSpan("openai.completion", turn != null ? turn.getTraceparent() : null)
+                .setAttribute("model", request.getModel())
+                .setAttribute("hedge", hedge);
+        try {
+            return hedged_completions.complete(request, deadline, hedge);
+        } catch (RuntimeException e) {
+            span.setError(e);
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Save the session. If another turn for the same session saved since we read it (Facebook double taps, SMS bursts)
+     * the write is rejected on version, so read theirs, add this turn's messages after them and try again.
+     *
+     * @param session
+     * @param key
+     * @param turnStart index of the first message this turn added
+     */
+    protected void saveSession(ChatGPTSessionState session, Key key, int turnStart) {
+        final var start = System.currentTimeMillis();
+        var toSave = session;
+        final var turnMessages = List.copyOf(session.getMessages().subList(turnStart, session.getMessages().size()));
+        toSave.incrementCounter();
+        for (int attempt = 1;; attempt++) {
+            try {
+                sessionState.putItem(toSave).join();
+                if (attempt > 1) {
+                    Metrics.recordMillis("Session.ConflictResolveTime", System.currentTimeMillis() - start);
+                }
+                return;
+            } catch (CompletionException e) {
+                if (!(e.getCause() instanceof ConditionalCheckFailedException) || attempt >= SESSION_SAVE_ATTEMPTS) {
+                    if (e.getCause() instanceof ConditionalCheckFailedException) {
+                        Metrics.increment("Session.ConflictFailures");
+                    }
+                    throw e;
+                }
+                Metrics.increment("Session.Conflicts");
+                log.warn("Session {} was saved by another turn, merging (attempt {})", session.getSessionId(), attempt);
+
+                final var latest = sessionState.getItem(r -> r.key(key).consistentRead(true)).join();
+                if (latest == null) {
+                    // Gone (TTL), so just write ours as new
+                    toSave.setVersion(null);
+                    continue;
+                }
+                latest.getMessages().addAll(turnMessages);
+                latest.incrementCounter();
+                toSave = latest;
+            }
+        }
+    }
+
+    /**
+     * Did the function return a FAILED status, meaning it refused or could not perform the action.
+     *
+     * @param message function result message
+     * @return
+     */
+    private static boolean isFailedResult(ChatMessage message) {
+        try {
+            return "FAILED".equals(mapper.readTree(message.getContent()).path("status").asText());
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
     /**
      * Response that will tell Lex we are done so some action can be performed
      * at the Chime Level (hang up, transfer, MOH, etc.)
@@ -299,6 +447,10 @@ public abstract class ChatGPTLambda {
 
         // The controller (Chime SAM Lambda) will grab this from the session, then perform the terminating action
         attrs.put("action", function_name);
+        final var span = turnSpan.get();
+        if (span != null) {
+            span.setAttribute("action.type", function_name);
+        }
         attrs.put("bot_response", botResponse);
         attrs.putAll(functionArgs);
 
@@ -315,7 +467,7 @@ public abstract class ChatGPTLambda {
         final var lexV2Res = LexV2Response.builder()
                 .withSessionState(ss)
                 .build();
-        log.debug("Response is " + mapper.valueToTree(lexV2Res));
+        log.debug("Response is {}", () -> toJson(lexV2Res));
         return lexV2Res;
     }
 
@@ -361,7 +513,7 @@ public abstract class ChatGPTLambda {
                 // List of messages to send back
                 .withMessages(messages.toArray(LexV2Response.Message[]::new))
                 .build();
-        log.debug("Response is " + mapper.valueToTree(lexV2Res));
+        log.debug("Response is {}", () -> toJson(lexV2Res));
         return lexV2Res;
     }
 
@@ -1,32 +1,58 @@
 package cloud.cleo.squareup;
 
-import static cloud.cleo.squareup.ChatGPTLambda.mapper;
+import static cloud.cleo.squareup.JsonCodecs.LEX_EVENT_READER;
+import static cloud.cleo.squareup.JsonCodecs.LEX_EVENT_WRITER;
+import static cloud.cleo.squareup.JsonCodecs.LEX_RESPONSE_WRITER;
 import static cloud.cleo.squareup.lang.LangUtil.LanguageIds.UNHANDLED_EXCEPTION;
+import cloud.cleo.squareup.common.Tracing;
+import cloud.cleo.squareup.outbox.Outbox;
 import com.amazonaws.services.lambda.runtime.Context;
-import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Duration;
 import java.util.concurrent.CompletionException;
 
-
-
-
-
 /**
  * Process incoming Lex Events
  * 
+ * Stream handler so the event is parsed once with our mapper straight off the input stream and the response written
+ * straight to the output, rather than the runtime's own Jackson pass plus ours for logging.
  *  
  * @author sjensen
  */
-public class ChatGPTLambdaLex extends ChatGPTLambda implements RequestHandler<LexV2Event, LexV2Response> {
+public class ChatGPTLambdaLex extends ChatGPTLambda implements RequestStreamHandler {
+
+    private final static Duration FACEBOOK_PENDING_WAIT = Duration.ofSeconds(3);
+
+    private final static Duration OUTBOX_FLUSH_WAIT = Duration.ofSeconds(3);
 
+    // Hit static initializers so it's loaded and hot at SnapStart init
+    private final static Outbox outbox = Outbox.getInstance();
     
     @Override
-    public LexV2Response handleRequest(LexV2Event lexRequest, Context cntxt) {
+    public void handleRequest(InputStream input, OutputStream output, Context cntxt) throws IOException {
+        final LexV2Event lexRequest = LEX_EVENT_READER.readValue(input);
+        LEX_RESPONSE_WRITER.writeValue(output, handleRequest(lexRequest));
+    }
+
+    /**
+     * Process one Lex event.
+     *
+     * @param lexRequest
+     * @return
+     */
+    public LexV2Response handleRequest(LexV2Event lexRequest) {
+        final long start = System.nanoTime();
         // Wrapped Event Class
         final LexV2EventWrapper event = new LexV2EventWrapper(lexRequest);
         try {
-            log.debug(mapper.valueToTree(lexRequest).toPrettyString());
+            // Only pay for the pretty print when someone is going to see it
+            log.debug(() -> prettyPrint(lexRequest));
             // Intent which doesn't matter for us
-            log.debug("Intent: " + event.getIntent());
+            log.debug("Intent: {}", event.getIntent());
 
             // For this use case, we only ever get the FallBack Intent, so the intent name means nothing here
             // We will process everythiung coming in as text to pass to GPT
@@ -38,14 +64,30 @@ public class ChatGPTLambdaLex extends ChatGPTLambda implements RequestHandler<Le
 
         } catch (CompletionException e) {
             log.error("Unhandled Future Exception", e.getCause());
-            return buildResponse(new LexV2EventWrapper(lexRequest), event.getLangString(UNHANDLED_EXCEPTION));
+            return buildResponse(event, event.getLangString(UNHANDLED_EXCEPTION));
         } catch (Exception e) {
             log.error("Unhandled Exception", e);
             // Unhandled Exception
-            return buildResponse(new LexV2EventWrapper(lexRequest), event.getLangString(UNHANDLED_EXCEPTION));
+            return buildResponse(event, event.getLangString(UNHANDLED_EXCEPTION));
+        } finally {
+            // Anything started in the background (like a Messenger menu update) needs to finish before we freeze
+            FaceBookOperations.awaitPending(FACEBOOK_PENDING_WAIT);
+            // SMS and Emails queued during the turn
+            outbox.flush(OUTBOX_FLUSH_WAIT);
+            Priming.turnCompleted(start);
+            Tracing.flush();
+            Metrics.flush();
+            AsyncLogging.drain();
         }
     }
 
+    private static String prettyPrint(LexV2Event lexRequest) {
+        try {
+            return LEX_EVENT_WRITER.withDefaultPrettyPrinter().writeValueAsString(lexRequest);
+        } catch (JsonProcessingException e) {
+            return "Lex event could not be serialized: " + e.getMessage();
+        }
+    }
 
    
 }
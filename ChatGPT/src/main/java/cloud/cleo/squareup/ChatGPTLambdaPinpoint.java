@@ -1,51 +1,116 @@
 package cloud.cleo.squareup;
 
 import static cloud.cleo.squareup.lang.LangUtil.LanguageIds.UNHANDLED_EXCEPTION;
+import cloud.cleo.squareup.common.Tracing;
+import cloud.cleo.squareup.outbox.Notification;
+import cloud.cleo.squareup.outbox.Outbox;
+import cloud.cleo.squareup.sms.FragmentBuffer.Fragment;
+import cloud.cleo.squareup.sms.SmsCoalescer;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
-import com.amazonaws.services.lambda.runtime.events.SNSEvent;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.sns.SnsAsyncClient;
 
 /**
  * Process incoming SMS from Pinpoint and respond as another Channel Type.
  *
  * https://docs.aws.amazon.com/sms-voice/latest/userguide/phone-numbers-two-way-sms.html
  *
+ * Inbound SMS arrive via SNS into an SQS queue so they can be taken in batches. Messages from the same sender are
+ * processed in order, different senders in parallel, and failures are reported per message so only those are retried.
+ * Quick successive texts from a sender are merged into one turn (see SmsCoalescer).
+ *
  * @author sjensen
  */
-public class ChatGPTLambdaPinpoint extends ChatGPTLambda implements RequestHandler<SNSEvent, Void> {
+public class ChatGPTLambdaPinpoint extends ChatGPTLambda implements RequestHandler<SQSEvent, SQSBatchResponse> {
 
+    private final static Duration OUTBOX_FLUSH_WAIT = Duration.ofSeconds(3);
 
-    final static SnsAsyncClient snsAsyncClient = SnsAsyncClient.builder()
-            // Force SMS sending to east because that's where all the 10DLC and campaign crap setup is done
-            // Otherwise have to pay for registrations and numbers in 2 regions, HUGE HASSLE (and more monthly cost)
-            // Also then all texts are sourced from the same phone number for consistancy
-            .region(Region.US_EAST_1)
-            .httpClient(crtAsyncHttpClient)
-            .build();
+    // Hit static initializers so it's loaded and hot at SnapStart init
+    private final static Outbox outbox = Outbox.getInstance();
+    private final static SmsCoalescer coalescer = SmsCoalescer.getInstance();
 
     @Override
-    public Void handleRequest(SNSEvent input, Context cntxt) {
-        // Only 1 record is every presented
-        SNSEvent.SNS snsEvent = input.getRecords().get(0).getSNS();
-        log.debug("Recieved SNS Event" + snsEvent);
+    public SQSBatchResponse handleRequest(SQSEvent input, Context cntxt) {
+        final long start = System.nanoTime();
+        final var failures = new ConcurrentLinkedQueue<SQSBatchResponse.BatchItemFailure>();
+        try {
+            // Group by sender, keeping the order they arrived in
+            final var bySender = new LinkedHashMap<String, List<InboundSMS>>();
+            for (var msg : input.getRecords()) {
+                log.debug("Recieved SQS Message {}", msg.getBody());
+                try {
+                    final var ppe = toPinpointEvent(msg.getBody());
+                    bySender.computeIfAbsent(ppe.getOriginationNumber(), k -> new ArrayList<>()).add(new InboundSMS(msg.getMessageId(), ppe));
+                } catch (JsonProcessingException jpe) {
+                    // Retrying won't help, so drop it
+                    log.error("Cannot convert Pintpoint JSON to Object, message dropped", jpe);
+                    Metrics.increment("Pinpoint.BadMessages");
+                }
+            }
+            Metrics.add("Pinpoint.Messages", input.getRecords().size());
+            Metrics.add("Pinpoint.Senders", bySender.size());
+
+            // Each sender on its own virtual thread, close() waits for them all
+            try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                bySender.values().forEach(messages -> executor.submit(() -> processSender(messages, failures)));
+            }
+        } finally {
+            outbox.flush(OUTBOX_FLUSH_WAIT);
+            Priming.turnCompleted(start);
+            Tracing.flush();
+            Metrics.flush();
+            AsyncLogging.drain();
+        }
+        return new SQSBatchResponse(new ArrayList<>(failures));
+    }
 
-        // Convert payload to Pinpoint Event
-        PinpointEvent ppe;
+    /**
+     * Process one senders messages. Quick successive texts are merged into one turn by the coalescer. If the turn fails
+     * all of this senders messages are reported as failed, the retry won't duplicate them since the buffer ignores
+     * fragments it already has.
+     */
+    private void processSender(List<InboundSMS> messages, Collection<SQSBatchResponse.BatchItemFailure> failures) {
+        final var first = messages.get(0).event();
+        final var fragments = messages.stream()
+                .map(m -> new Fragment(m.event().getInboundMessageId() != null ? m.event().getInboundMessageId() : m.messageId(),
+                m.event().getMessageBody(), System.currentTimeMillis()))
+                .toList();
         try {
-            ppe = mapper.readValue(snsEvent.getMessage(), PinpointEvent.class);
-        } catch( JsonProcessingException jpe ) {
-            log.error("Cannot convert Pintpoint JSON to Object, processing aborted and returning null",jpe);
-            return null;
+            coalescer.submit(first.getOriginationNumber(), fragments, batch -> processMessage(new PinpointEvent(
+                    first.getOriginationNumber(),
+                    first.getDestinationNumber(),
+                    first.getMessageKeyword(),
+                    SmsCoalescer.merge(batch),
+                    // First fragment ID as the key so a retried turn doesn't answer twice
+                    batch.get(0).id(),
+                    first.getPreviousPublishedMessageId())));
+        } catch (Exception e) {
+            log.error("SMS processing failed for {}", first.getOriginationNumber(), e);
+            Metrics.increment("Pinpoint.Failures");
+            messages.forEach(m -> failures.add(new SQSBatchResponse.BatchItemFailure(m.messageId())));
         }
-        
+    }
+
+    /**
+     * Run the turn and queue the reply.
+     *
+     * @param ppe
+     */
+    private void processMessage(PinpointEvent ppe) {
         // Wrapped Event Class
         final LexV2EventWrapper event = new LexV2EventWrapper(ppe);
         LexV2Response response;
@@ -60,14 +125,34 @@ public class ChatGPTLambdaPinpoint extends ChatGPTLambda implements RequestHandl
             response = buildResponse(event, event.getLangString(UNHANDLED_EXCEPTION));
         }
 
-        // Take repsonse body message from the LexV2Reponse and respond to SMS via SNS
+        // Take repsonse body message from the LexV2Reponse and respond to SMS via the Outbox
         final var botResponse = response.getMessages()[0].getContent();
-        final var result = snsAsyncClient.publish(b -> b.phoneNumber(ppe.getOriginationNumber())
-                .message(botResponse))
-                .join();
-        log.info("SMS Bot Response sent to " + ppe.getOriginationNumber() + " with SNS id of " + result.messageId());
+        // Inbound message ID as the key so a redelivered message doesn't answer twice
+        outbox.enqueue(Notification.sms(ppe.getOriginationNumber(), botResponse, ppe.getInboundMessageId()));
+        log.info("SMS Bot Response queued for {}", ppe.getOriginationNumber());
+    }
+
+    /**
+     * The queue is subscribed with raw message delivery so the body is the Pinpoint JSON, but handle the SNS envelope
+     * as well in case it's not.
+     *
+     * @param body
+     * @return
+     * @throws JsonProcessingException
+     */
+    static PinpointEvent toPinpointEvent(String body) throws JsonProcessingException {
+        var json = mapper.readTree(body);
+        if (json.has("TopicArn") && json.has("Message")) {
+            json = mapper.readTree(json.get("Message").asText());
+        }
+        return JsonCodecs.PINPOINT_EVENT_READER.readValue(json);
+    }
+
+    /**
+     * SQS message ID paired with the Pinpoint event it carried.
+     */
+    private record InboundSMS(String messageId, PinpointEvent event) {
 
-        return null;
     }
 
     /**
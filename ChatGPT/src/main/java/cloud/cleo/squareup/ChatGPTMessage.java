@@ -4,10 +4,10 @@
  */
 package cloud.cleo.squareup;
 
+import cloud.cleo.squareup.openai.ChatFunctionCall;
+import cloud.cleo.squareup.openai.ChatMessage;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.theokanning.openai.completion.chat.ChatFunctionCall;
-import com.theokanning.openai.completion.chat.ChatMessage;
 import lombok.NoArgsConstructor;
 import software.amazon.awssdk.enhanced.dynamodb.DefaultAttributeConverterProvider;
 import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbBean;
@@ -3,7 +3,7 @@ package cloud.cleo.squareup;
 import static cloud.cleo.squareup.ChatGPTLambda.*;
 import cloud.cleo.squareup.enums.Language;
 import cloud.cleo.squareup.functions.AbstractFunction;
-import com.theokanning.openai.completion.chat.ChatMessage;
+import cloud.cleo.squareup.openai.ChatMessage;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDate;
@@ -35,6 +35,11 @@ public class ChatGPTSessionState {
      * for voice calls, a session is a call.
      */
     private LocalDate date;
+    /**
+     * Phone number of the user (voice or SMS), null for channels that don't have one. Indexed so we can find prior
+     * sessions for a caller.
+     */
+    private String phoneNumber;
     /**
      * ChatGPT messages from the GPT Library.
      */
@@ -43,6 +48,10 @@ public class ChatGPTSessionState {
      * Counter to track number of interactions, just to see them in Dynamo console to look for longer running chats.
      */
     private Long counter;
+    /**
+     * Optimistic lock, a save only succeeds if nobody else saved since we read it (or the item is still new).
+     */
+    private Long version;
 
     /**
      * Unix timestamp when this Dynamo record should be deleted. We don't want session data hanging in the table
@@ -55,8 +64,13 @@ public class ChatGPTSessionState {
     }
 
     public ChatGPTSessionState(LexV2EventWrapper lexRequest) {
+        this(lexRequest, null);
+    }
+
+    public ChatGPTSessionState(LexV2EventWrapper lexRequest, CallerProfile profile) {
         this.sessionId = lexRequest.getSessionId();
         this.date = LocalDate.now(ZoneId.of("America/Chicago"));
+        this.phoneNumber = lexRequest.getPhoneE164();
         this.messages = new LinkedList<>();
 
         final var sb = new StringBuilder();
@@ -103,10 +117,9 @@ public class ChatGPTSessionState {
             // General statement didn't work well, but calling the below out works great
             sb.append("When executing store_product_item function, translate the search_text to English.  ");
 
-            // Because we search on all terms, tell GPT to look at results and analyze whether the exact search term matched, or maybe a sub-string matched
-            sb.append("When executing store_product_item function the results may include items that don't match exactly, ")
-                    .append("so check to see if the full search_text is contained in the result to indicate an exact match, otherwise indicate to user ")
-                    .append("that those results may be similar items to what they asked about.  ");
+            // Results are ranked and flagged, so GPT only needs to phrase non-exact matches as similar items
+            sb.append("When executing store_product_item function, results with a match_quality other than EXACT ")
+                    .append("should be presented to the user as similar items to what they asked about.  ");
         }
 
         // Mode specific prompting
@@ -118,7 +131,7 @@ public class ChatGPTSessionState {
                         sb.append("The user is interacting via Facebook Messenger.  Use emoji in responses when appropiate.  ");
 
                         // Personalize with Name
-                        final var name = FaceBookOperations.getFacebookName(lexRequest.getSessionId());
+                        final var name = FaceBookOperations.getFacebookName(lexRequest.getSessionId(), FACEBOOK_NAME_WAIT);
                         if (!"Unknown".equalsIgnoreCase(name)) {
                             sb.append("The user's name is ").append(name).append(".  Please greet the user by name and personalize responses when appropiate.  ");
                         }
@@ -189,6 +202,19 @@ public class ChatGPTSessionState {
             }
         }
 
+        // Personalize with what we learned about the caller when the call started
+        if (profile != null) {
+            if (profile.getName() != null) {
+                sb.append("The caller's name is ").append(profile.getName())
+                        .append(" and they are an existing customer.  Please greet the caller by name and personalize responses when appropiate.  ");
+            }
+            if (profile.getRecentSessions() != null && !profile.getRecentSessions().isEmpty()) {
+                sb.append("The caller has contacted us before, recent conversations were: ")
+                        .append(String.join("; ", profile.getRecentSessions()))
+                        .append(".  Only mention prior conversations if it's relevant to what the caller is asking.  ");
+            }
+        }
+
         this.messages.add(new ChatGPTMessage(ChatGPTMessage.MessageRole.system, sb.toString()));
 
         // Expire entries after 30 days so Dynamo Table doesn't keep growing forever
@@ -208,10 +234,27 @@ public class ChatGPTSessionState {
      * @return the date
      */
     @DynamoDbSortKey
+    @DynamoDbSecondarySortKey(indexNames = CallerProfileService.PHONE_INDEX)
     public LocalDate getDate() {
         return date;
     }
 
+    /**
+     * @return the phone number
+     */
+    @DynamoDbSecondaryPartitionKey(indexNames = CallerProfileService.PHONE_INDEX)
+    public String getPhoneNumber() {
+        return phoneNumber;
+    }
+
+    /**
+     * @return the version
+     */
+    @DynamoDbVersionAttribute
+    public Long getVersion() {
+        return version;
+    }
+
     public void addUserMessage(String message) {
         messages.add(new ChatGPTMessage(ChatGPTMessage.MessageRole.user, message));
     }
@@ -0,0 +1,231 @@
+package cloud.cleo.squareup;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import lombok.Getter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Circuit breaker for an outside dependency (Square, Facebook, Pinpoint). When too many recent calls fail or are slow
+ * the breaker opens and calls fail right away with CircuitOpenException instead of each one waiting out its timeout, so
+ * callers serve what they have cached. After OPEN_DURATION one call is let through as a probe (half open), if it works
+ * the breaker closes, otherwise it stays open for another round.
+ *
+ * State is published as the gauge Breaker.<name>.State (0 closed, 1 half open, 2 open), along with Breaker.<name>.Opened
+ * and Breaker.<name>.Rejected counts.
+ *
+ * @author sjensen
+ */
+public final class CircuitBreaker {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(CircuitBreaker.class);
+
+    /**
+     * Calls remembered to work out the failure rate.
+     */
+    private final static int WINDOW = 20;
+
+    /**
+     * Don't judge a dependency on fewer calls than this.
+     */
+    private final static int MIN_CALLS = 5;
+
+    /**
+     * Open when at least this share of the window failed or was slow.
+     */
+    private final static double FAILURE_RATE = 0.5;
+
+    private final static Duration OPEN_DURATION = Duration.ofSeconds(30);
+
+    public enum State {
+        CLOSED,
+        HALF_OPEN,
+        OPEN
+    }
+
+    @Getter
+    private final String name;
+
+    /**
+     * Calls taking longer than this count as failures, a dependency that answers in 10 seconds is as good as down.
+     */
+    private final long slowCallNanos;
+
+    /**
+     * Outcome of the last WINDOW calls, true if failed or slow.
+     */
+    private final boolean[] outcomes = new boolean[WINDOW];
+
+    private int calls;
+
+    private int failures;
+
+    @Getter
+    private volatile State state = State.CLOSED;
+
+    private long openedAt;
+
+    private boolean probing;
+
+    /**
+     * @param name used in logs and metric names
+     * @param slowCall calls slower than this count as failed
+     */
+    public CircuitBreaker(String name, Duration slowCall) {
+        this.name = name;
+        this.slowCallNanos = slowCall.toNanos();
+        Metrics.gauge("Breaker." + name + ".State", State.CLOSED.ordinal());
+    }
+
+    /**
+     * Is the breaker letting calls through, when false cached data is all we have.
+     *
+     * @return
+     */
+    public boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * Make a call through the breaker.
+     *
+     * @param <T>
+     * @param call
+     * @return the call's future, or one already failed with CircuitOpenException if the breaker is open
+     */
+    public <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> call) {
+        if (!tryAcquire()) {
+            return CompletableFuture.failedFuture(new CircuitOpenException(name));
+        }
+        final var start = System.nanoTime();
+        final CompletableFuture<T> future;
+        try {
+            future = call.get();
+        } catch (RuntimeException e) {
+            onFailure();
+            throw e;
+        }
+        return future.whenComplete((r, e) -> {
+            if (e != null) {
+                onFailure();
+            } else {
+                onResult(System.nanoTime() - start);
+            }
+        });
+    }
+
+    /**
+     * Ask to make a call, for callers that can't go through call(). Every true must be followed by onResult(),
+     * onFailure() or release().
+     *
+     * @return false if the breaker is open and the call should not be made
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt < OPEN_DURATION.toNanos()) {
+                Metrics.increment("Breaker." + name + ".Rejected");
+                return false;
+            }
+            setState(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probing) {
+                Metrics.increment("Breaker." + name + ".Rejected");
+                return false;
+            }
+            log.debug("{} breaker half open, probing", name);
+            probing = true;
+        }
+        return true;
+    }
+
+    /**
+     * Call answered, slow answers count as failures.
+     *
+     * @param elapsedNanos
+     */
+    public void onResult(long elapsedNanos) {
+        record(elapsedNanos > slowCallNanos);
+    }
+
+    /**
+     * Call failed (or timed out).
+     */
+    public void onFailure() {
+        record(true);
+    }
+
+    /**
+     * Call given up on before it was made (the caller cancelled), it says nothing about the dependency. A half open
+     * probe is let go so the next call probes.
+     */
+    public synchronized void release() {
+        if (state == State.HALF_OPEN) {
+            probing = false;
+        }
+    }
+
+    private synchronized void record(boolean failed) {
+        if (state == State.HALF_OPEN) {
+            probing = false;
+            if (failed) {
+                open();
+            } else {
+                log.info("{} is back, closing breaker", name);
+                reset();
+                setState(State.CLOSED);
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // Call started before the breaker opened
+            return;
+        }
+
+        final var slot = calls++ % WINDOW;
+        if (calls > WINDOW && outcomes[slot]) {
+            failures--;
+        }
+        outcomes[slot] = failed;
+        if (failed) {
+            failures++;
+        }
+        final var counted = Math.min(calls, WINDOW);
+        if (counted >= MIN_CALLS && failures >= counted * FAILURE_RATE) {
+            log.warn("{} failing ({} of last {} calls), opening breaker for {} seconds", name, failures, counted, OPEN_DURATION.toSeconds());
+            open();
+        }
+    }
+
+    private void open() {
+        openedAt = System.nanoTime();
+        reset();
+        setState(State.OPEN);
+        Metrics.increment("Breaker." + name + ".Opened");
+    }
+
+    private void reset() {
+        calls = 0;
+        failures = 0;
+        Arrays.fill(outcomes, false);
+    }
+
+    private void setState(State state) {
+        this.state = state;
+        Metrics.gauge("Breaker." + name + ".State", state.ordinal());
+    }
+
+    /**
+     * Thrown (as the cause of the failed future) when a call isn't made because the breaker is open.
+     */
+    public static class CircuitOpenException extends RuntimeException {
+
+        public CircuitOpenException(String name) {
+            super(name + " is unavailable right now");
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package cloud.cleo.squareup;
+
+import static cloud.cleo.squareup.ChatGPTLambda.dynamoDbAsyncClient;
+import static cloud.cleo.squareup.ChatGPTLambda.hedged_completions;
+import static cloud.cleo.squareup.ChatGPTLambda.open_ai_client;
+import static cloud.cleo.squareup.ChatGPTLambda.sessionState;
+import cloud.cleo.squareup.common.SquareEnvironment;
+import cloud.cleo.squareup.functions.AbstractFunction;
+import cloud.cleo.squareup.outbox.NotificationSender;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Re-establish outbound connections after a SnapStart restore. Everything pooled before the snapshot (sockets, TLS
+ * sessions, resolved addresses) is stale once restored, so the first call on each would fail or hang until its timeout.
+ * The Square OkHttp pool is evicted and the JDK clients (OpenAI, Facebook) are replaced, then one cheap call per
+ * service opens a fresh connection, all in parallel. The AWS CRT client has no way to evict, so DynamoDB and SNS just
+ * get a call each which replaces any dead connection before a customer turn needs it.
+ *
+ * Time from restore until all of that is done is published as SnapStart.RestoreToReady.
+ *
+ * @author sjensen
+ */
+final class Connections {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(Connections.class);
+
+    private Connections() {
+    }
+
+    /**
+     * Reset and open all connections, waiting at most maxWait. Never throws, a service that can't be reached now will
+     * just connect on first use like before.
+     *
+     * @param restoredAt nanoTime of the restore
+     * @param maxWait
+     */
+    static void refresh(long restoredAt, Duration maxWait) {
+        final var calls = new LinkedHashMap<String, CompletableFuture<?>>();
+        calls.put("OpenAI", open_ai_client.reconnect());
+        calls.put("OpenAI hedge", hedged_completions.reconnectHedge());
+        if (AbstractFunction.isSquareEnabled()) {
+            calls.put("Square", SquareEnvironment.reconnect());
+        }
+        calls.put("DynamoDB", dynamoDbAsyncClient.describeTable(b -> b.tableName(sessionState.tableName())));
+        calls.put("SNS", NotificationSender.reconnect());
+        // Only the Lex Lambda talks to Facebook
+        final var fbToken = System.getenv("FB_PAGE_ACCESS_TOKEN");
+        if (fbToken != null && !fbToken.isBlank()) {
+            calls.put("Facebook", FaceBookOperations.reconnect());
+        }
+
+        try {
+            CompletableFuture.allOf(calls.values().stream()
+                    .map(f -> f.exceptionally(e -> null))
+                    .toArray(CompletableFuture[]::new))
+                    .get(maxWait.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.warn("Connections not all open after {} ms", maxWait.toMillis());
+        }
+        report(calls);
+        Metrics.recordMillis("SnapStart.RestoreToReady", (System.nanoTime() - restoredAt) / 1_000_000L);
+    }
+
+    private static void report(Map<String, CompletableFuture<?>> calls) {
+        calls.forEach((service, f) -> {
+            if (!f.isDone()) {
+                log.warn("{} connection still opening", service);
+                Metrics.increment("SnapStart.ReconnectTimeouts");
+            } else if (f.isCompletedExceptionally()) {
+                log.warn("{} connection failed: {}", service, f.exceptionNow().getMessage());
+                Metrics.increment("SnapStart.ReconnectFailures");
+            } else {
+                log.debug("{} connection open", service);
+            }
+        });
+    }
+}
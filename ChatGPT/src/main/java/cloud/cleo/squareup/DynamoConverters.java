@@ -4,10 +4,10 @@
  */
 package cloud.cleo.squareup;
 
+import cloud.cleo.squareup.openai.ChatFunctionCall;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.theokanning.openai.completion.chat.ChatFunctionCall;
 import java.io.UncheckedIOException;
 import java.util.Map;
 import software.amazon.awssdk.enhanced.dynamodb.AttributeConverter;
@@ -2,15 +2,31 @@ package cloud.cleo.squareup;
 
 import static cloud.cleo.squareup.ChatGPTLambda.mapper;
 import static cloud.cleo.squareup.functions.PrivateShoppingLink.PRIVATE_SHOPPING_URL;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
  * Perform various Facebook operations. Used when Channel is FB. Rather than pull in some other dependency, we will just
- * use basic HTTP for all Facebook operations.
+ * use the JDK HTTP client for all Facebook operations. One client is shared so connections to Graph (HTTP/2) are reused
+ * rather than doing a new TLS handshake on every call, and all operations return futures so they can overlap with the
+ * GPT call. Calls go through a circuit breaker, when Graph is down they fail right away and names are served from the
+ * cache even once expired.
  *
  * @author sjensen
  */
@@ -19,6 +35,47 @@ public class FaceBookOperations {
     // Initialize the Log4j logger.
     private static final Logger log = LogManager.getLogger(FaceBookOperations.class);
 
+    private final static Duration REQUEST_TIMEOUT = Duration.ofSeconds(5);
+
+    /**
+     * How long to hold onto a users name, it's only used for greeting and email subjects.
+     */
+    private final static Duration NAME_TTL = Duration.ofHours(1);
+
+    private final static int MAX_NAMES = 1_000;
+
+    private final static String UNKNOWN = "Unknown";
+
+    /**
+     * Graph API, FB_GRAPH_URL can point this at a stand-in (LoadTest).
+     */
+    private final static String GRAPH_URL = System.getenv().getOrDefault("FB_GRAPH_URL", "https://graph.facebook.com/");
+
+    /**
+     * Replaced after a SnapStart restore, the JDK client has no way to drop its pooled connections.
+     */
+    private static volatile HttpClient httpClient = newHttpClient();
+
+    /**
+     * Graph calls taking over 2 seconds count against the breaker.
+     */
+    private final static CircuitBreaker breaker = new CircuitBreaker("Facebook", Duration.ofSeconds(2));
+
+    /**
+     * PSID to name lookup, bounded and access ordered so least recently used are dropped first.
+     */
+    private final static Map<String, CachedName> names = Collections.synchronizedMap(new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedName> eldest) {
+            return size() > MAX_NAMES;
+        }
+    });
+
+    /**
+     * Operations started but not yet complete, so we can make sure they finish before the Lambda returns.
+     */
+    private final static Set<CompletableFuture<?>> pending = ConcurrentHashMap.newKeySet();
+
     /**
      * Transfer control of Messenger Thread Session from Bot control to the Inbox. Used when end user needs to deal with
      * a real person to resolve issue the Bot can't handle. Some people despise Bots, so we need to allow getting the
@@ -27,215 +84,271 @@ public class FaceBookOperations {
      * https://developers.facebook.com/docs/messenger-platform/handover-protocol/conversation-control
      *
      * @param id of the recipient
+     * @return future that completes true if successful
      */
-    public static void transferToInbox(String id) {
-        HttpURLConnection connection = null;
-        try {
-            connection = (HttpURLConnection) getFaceBookURL(System.getenv("FB_PAGE_ID"), "pass_thread_control").openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json; utf-8");
-            connection.setRequestProperty("Accept", "application/json");
-            connection.setDoOutput(true);
-
-            // Construct the payload
-            var json = mapper.createObjectNode();
-            // Special Target for Inbox
-            json.put("target_app_id", "263902037430900");
-            // The page scoped user ID of the person chatting with us
-            json.putObject("recipient").put("id", id);
-
-            log.debug("Post Payload for thread control " + json.toPrettyString());
-            mapper.writeValue(connection.getOutputStream(), json);
-
-            final int responseCode = connection.getResponseCode();
-            log.debug("Facebook Call Response Code: " + responseCode);
-
-            final var result = mapper.readTree(connection.getInputStream());
-            log.debug("FB Pass Thread Control result is " + result.toPrettyString());
-
-            if (result.findValue("success") != null && result.findValue("success").asBoolean() == true) {
-                log.debug("Call Succeeded in passing thread control");
-            } else {
-                log.debug("Call FAILED to pass thread control");
-            }
-
-        } catch (Exception e) {
-            log.error("Facebook Pass Thread Control error", e);
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
-        }
+    public static CompletableFuture<Boolean> transferToInbox(String id) {
+        // Construct the payload
+        var json = mapper.createObjectNode();
+        // Special Target for Inbox
+        json.put("target_app_id", "263902037430900");
+        // The page scoped user ID of the person chatting with us
+        json.putObject("recipient").put("id", id);
+
+        log.debug("Post Payload for thread control {}", json::toPrettyString);
+        return track(post(getFaceBookURI(System.getenv("FB_PAGE_ID"), "pass_thread_control"), json)
+                .thenApply(result -> {
+                    log.debug("FB Pass Thread Control result is {}", result);
+                    if (result.findValue("success") != null && result.findValue("success").asBoolean() == true) {
+                        log.debug("Call Succeeded in passing thread control");
+                        return true;
+                    }
+                    log.debug("Call FAILED to pass thread control");
+                    return false;
+                })
+                .exceptionally(e -> {
+                    log.error("Facebook Pass Thread Control error", e);
+                    return false;
+                }));
     }
 
-    
     /**
      * Adds a static menu button, so when bot calls for the URL, will persist as menu item.
      * https://developers.facebook.com/docs/messenger-platform/send-messages/persistent-menu/
+     *
      * @param id
-     * @return 
+     * @return future that completes true if successful
      */
-    public static void addPrivateShoppingMenu(String id) {
-        HttpURLConnection connection = null;
-        try {
-            connection = (HttpURLConnection) getFaceBookURL(null, "me/custom_user_settings").openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json; utf-8");
-            connection.setRequestProperty("Accept", "application/json");
-            connection.setDoOutput(true);
-
-            // Construct the payload
-            var json = mapper.createObjectNode();
-
-            // The page scoped user ID of the person chatting with us
-            json.put("psid", id);
-
-            json.putArray("persistent_menu")
-                    .addObject()
-                    .put("locale", "default")
-                    .put("composer_input_disabled", false)
-                    .putArray("call_to_actions")
-                    .addObject()
-                    .put("type", "web_url")
-                    .put("url", "https://" + PRIVATE_SHOPPING_URL)
-                    .put("title", "Book Shopping Appointment Now!")
-                    .put("webview_height_ratio", "full");
-
-            log.debug("Post Payload for Private Shopping Menu" + json.toPrettyString());
-            mapper.writeValue(connection.getOutputStream(), json);
-
-            final int responseCode = connection.getResponseCode();
-            log.debug("Facebook Call Response Code: " + responseCode);
-
-            final var result = mapper.readTree(connection.getInputStream());
-            log.debug("FB Private Shopping Menu send result is " + result.toPrettyString());
-
-            if (result.findValue("message_id") != null) {
-                log.debug("Call Succeeded in sending Private Shopping Menu");
-            } else {
-                log.debug("Call FAILED to send Private Shopping Menu");
-            }
-
-        } catch (Exception e) {
-            log.error("Facebook Messenger Private Shopping Menu send failed", e);
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
-        }
+    public static CompletableFuture<Boolean> addPrivateShoppingMenu(String id) {
+        // Construct the payload
+        var json = mapper.createObjectNode();
+
+        // The page scoped user ID of the person chatting with us
+        json.put("psid", id);
+
+        json.putArray("persistent_menu")
+                .addObject()
+                .put("locale", "default")
+                .put("composer_input_disabled", false)
+                .putArray("call_to_actions")
+                .addObject()
+                .put("type", "web_url")
+                .put("url", "https://" + PRIVATE_SHOPPING_URL)
+                .put("title", "Book Shopping Appointment Now!")
+                .put("webview_height_ratio", "full");
+
+        log.debug("Post Payload for Private Shopping Menu {}", json::toPrettyString);
+        return track(post(getFaceBookURI(null, "me/custom_user_settings"), json)
+                .thenApply(result -> {
+                    log.debug("FB Private Shopping Menu send result is {}", result);
+                    if (result.findValue("message_id") != null) {
+                        log.debug("Call Succeeded in sending Private Shopping Menu");
+                        return true;
+                    }
+                    log.debug("Call FAILED to send Private Shopping Menu");
+                    return false;
+                })
+                .exceptionally(e -> {
+                    log.error("Facebook Messenger Private Shopping Menu send failed", e);
+                    return false;
+                }));
     }
 
     /**
-     * Send our private Shopping URL as a Messenger Button.  Leave here for now,
-     * seems cleaner to let Bot send the URL instead of a button.
+     * Send our private Shopping URL as a Messenger Button. Leave here for now, seems cleaner to let Bot send the URL
+     * instead of a button.
      *
      * @param id of the recipient
-     * @return true if successfully sent
+     * @return future that completes true if successfully sent
      */
     @Deprecated
-    public static boolean sendPrivateBookingURL(String id) {
-        HttpURLConnection connection = null;
-        try {
-            connection = (HttpURLConnection) getFaceBookURL(null, "me/messages").openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json; utf-8");
-            connection.setRequestProperty("Accept", "application/json");
-            connection.setDoOutput(true);
-
-            // Construct the payload
-            var json = mapper.createObjectNode();
-
-            // The page scoped user ID of the person chatting with us
-            json.putObject("recipient").put("id", id);
-
-            json.putObject("message").putObject("attachment")
-                    .put("type", "template").putObject("payload")
-                    .put("template_type", "button")
-                    .put("text", "Book Your Private Shopping Experience")
-                    .putArray("buttons")
-                    .addObject()
-                    .put("type", "web_url")
-                    //.put("messenger_extensions", true)
-                    .put("url", "https://" + PRIVATE_SHOPPING_URL)
-                    .put("title", "Book Now!")
-                    .put("webview_height_ratio", "full");
-
-            log.debug("Post Payload for URL push" + json.toPrettyString());
-            mapper.writeValue(connection.getOutputStream(), json);
-
-            final int responseCode = connection.getResponseCode();
-            log.debug("Facebook Call Response Code: " + responseCode);
-
-            final var result = mapper.readTree(connection.getInputStream());
-            log.debug("FB Messgene URL send result is " + result.toPrettyString());
-
-            if (result.findValue("message_id") != null) {
-                log.debug("Call Succeeded in sending URL in FB Messenger");
-                return true;
-            } else {
-                log.debug("Call FAILED to send URL in FB Messenger");
+    public static CompletableFuture<Boolean> sendPrivateBookingURL(String id) {
+        // Construct the payload
+        var json = mapper.createObjectNode();
+
+        // The page scoped user ID of the person chatting with us
+        json.putObject("recipient").put("id", id);
+
+        json.putObject("message").putObject("attachment")
+                .put("type", "template").putObject("payload")
+                .put("template_type", "button")
+                .put("text", "Book Your Private Shopping Experience")
+                .putArray("buttons")
+                .addObject()
+                .put("type", "web_url")
+                //.put("messenger_extensions", true)
+                .put("url", "https://" + PRIVATE_SHOPPING_URL)
+                .put("title", "Book Now!")
+                .put("webview_height_ratio", "full");
+
+        log.debug("Post Payload for URL push {}", json::toPrettyString);
+        return track(post(getFaceBookURI(null, "me/messages"), json)
+                .thenApply(result -> {
+                    log.debug("FB Messgene URL send result is {}", result);
+                    if (result.findValue("message_id") != null) {
+                        log.debug("Call Succeeded in sending URL in FB Messenger");
+                        return true;
+                    }
+                    log.debug("Call FAILED to send URL in FB Messenger");
+                    return false;
+                })
+                .exceptionally(e -> {
+                    log.error("Facebook Messenger send failed", e);
+                    return false;
+                }));
+    }
+
+    /**
+     * Given a Facebook user Page Scoped ID get the users full name. Served from cache when we have looked it up
+     * recently, and concurrent requests for the same user share one Graph call.
+     *
+     * @param id
+     * @return future with name, "Unknown" if it can't be determined
+     */
+    public static CompletableFuture<String> getFacebookName(String id) {
+        final var now = Instant.now();
+        // Facebook unavailable, an old name beats none
+        final var cached = names.compute(id, (k, v) -> v != null && (v.expires.isAfter(now) || !breaker.isClosed()) ? v : new CachedName(fetchName(k), now.plus(NAME_TTL)));
+        // Don't cache failures, try again next time
+        cached.name.thenAccept(name -> {
+            if (UNKNOWN.equals(name)) {
+                names.remove(id, cached);
             }
+        });
+        return cached.name;
+    }
 
+    /**
+     * Given a Facebook user Page Scoped ID get the users full name, waiting at most maxWait.
+     *
+     * @param id
+     * @param maxWait
+     * @return name or "Unknown" if it can't be determined in time
+     */
+    public static String getFacebookName(String id, Duration maxWait) {
+        try {
+            return getFacebookName(id).get(maxWait.toMillis(), TimeUnit.MILLISECONDS);
         } catch (Exception e) {
-            log.error("Facebook Messenger send failed", e);
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
+            log.debug("Facebook name not available in time for {}", id);
+            return UNKNOWN;
         }
-        return false;
     }
 
     /**
-     * Given a Facebook user Page Scoped ID get the users full name
+     * Wait for any started operations (like the menu update) to complete, call before the Lambda returns so nothing
+     * is left frozen mid request.
      *
-     * @param id
-     * @return
+     * @param maxWait
      */
-    public static String getFacebookName(String id) {
-        HttpURLConnection connection = null;
+    public static void awaitPending(Duration maxWait) {
+        if (pending.isEmpty()) {
+            return;
+        }
         try {
-            connection = (HttpURLConnection) getFaceBookURL(id, null).openConnection();
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("Accept", "application/json");
+            CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new)).get(maxWait.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.error("Facebook operations did not complete in time", e);
+        }
+    }
 
-            final int responseCode = connection.getResponseCode();
-            log.debug("Facebook Call Response Code: " + responseCode);
+    private static CompletableFuture<String> fetchName(String id) {
+        return get(getFaceBookURI(id, null))
+                .thenApply(result -> {
+                    log.debug("FB Graph Query result is {}", result);
+
+                    // Check for name first
+                    if (result.findValue("name") != null) {
+                        return result.findValue("name").asText();
+                    }
+
+                    // Usually returns first and last
+                    if (result.findValue("first_name") != null && result.findValue("last_name") != null) {
+                        return result.findValue("first_name").asText() + " " + result.findValue("last_name").asText();
+                    }
+                    return UNKNOWN;
+                })
+                .exceptionally(e -> {
+                    log.error("Facebook user name retrieval error", e);
+                    return UNKNOWN;
+                });
+    }
 
-            final var result = mapper.readTree(connection.getInputStream());
-            log.debug("FB Graph Query result is " + result.toPrettyString());
+    /**
+     * Swap in a new client and open a connection to Graph with it. Call after a SnapStart restore, the connections held
+     * from before the snapshot are dead.
+     *
+     * @return completes once Graph answered (with any status)
+     */
+    static CompletableFuture<Void> reconnect() {
+        final var old = httpClient;
+        httpClient = newHttpClient();
+        old.shutdownNow();
+        return httpClient.sendAsync(HttpRequest.newBuilder(URI.create(GRAPH_URL))
+                .timeout(REQUEST_TIMEOUT)
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .build(), HttpResponse.BodyHandlers.discarding())
+                .thenAccept(res -> log.debug("Facebook connection open, HEAD returned {}", res.statusCode()));
+    }
 
-            // Check for name first
-            if (result.findValue("name") != null) {
-                return result.findValue("name").asText();
-            }
+    private static HttpClient newHttpClient() {
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(REQUEST_TIMEOUT)
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build();
+    }
 
-            // Usually returns first and last
-            if (result.findValue("first_name") != null && result.findValue("last_name") != null) {
-                return result.findValue("first_name").asText() + " " + result.findValue("last_name").asText();
-            }
+    private static <T> CompletableFuture<T> track(CompletableFuture<T> future) {
+        pending.add(future);
+        future.whenComplete((r, e) -> pending.remove(future));
+        return future;
+    }
 
+    private static CompletableFuture<JsonNode> post(URI uri, ObjectNode json) {
+        final HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder(uri)
+                    .timeout(REQUEST_TIMEOUT)
+                    .header("Content-Type", "application/json; utf-8")
+                    .header("Accept", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(mapper.writeValueAsBytes(json)))
+                    .build();
         } catch (Exception e) {
-            log.error("Facebook user name retrieval error", e);
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
+            return CompletableFuture.failedFuture(e);
         }
+        return send(request);
+    }
 
-        return "Unknown";
+    private static CompletableFuture<JsonNode> get(URI uri) {
+        return send(HttpRequest.newBuilder(uri)
+                .timeout(REQUEST_TIMEOUT)
+                .header("Accept", "application/json")
+                .GET()
+                .build());
+    }
+
+    private static CompletableFuture<JsonNode> send(HttpRequest request) {
+        return breaker.call(() -> httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()))
+                .thenApply(res -> {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Facebook Call Response Code: {}", res.statusCode());
+                    }
+                    try {
+                        return mapper.readTree(res.body());
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Invalid JSON from Facebook, status " + res.statusCode(), e);
+                    }
+                });
     }
 
     /**
-     * Get the base URL for Facebook Graph Operations with page access token incorporated.
+     * Get the base URI for Facebook Graph Operations with page access token incorporated.
      *
      * @param id
      * @param operation
      * @return
-     * @throws MalformedURLException
      */
-    private static URL getFaceBookURL(String id, String operation) throws MalformedURLException {
-        final var sb = new StringBuilder("https://graph.facebook.com/");
+    private static URI getFaceBookURI(String id, String operation) {
+        final var sb = new StringBuilder(GRAPH_URL);
 
         // Version of API we are calling
         sb.append("v24.0");
@@ -252,6 +365,17 @@ public class FaceBookOperations {
 
         sb.append("?access_token=").append(System.getenv("FB_PAGE_ACCESS_TOKEN"));
 
-        return new URL(sb.toString());
+        return URI.create(sb.toString());
+    }
+
+    private static class CachedName {
+
+        final CompletableFuture<String> name;
+        final Instant expires;
+
+        CachedName(CompletableFuture<String> name, Instant expires) {
+            this.name = name;
+            this.expires = expires;
+        }
     }
 }
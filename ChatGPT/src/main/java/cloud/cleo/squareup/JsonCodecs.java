@@ -0,0 +1,210 @@
+package cloud.cleo.squareup;
+
+import cloud.cleo.squareup.ChatGPTLambdaPinpoint.PinpointEvent;
+import cloud.cleo.squareup.json.DurationDeserializer;
+import cloud.cleo.squareup.json.DurationSerializer;
+import cloud.cleo.squareup.json.LocalDateDeserializer;
+import cloud.cleo.squareup.json.LocalDateSerializer;
+import cloud.cleo.squareup.json.LocalTimeDeserializer;
+import cloud.cleo.squareup.json.LocalTimeSerializer;
+import cloud.cleo.squareup.json.ZoneIdDeserializer;
+import cloud.cleo.squareup.json.ZonedSerializer;
+import cloud.cleo.squareup.openai.ChatCompletionRequest;
+import cloud.cleo.squareup.openai.ChatCompletionResult;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The one ObjectMapper for the ChatGPT Lambdas plus readers and writers for the types we handle every turn. Readers and
+ * writers resolve their (de)serializers once, and warm() runs sample payloads through them at SnapStart init so the
+ * restored snapshot already has everything built and Blackbird's generated accessors loaded.
+ *
+ * Never copy or reconfigure the mapper per call, build another reader/writer here instead.
+ *
+ * @author sjensen
+ */
+public final class JsonCodecs {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(JsonCodecs.class);
+
+    public final static ObjectMapper mapper = buildMapper(true);
+
+    public final static ObjectReader LEX_EVENT_READER = mapper.readerFor(LexV2Event.class);
+
+    public final static ObjectWriter LEX_EVENT_WRITER = mapper.writerFor(LexV2Event.class);
+
+    public final static ObjectReader LEX_RESPONSE_READER = mapper.readerFor(LexV2Response.class);
+
+    /**
+     * Nulls left out like the Lambda runtime serializer did when the handler returned the POJO, Lex rejects some
+     * explicit nulls. Separate mapper since inclusion can't be set on a writer, copied once here and never per call.
+     */
+    private final static ObjectMapper nonNullMapper = mapper.copy()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+    public final static ObjectWriter LEX_RESPONSE_WRITER = nonNullMapper.writerFor(LexV2Response.class);
+
+    public final static ObjectReader PINPOINT_EVENT_READER = mapper.readerFor(PinpointEvent.class);
+
+    /**
+     * OpenAI completion requests, unset options left out so OpenAI uses its defaults.
+     */
+    public final static ObjectWriter COMPLETION_REQUEST_WRITER = nonNullMapper.writerFor(ChatCompletionRequest.class);
+
+    /**
+     * OpenAI completion responses, OpenAI keeps adding fields so anything we don't model is skipped.
+     */
+    public final static ObjectReader COMPLETION_RESULT_READER = mapper.readerFor(ChatCompletionResult.class)
+            .without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    public final static String SAMPLE_LEX_EVENT = "/samples/lex-event-chime.json";
+
+    public final static String SAMPLE_PINPOINT_EVENT = "/samples/pinpoint-event.json";
+
+    public final static String SAMPLE_COMPLETION = "/samples/openai-completion.json";
+
+    /**
+     * Readers for the GPT function Request classes.
+     */
+    private final static Map<Class<?>, ObjectReader> requestReaders = new ConcurrentHashMap<>();
+
+    private JsonCodecs() {
+    }
+
+    /**
+     * Build a mapper configured the way all our JSON is handled. Only used to create the shared mapper (and by
+     * benchmarks to compare).
+     *
+     * @param blackbird register the Blackbird module
+     * @return
+     */
+    public static ObjectMapper buildMapper(boolean blackbird) {
+        final var m = new ObjectMapper();
+        m.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+
+        // Register module for Optional types
+        m.registerModule(new Jdk8Module());
+        // Register module for java.time types (LocalDate, LocalDateTime, etc.)
+        m.registerModule(new JavaTimeModule());
+
+        // Add module for inputs
+        SimpleModule module = new SimpleModule();
+
+        // Serializers
+        module.addSerializer(ZonedDateTime.class, new ZonedSerializer());
+        module.addSerializer(LocalTime.class, new LocalTimeSerializer());
+        module.addSerializer(LocalDate.class, new LocalDateSerializer());
+        module.addSerializer(Duration.class, new DurationSerializer());
+
+        // Deserializers for Input Types
+        module.addDeserializer(LocalTime.class, new LocalTimeDeserializer());
+        module.addDeserializer(LocalDate.class, new LocalDateDeserializer());
+        module.addDeserializer(ZoneId.class, new ZoneIdDeserializer());
+        module.addDeserializer(Duration.class, new DurationDeserializer());
+
+        m.registerModule(module);
+
+        if (blackbird) {
+            // Generated accessors (LambdaMetafactory) instead of reflection for bean properties
+            m.registerModule(new BlackbirdModule());
+        }
+        return m;
+    }
+
+    /**
+     * Reader for a function Request class, built once.
+     *
+     * @param requestClass
+     * @return
+     */
+    public static ObjectReader requestReader(Class<?> requestClass) {
+        return requestReaders.computeIfAbsent(requestClass, mapper::readerFor);
+    }
+
+    /**
+     * Run sample payloads through the readers and writers so all (de)serializers are built, call at SnapStart init.
+     * The function executor uses the shared mapper, so warming the Request readers builds the deserializers it will use
+     * as well.
+     *
+     * @param requestClasses GPT function Request classes
+     */
+    public static void warm(Collection<Class<?>> requestClasses) {
+        final var start = System.currentTimeMillis();
+        try {
+            final LexV2Event event = LEX_EVENT_READER.readValue(sample(SAMPLE_LEX_EVENT));
+            LEX_EVENT_WRITER.writeValueAsBytes(event);
+
+            final var response = LexV2Response.builder()
+                    .withSessionState(LexV2Event.SessionState.builder()
+                            .withSessionAttributes(event.getSessionState().getSessionAttributes())
+                            .withDialogAction(LexV2Event.DialogAction.builder().withType("ElicitIntent").build())
+                            .build())
+                    .withMessages(new LexV2Response.Message[]{LexV2Response.Message.builder()
+                        .withContentType("PlainText")
+                        .withContent("We have several pine scented candles.")
+                        .build()})
+                    .build();
+            LEX_RESPONSE_READER.readValue(LEX_RESPONSE_WRITER.writeValueAsBytes(response));
+
+            PINPOINT_EVENT_READER.readValue(sample(SAMPLE_PINPOINT_EVENT));
+
+            // Priming turns answer the completion in process, so the OpenAI types are warmed here
+            final ChatCompletionResult completion = COMPLETION_RESULT_READER.readValue(sample(SAMPLE_COMPLETION));
+            COMPLETION_REQUEST_WRITER.writeValueAsBytes(ChatCompletionRequest.builder()
+                    .withModel(completion.getModel())
+                    .withMessages(List.of(completion.getChoices().get(0).getMessage()))
+                    .build());
+        } catch (Exception e) {
+            log.error("JSON warm up of Lex/Pinpoint/OpenAI types failed", e);
+        }
+
+        for (var clazz : requestClasses) {
+            try {
+                requestReader(clazz).readValue("{}");
+            } catch (Exception e) {
+                // Some requests can't be empty, the deserializer is still built and cached
+                log.debug("Warm up of {} {}", clazz.getName(), e.getMessage());
+            }
+        }
+        log.debug("JSON warm up took {} ms", System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Load one of the sample payloads from the classpath.
+     *
+     * @param resource
+     * @return
+     * @throws IOException
+     */
+    public static byte[] sample(String resource) throws IOException {
+        try (InputStream in = JsonCodecs.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new FileNotFoundException(resource);
+            }
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package cloud.cleo.squareup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Very small metrics collector that publishes using CloudWatch Embedded Metric Format (EMF). Values are accumulated
+ * during an invocation and written as a single log line when the handler calls flush(), so there are no extra API calls
+ * made to CloudWatch.
+ *
+ * https://docs.aws.amazon.com/AmazonCloudWatch/latest/monitoring/CloudWatch_Embedded_Metric_Format_Specification.html
+ *
+ * @author sjensen
+ */
+public final class Metrics {
+
+    private final static String NAMESPACE = "SquareChatGPT";
+
+    private final static String FUNCTION_NAME = System.getenv("AWS_LAMBDA_FUNCTION_NAME");
+
+    // Plain mapper, we only ever write simple maps and lists
+    private final static ObjectMapper mapper = new ObjectMapper();
+
+    private final static Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private final static Map<String, ConcurrentLinkedQueue<Long>> timers = new ConcurrentHashMap<>();
+
+    private final static Map<String, Long> gauges = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Add one to a counter.
+     *
+     * @param name
+     */
+    public static void increment(String name) {
+        add(name, 1L);
+    }
+
+    /**
+     * Add a value to a counter.
+     *
+     * @param name
+     * @param value
+     */
+    public static void add(String name, long value) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(value);
+    }
+
+    /**
+     * Record a duration in milliseconds, every value recorded is published so CloudWatch can compute percentiles.
+     *
+     * @param name
+     * @param millis
+     */
+    public static void recordMillis(String name, long millis) {
+        timers.computeIfAbsent(name, k -> new ConcurrentLinkedQueue<>()).add(millis);
+    }
+
+    /**
+     * Set a point in time value (like circuit breaker state), last value set wins.
+     *
+     * @param name
+     * @param value
+     */
+    public static void gauge(String name, long value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Throw away counters and timers accumulated so far without publishing, used after SnapStart priming so the
+     * synthetic turns don't show up in the first real invocation's metrics.
+     */
+    public static void discard() {
+        counters.values().forEach(LongAdder::reset);
+        timers.values().forEach(ConcurrentLinkedQueue::clear);
+    }
+
+    /**
+     * Write everything accumulated since the last flush as one EMF log line and reset. Call at the end of each
+     * invocation.
+     */
+    public static void flush() {
+        final var values = new LinkedHashMap<String, Object>();
+        final var defs = new ArrayList<Map<String, String>>();
+
+        counters.forEach((name, adder) -> {
+            final long v = adder.sumThenReset();
+            if (v != 0L) {
+                values.put(name, v);
+                defs.add(Map.of("Name", name, "Unit", "Count"));
+            }
+        });
+        timers.forEach((name, queue) -> {
+            final var list = new ArrayList<Long>();
+            Long v;
+            while ((v = queue.poll()) != null) {
+                list.add(v);
+            }
+            if (!list.isEmpty()) {
+                values.put(name, list);
+                defs.add(Map.of("Name", name, "Unit", "Milliseconds"));
+            }
+        });
+        gauges.forEach((name, v) -> {
+            values.put(name, v);
+            defs.add(Map.of("Name", name, "Unit", "None"));
+        });
+
+        if (defs.isEmpty()) {
+            return;
+        }
+
+        final var root = new LinkedHashMap<String, Object>();
+        root.put("_aws", Map.of(
+                "Timestamp", System.currentTimeMillis(),
+                "CloudWatchMetrics", List.of(Map.of(
+                        "Namespace", NAMESPACE,
+                        "Dimensions", List.of(List.of("FunctionName")),
+                        "Metrics", defs))));
+        root.put("FunctionName", FUNCTION_NAME != null ? FUNCTION_NAME : "local");
+        root.putAll(values);
+
+        try {
+            // EMF must be a raw line on stdout, not wrapped by the log layout
+            System.out.println(mapper.writeValueAsString(root));
+        } catch (Exception e) {
+            // Never let metrics break a request
+        }
+    }
+}
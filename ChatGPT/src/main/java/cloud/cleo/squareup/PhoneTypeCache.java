@@ -0,0 +1,172 @@
+package cloud.cleo.squareup;
+
+import static cloud.cleo.squareup.AwsClients.crtAsyncHttpClient;
+import static cloud.cleo.squareup.AwsClients.enhancedClient;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import lombok.Data;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbAsyncTable;
+import software.amazon.awssdk.enhanced.dynamodb.Key;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbBean;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbPartitionKey;
+import software.amazon.awssdk.services.pinpoint.PinpointAsyncClient;
+
+/**
+ * Caches the Pinpoint phone type (MOBILE, LANDLINE, VOIP, INVALID, PREPAID, OTHER) for numbers, since every lookup costs
+ * money and adds latency in the middle of a turn.
+ *
+ * Tier one is a bounded in memory LRU holding the lookup futures, so concurrent requests for the same number share one
+ * lookup. Tier two is a DynamoDB table with a long TTL so results survive new containers. Every answer Pinpoint gives is
+ * stored, including INVALID and LANDLINE, since those are the numbers we are most likely to be asked about again. Failed
+ * lookups are not cached.
+ *
+ * Pinpoint calls go through a circuit breaker. While it's open lookups fail right away, unless an expired record is on
+ * the table, then that's used since a number's type rarely changes.
+ *
+ * @author sjensen
+ */
+public final class PhoneTypeCache {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(PhoneTypeCache.class);
+
+    /**
+     * Numbers don't change type often, a ported number is about the only case.
+     */
+    private final static Duration TTL = Duration.ofDays(180);
+
+    private final static int MAX_ENTRIES = 10_000;
+
+    private final static String TABLE_NAME = System.getenv("PHONE_TYPE_TABLE_NAME");
+
+    private final static PinpointAsyncClient pinpointAsyncClient = PinpointAsyncClient.builder()
+            .httpClient(crtAsyncHttpClient)
+            .build();
+
+    private final static CircuitBreaker breaker = new CircuitBreaker("Pinpoint", Duration.ofSeconds(2));
+
+    private final static DynamoDbAsyncTable<PhoneTypeRecord> table = TABLE_NAME == null || TABLE_NAME.isBlank() ? null
+            : enhancedClient.table(TABLE_NAME, TableSchema.fromBean(PhoneTypeRecord.class));
+
+    private final static PhoneTypeCache me = new PhoneTypeCache();
+
+    /**
+     * Access ordered map, so the least recently used number is dropped when full.
+     */
+    private final Map<String, CompletableFuture<String>> cache = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<String>> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    });
+
+    private PhoneTypeCache() {
+        log.debug("Phone type table is {}", table != null ? TABLE_NAME : "not configured, memory cache only");
+    }
+
+    public static PhoneTypeCache getInstance() {
+        return me;
+    }
+
+    /**
+     * Start a lookup if we don't already have or are getting the result, so it's ready by the time it's needed.
+     *
+     * @param phoneNumber E164 number
+     */
+    public void prefetch(String phoneNumber) {
+        if (phoneNumber != null && !phoneNumber.isBlank()) {
+            getPhoneType(phoneNumber);
+        }
+    }
+
+    /**
+     * Get the phone type for a number.
+     *
+     * @param phoneNumber E164 number
+     * @return future that completes with the Pinpoint phone type
+     */
+    public CompletableFuture<String> getPhoneType(String phoneNumber) {
+        final var future = cache.computeIfAbsent(phoneNumber, this::lookup);
+        // Don't hold onto failures, next request should try again
+        future.whenComplete((t, e) -> {
+            if (e != null) {
+                cache.remove(phoneNumber, future);
+            }
+        });
+        return future;
+    }
+
+    private CompletableFuture<String> lookup(String phoneNumber) {
+        if (table == null) {
+            return validate(phoneNumber);
+        }
+        final var key = Key.builder().partitionValue(phoneNumber).build();
+        return table.getItem(key)
+                .exceptionally(e -> {
+                    log.error("Phone type table read failed, going to Pinpoint", e);
+                    return null;
+                })
+                .thenCompose(rec -> {
+                    if (rec != null && rec.getTtl() != null && rec.getTtl() > Instant.now().getEpochSecond()) {
+                        log.debug("Using stored phone type {} for {}", rec.getPhoneType(), phoneNumber);
+                        return CompletableFuture.completedFuture(rec.getPhoneType());
+                    }
+                    return validate(phoneNumber).thenApply(type -> {
+                        final var newRec = new PhoneTypeRecord();
+                        newRec.setPhoneNumber(phoneNumber);
+                        newRec.setPhoneType(type);
+                        newRec.setTtl(Instant.now().plus(TTL).getEpochSecond());
+                        // No need to wait on the write
+                        table.putItem(newRec).exceptionally(e -> {
+                            log.error("Phone type table write failed", e);
+                            return null;
+                        });
+                        return type;
+                    }).exceptionallyCompose(e -> {
+                        if (rec != null && rec.getPhoneType() != null) {
+                            log.debug("Pinpoint unavailable, using expired phone type {} for {}", rec.getPhoneType(), phoneNumber);
+                            return CompletableFuture.completedFuture(rec.getPhoneType());
+                        }
+                        return CompletableFuture.failedFuture(e);
+                    });
+                });
+    }
+
+    private CompletableFuture<String> validate(String phoneNumber) {
+        log.debug("Validating {} with Pinpoint", phoneNumber);
+        return breaker.call(() -> pinpointAsyncClient
+                .phoneNumberValidate(t -> t.numberValidateRequest(r -> r.isoCountryCode("US").phoneNumber(phoneNumber))))
+                .thenApply(res -> {
+                    final var nvr = res.numberValidateResponse();
+                    log.debug("Pinpoint returned {} carrier {} for {}", nvr.phoneType(), nvr.carrier(), phoneNumber);
+                    return nvr.phoneType() != null ? nvr.phoneType() : "INVALID";
+                });
+    }
+
+    /**
+     * Stored phone type record.
+     */
+    @DynamoDbBean
+    @Data
+    public static class PhoneTypeRecord {
+
+        private String phoneNumber;
+        private String phoneType;
+        /**
+         * Unix timestamp when Dynamo should delete the record.
+         */
+        private Long ttl;
+
+        @DynamoDbPartitionKey
+        public String getPhoneNumber() {
+            return phoneNumber;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package cloud.cleo.squareup;
+
+import cloud.cleo.squareup.ChatGPTLambdaPinpoint.PinpointEvent;
+import cloud.cleo.squareup.common.Tracing;
+import cloud.cleo.squareup.openai.ChatCompletionChoice;
+import cloud.cleo.squareup.openai.ChatCompletionRequest;
+import cloud.cleo.squareup.openai.ChatCompletionResult;
+import cloud.cleo.squareup.openai.ChatFunctionCall;
+import cloud.cleo.squareup.openai.ChatMessage;
+import cloud.cleo.squareup.openai.ChatMessageRole;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.crac.Context;
+import org.crac.Core;
+import org.crac.Resource;
+import software.amazon.awssdk.enhanced.dynamodb.Key;
+
+/**
+ * SnapStart priming. Before the snapshot is taken, run full GPT turns (voice and text) through processGPT with the
+ * session load/save and the OpenAI call answered in process, so the class loading and JIT for the whole turn (Lex and
+ * Pinpoint JSON, session schema, function executor and a function call, response building) is done before the
+ * snapshot rather than on the first caller after a restore.
+ *
+ * After a restore all outbound connections are re-established (see Connections) before the hook returns, then the
+ * first turn is timed and published as SnapStart.FirstTurnTime and SnapStart.RestoreToFirstTurn.
+ *
+ * PRIMING_TURNS sets how many of each turn to run, default 20.
+ *
+ * @author sjensen
+ */
+final class Priming extends ChatGPTLambda implements Resource {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(Priming.class);
+
+    private final static int TURNS = Integer.parseInt(System.getenv().getOrDefault("PRIMING_TURNS", "20"));
+
+    /**
+     * Function the synthetic turn calls, answered from memory so it's safe to run before the snapshot.
+     */
+    private final static String PRIMING_FUNCTION = "store_hours";
+
+    /**
+     * Most the restore hook waits for connections to open, SnapStart allows hooks 10 seconds.
+     */
+    private final static Duration RECONNECT_WAIT = Duration.ofSeconds(3);
+
+    // CRaC only holds weak references, so this has to stay reachable
+    private final static Priming me = new Priming();
+
+    /**
+     * nanoTime of the last restore, 0 once the first turn after it has been recorded (or we never restored).
+     */
+    private static volatile long restoredAt;
+
+    private Priming() {
+    }
+
+    /**
+     * Register for checkpoint/restore notification, call at init.
+     */
+    static void register() {
+        Core.getGlobalContext().register(me);
+    }
+
+    @Override
+    public void beforeCheckpoint(Context<? extends Resource> context) throws Exception {
+        final var start = System.currentTimeMillis();
+        final var lexSample = JsonCodecs.sample(JsonCodecs.SAMPLE_LEX_EVENT);
+        final var pinpointSample = JsonCodecs.sample(JsonCodecs.SAMPLE_PINPOINT_EVENT);
+        for (int i = 0; i < TURNS; i++) {
+            try {
+                final LexV2Event lex = JsonCodecs.LEX_EVENT_READER.readValue(lexSample);
+                // No caller number, so no Pinpoint or profile lookups go out
+                lex.getSessionState().getSessionAttributes().remove("callingNumber");
+                JsonCodecs.LEX_RESPONSE_WRITER.writeValueAsBytes(processGPT(new LexV2EventWrapper(lex)));
+
+                final PinpointEvent ppe = JsonCodecs.PINPOINT_EVENT_READER.readValue(pinpointSample);
+                JsonCodecs.LEX_RESPONSE_WRITER.writeValueAsBytes(processGPT(new LexV2EventWrapper(ppe)));
+            } catch (Exception e) {
+                // Priming is best effort, never block the snapshot
+                log.error("Priming turn failed", e);
+                break;
+            }
+        }
+        Metrics.discard();
+        Tracing.discard();
+        log.info("Primed {} voice and text turns in {} ms", TURNS, System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public void afterRestore(Context<? extends Resource> context) throws Exception {
+        final var restored = System.nanoTime();
+        restoredAt = restored;
+        Connections.refresh(restored, RECONNECT_WAIT);
+    }
+
+    /**
+     * Call at the end of every turn, the first one after a restore is recorded.
+     *
+     * @param turnStart nanoTime the turn started
+     */
+    static void turnCompleted(long turnStart) {
+        final var restored = restoredAt;
+        if (restored == 0L) {
+            return;
+        }
+        restoredAt = 0L;
+        final var now = System.nanoTime();
+        Metrics.recordMillis("SnapStart.FirstTurnTime", (now - turnStart) / 1_000_000L);
+        Metrics.recordMillis("SnapStart.RestoreToFirstTurn", (now - restored) / 1_000_000L);
+    }
+
+    /**
+     * Every priming turn is a new session.
+     */
+    @Override
+    protected ChatGPTSessionState loadSession(Key key) {
+        return null;
+    }
+
+    /**
+     * Call the priming function once, then answer.
+     */
+    @Override
+    protected ChatCompletionResult createCompletion(ChatCompletionRequest request, Instant deadline, boolean hedge) {
+        final var last = request.getMessages().get(request.getMessages().size() - 1);
+        final var offered = request.getFunctions() != null && request.getFunctions().stream()
+                .anyMatch(f -> PRIMING_FUNCTION.equals(f.getName()));
+
+        final ChatMessage message;
+        if (offered && !ChatMessageRole.FUNCTION.value().equals(last.getRole())) {
+            message = new ChatMessage(ChatMessageRole.ASSISTANT.value(), null);
+            message.setFunctionCall(new ChatFunctionCall(PRIMING_FUNCTION, mapper.createObjectNode()));
+        } else {
+            message = new ChatMessage(ChatMessageRole.ASSISTANT.value(), "We have several pine scented candles, anything else I can help with?");
+        }
+
+        final var choice = new ChatCompletionChoice();
+        choice.setIndex(0);
+        choice.setMessage(message);
+        choice.setFinishReason(message.getFunctionCall() != null ? "function_call" : "stop");
+        final var result = new ChatCompletionResult();
+        result.setChoices(List.of(choice));
+        return result;
+    }
+
+    /**
+     * Map to the Dynamo item like a real save would, but don't write it.
+     */
+    @Override
+    protected void saveSession(ChatGPTSessionState session, Key key, int turnStart) {
+        session.incrementCounter();
+        schema.itemToMap(session, true);
+    }
+}
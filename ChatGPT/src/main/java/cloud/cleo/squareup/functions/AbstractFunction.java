@@ -1,22 +1,33 @@
 package cloud.cleo.squareup.functions;
 
-import cloud.cleo.squareup.ChatGPTLambda;
+import cloud.cleo.squareup.CallerProfile;
+import cloud.cleo.squareup.CallerProfileService;
+import cloud.cleo.squareup.JsonCodecs;
 import cloud.cleo.squareup.enums.ChannelPlatform;
-import static cloud.cleo.squareup.ChatGPTLambda.crtAsyncHttpClient;
 import cloud.cleo.squareup.LexV2EventWrapper;
+import cloud.cleo.squareup.PhoneTypeCache;
+import cloud.cleo.squareup.common.SquareEnvironment;
+import cloud.cleo.squareup.openai.ChatFunction;
+import cloud.cleo.squareup.openai.FunctionExecutor;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.squareup.square.AsyncSquareClient;
-import com.squareup.square.core.Environment;
-import com.theokanning.openai.completion.chat.ChatFunction;
-import com.theokanning.openai.service.FunctionExecutor;
+import com.squareup.square.types.Customer;
+import com.squareup.square.types.CustomerFilter;
+import com.squareup.square.types.CustomerQuery;
+import com.squareup.square.types.CustomerTextFilter;
+import com.squareup.square.types.SearchCustomersRequest;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Modifier;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -28,8 +39,6 @@ import lombok.Setter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.reflections.Reflections;
-import software.amazon.awssdk.services.pinpoint.PinpointAsyncClient;
-import software.amazon.awssdk.services.pinpoint.model.NumberValidateResponse;
 
 /**
  * Base class for ChatGPT functions
@@ -42,18 +51,19 @@ public abstract class AbstractFunction<T> implements Cloneable {
     // Initialize the Log4j logger.
     protected static final Logger log = LogManager.getLogger(AbstractFunction.class);
 
-    // Use the GPT mapper that has modules defined
-    protected final static ObjectMapper mapper = ChatGPTLambda.mapper;
+    // Use the GPT mapper that has modules defined (from JsonCodecs, so using a function doesn't init ChatGPTLambda)
+    protected final static ObjectMapper mapper = JsonCodecs.mapper;
 
     private static final Map<String, AbstractFunction> functions = new HashMap<>();
     private static boolean inited = false;
 
-    private final static PinpointAsyncClient pinpointAsyncClient = PinpointAsyncClient.builder()
-            .httpClient(crtAsyncHttpClient)
-            .build();
-    
     protected static final ExecutorService VIRTUAL_THREAD_EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
 
+    /**
+     * Told to GPT when an answer comes from cached data because the service behind it is unavailable.
+     */
+    protected final static String STALE_DATA_NOTICE = "Square is not reachable right now, data may be stale";
+
     /**
      * When user is interacting via Voice, we need the calling number to send SMS to them.
      */
@@ -82,21 +92,17 @@ public abstract class AbstractFunction<T> implements Cloneable {
     static {
         final var key = System.getenv("SQUARE_API_KEY");
         final var loc = System.getenv("SQUARE_LOCATION_ID");
-        final var senv = System.getenv("SQUARE_ENVIRONMENT");
 
         squareEnabled = !((loc == null || loc.isBlank() || loc.equalsIgnoreCase("DISABLED")) || (key == null || key.isBlank() || key.equalsIgnoreCase("DISABLED")));
-        log.debug("Square Enabled = " + squareEnabled);
+        log.debug("Square Enabled = {}", squareEnabled);
 
         // If square enabled, then configure the client
         if (squareEnabled) {
             squareClient = AsyncSquareClient.builder()
                     .token(key)
-                    .environment(switch (senv) {
-                default ->
-                    Environment.PRODUCTION;
-                case "SANDBOX", "sandbox" ->
-                    Environment.SANDBOX;
-            }).build();
+                    .environment(SquareEnvironment.fromEnvironment())
+                    .httpClient(SquareEnvironment.httpClient())
+                    .build();
         } else {
             squareClient = null;
         }
@@ -112,7 +118,8 @@ public abstract class AbstractFunction<T> implements Cloneable {
     }
 
     /**
-     * Square client to make API Calls.
+     * Square client to make API Calls. Calls should always be made through SquareGateway so they are rate limited and
+     * retried consistently.
      *
      * @return client or null if not enabled
      */
@@ -120,6 +127,46 @@ public abstract class AbstractFunction<T> implements Cloneable {
         return squareClient;
     }
 
+    /**
+     * Result from cached Square data, flagged for GPT when Square isn't answering right now so it can tell the caller
+     * the information might be out of date. Objects get a data_notice field, anything else is wrapped as results.
+     *
+     * @param result
+     * @return
+     */
+    protected static Object fromSquareCache(Object result) {
+        if (SquareGateway.isAvailable()) {
+            return result;
+        }
+        if (result instanceof ObjectNode json) {
+            return json.put("data_notice", STALE_DATA_NOTICE);
+        }
+        final var json = mapper.createObjectNode().put("data_notice", STALE_DATA_NOTICE);
+        json.set("results", mapper.valueToTree(result));
+        return json;
+    }
+
+    /**
+     * Look up a Square Customer by phone number.
+     *
+     * @param phoneNumber E164 number
+     * @return future with the first matching customer, empty if none or Square not enabled
+     */
+    public static CompletableFuture<Optional<Customer>> findCustomerByPhone(String phoneNumber) {
+        if (!squareEnabled || phoneNumber == null) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        return SquareGateway.call(SquareGateway.Endpoint.CUSTOMERS, "phone:" + phoneNumber, () -> squareClient.customers().search(SearchCustomersRequest.builder()
+                .query(CustomerQuery.builder()
+                        .filter(CustomerFilter.builder()
+                                .phoneNumber(CustomerTextFilter.builder().exact(phoneNumber).build())
+                                .build())
+                        .build())
+                .limit(1L) // Only request one match, very unlikely more than one match
+                .build()))
+                .thenApply(res -> res.getCustomers().orElse(List.of()).stream().findFirst());
+    }
+
     /**
      * Register all the functions in this package. This should be called by a top level object that is being initialized
      * like a lambda, so during SNAPSTART init, all the functions will be inited as well.
@@ -196,6 +243,18 @@ public abstract class AbstractFunction<T> implements Cloneable {
         return new FunctionExecutor(list.stream().map(AbstractFunction::getChatFunction).toList());
     }
 
+    /**
+     * Request classes of all the registered functions, so their deserializers can be built at init.
+     *
+     * @return
+     */
+    public static List<Class<?>> getRequestClasses() {
+        if (!inited) {
+            init();
+        }
+        return functions.values().stream().map(f -> (Class<?>) f.getRequestClass()).distinct().toList();
+    }
+
     /**
      * Obtain function given it's name (null if not found).
      *
@@ -240,13 +299,14 @@ public abstract class AbstractFunction<T> implements Cloneable {
      * @return
      */
     private ChatFunction getChatFunction() {
-        return ChatFunction.builder()
-                .description(getDescription())
-                .name(getName())
-                .executor(getRequestClass(), getExecutor())
-                .build();
+        return ChatFunction.of(getName(), getDescription(), getRequestClass(), getExecutor());
     }
 
+    /**
+     * Most we will hold up a function waiting for the caller profile read.
+     */
+    private static final Duration PROFILE_WAIT = Duration.ofMillis(250);
+
     private static final Pattern US_E164_PATTERN = Pattern.compile("^\\+1[2-9]\\d{2}[2-9]\\d{6}$");
 
     /**
@@ -262,13 +322,21 @@ public abstract class AbstractFunction<T> implements Cloneable {
     }
 
     /**
-     * Store this in case we try and send SMS twice ever, don't want to pay for the lookup again since it costs money.
-     * AWS usually calls the same Lambda, but anyways no harm to try and cache to save a couple cents here and there.
+     * Profile for the caller built when the call started, the read is started at the top of the turn so this is normally
+     * already in memory.
+     *
+     * @return profile or null if not available
      */
-    private static final Map<String, NumberValidateResponse> validatePhoneMap = new HashMap<>();
+    protected CallerProfile getCallerProfile() {
+        if (!hasValidUSE164Number()) {
+            return null;
+        }
+        return CallerProfileService.getInstance().getProfile(callingNumber, PROFILE_WAIT);
+    }
 
     /**
-     * Is the callers number a valid Number we can send SMS to. We won't attempt to send to Voip or Landline callers
+     * Is the callers number a valid Number we can send SMS to. We won't attempt to send to Voip or Landline callers.
+     * The lookup is normally already done (or running) since it's started at the beginning of the turn.
      *
      * @return
      */
@@ -277,22 +345,10 @@ public abstract class AbstractFunction<T> implements Cloneable {
             return false;
         }
         try {
-            NumberValidateResponse numberValidateResponse;
-            log.debug("Validating " + callingNumber + "  with Pinpoint");
-            if (!validatePhoneMap.containsKey(callingNumber)) {
-                // First lookup, call pinpoint
-                numberValidateResponse = pinpointAsyncClient
-                        .phoneNumberValidate(t -> t.numberValidateRequest(r -> r.isoCountryCode("US").phoneNumber(callingNumber)))
-                        .join().numberValidateResponse();
-                log.debug("Pinpoint returned " + convertPinpointResposeToJson(numberValidateResponse));
-                // Add to cache
-                validatePhoneMap.put(callingNumber, numberValidateResponse);
-            } else {
-                numberValidateResponse = validatePhoneMap.get(callingNumber);
-                log.debug("Using cached Pinpoint response " + convertPinpointResposeToJson(numberValidateResponse));
-            }
+            final var phoneType = PhoneTypeCache.getInstance().getPhoneType(callingNumber).join();
+            log.debug("Phone type for {} is {}", callingNumber, phoneType);
             // The description of the phone type. Valid values are: MOBILE, LANDLINE, VOIP, INVALID, PREPAID, and OTHER.
-            return switch (numberValidateResponse.phoneType()) {
+            return switch (phoneType) {
                 case "MOBILE", "PREPAID" ->
                     true;
                 default ->
@@ -307,10 +363,6 @@ public abstract class AbstractFunction<T> implements Cloneable {
         }
     }
 
-    private String convertPinpointResposeToJson(NumberValidateResponse res) {
-        return mapper.valueToTree(mapper.convertValue(res.toBuilder(), NumberValidateResponse.serializableBuilderClass())).toPrettyString();
-    }
-
     /**
      * Given a String with several words, return all combinations of that in specific order for passing to searches.
      *
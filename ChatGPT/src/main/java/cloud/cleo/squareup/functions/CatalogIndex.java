@@ -0,0 +1,496 @@
+package cloud.cleo.squareup.functions;
+
+import static cloud.cleo.squareup.functions.AbstractFunction.getSquareClient;
+import static cloud.cleo.squareup.functions.AbstractFunction.isSquareEnabled;
+import com.squareup.square.types.CatalogItem;
+import com.squareup.square.types.CatalogObject;
+import com.squareup.square.types.CatalogObjectType;
+import com.squareup.square.types.SearchCatalogObjectsRequest;
+import com.squareup.square.types.SearchCatalogObjectsResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.Getter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * In memory inverted index of the Square Catalog (item names, variations, categories and descriptions). The full
+ * catalog is loaded once at SnapStart init and then refreshed incrementally (begin_time) in the background, so item
+ * searches never have to call Square while the caller is waiting.
+ *
+ * @author sjensen
+ */
+public final class CatalogIndex {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(CatalogIndex.class);
+
+    /**
+     * How old the index can get before a background incremental refresh is kicked off.
+     */
+    private final static Duration REFRESH_INTERVAL = Duration.ofMinutes(10);
+
+    /**
+     * When the initial load failed, how often to try again.
+     */
+    private final static Duration RETRY_INTERVAL = Duration.ofMinutes(1);
+
+    /**
+     * Square limits search pages to 1000 objects.
+     */
+    private final static int PAGE_SIZE = 1000;
+
+    private final static CatalogIndex me = new CatalogIndex();
+
+    /**
+     * Current immutable view of the index, swapped out as a whole on every refresh.
+     */
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+    /**
+     * When we last tried to refresh, so a failing Square API isn't hit on every search.
+     */
+    private volatile Instant lastAttempt = Instant.EPOCH;
+
+    private CatalogIndex() {
+        if (isSquareEnabled()) {
+            lastAttempt = Instant.now();
+            try {
+                refresh();
+            } catch (Exception e) {
+                // Searches will fall back to live Square calls until a refresh succeeds
+                log.error("Initial Catalog index load failed", e);
+            }
+        }
+    }
+
+    public static CatalogIndex getInstance() {
+        return me;
+    }
+
+    /**
+     * Has the catalog been loaded at least once.
+     *
+     * @return
+     */
+    public boolean isLoaded() {
+        return snapshot.loadedAt != null;
+    }
+
+    /**
+     * Number of items in the index.
+     *
+     * @return
+     */
+    public int size() {
+        return snapshot.items.size();
+    }
+
+    /**
+     * Search the index, results are ranked best match first.
+     *
+     * @param text search text
+     * @param limit max number of results
+     * @return ranked results, empty if nothing matched
+     */
+    public List<Result> search(String text, int limit) {
+        final var snap = snapshot;
+        refreshIfStale(snap);
+
+        final var queryTerms = tokenize(text);
+        if (queryTerms.isEmpty()) {
+            return List.of();
+        }
+
+        final Map<String, Double> scores = new HashMap<>();
+        final Map<String, Integer> matched = new HashMap<>();
+        for (var term : queryTerms) {
+            // Best score this term contributes to each item
+            final Map<String, Double> termScores = new HashMap<>();
+            scoreTerm(snap, term, termScores);
+            termScores.forEach((id, s) -> {
+                scores.merge(id, s, Double::sum);
+                matched.merge(id, 1, Integer::sum);
+            });
+        }
+
+        final var phrase = String.join(" ", queryTerms);
+        final var results = new ArrayList<Result>(scores.size());
+        scores.forEach((id, s) -> {
+            final var item = snap.items.get(id);
+            // Coverage of the full phrase matters more than any single strong token
+            final double coverage = (double) matched.get(id) / queryTerms.size();
+            final var exact = String.join(" ", tokenize(item.name)).contains(phrase);
+            results.add(new Result(item.name, s * coverage + (exact ? PHRASE_BONUS : 0.0), coverage, exact));
+        });
+
+        results.sort(RANKING);
+        return results.size() > limit ? List.copyOf(results.subList(0, limit)) : results;
+    }
+
+    /**
+     * Score an item name against search text without the index (used when results come from Square directly).
+     *
+     * @param text search text
+     * @param name item name
+     * @return scored result, coverage of 0 means no terms matched
+     */
+    public static Result score(String text, String name) {
+        final var queryTerms = tokenize(text);
+        final var nameTerms = tokenize(name);
+        if (queryTerms.isEmpty()) {
+            return new Result(name, 0.0, 0.0, false);
+        }
+        final var nameSet = new HashSet<>(nameTerms);
+        final long matched = queryTerms.stream().filter(nameSet::contains).count();
+        final double coverage = (double) matched / queryTerms.size();
+        final var exact = String.join(" ", nameTerms).contains(String.join(" ", queryTerms));
+        return new Result(name, matched * Field.NAME.weight * coverage + (exact ? PHRASE_BONUS : 0.0), coverage, exact);
+    }
+
+    /**
+     * Best match quality first, then highest score.
+     */
+    public final static Comparator<Result> RANKING = Comparator.comparing(Result::getMatchQuality)
+            .thenComparing(Comparator.comparingDouble(Result::getScore).reversed());
+
+    /**
+     * Score a single query term against the index, exact term first, then prefix, then fuzzy.
+     */
+    private static void scoreTerm(Snapshot snap, String term, Map<String, Double> termScores) {
+        addPostings(snap.postings.get(term), 1.0, termScores);
+
+        if (term.length() >= 3) {
+            snap.postings.subMap(term, false, term + Character.MAX_VALUE, false)
+                    .values().forEach(p -> addPostings(p, PREFIX_WEIGHT, termScores));
+        }
+
+        if (termScores.isEmpty() && term.length() >= 4) {
+            // Only pay for edit distance when nothing else matched (typos, speech to text mistakes)
+            final int maxEdits = term.length() >= 8 ? 2 : 1;
+            snap.postings.forEach((t, p) -> {
+                if (Math.abs(t.length() - term.length()) <= maxEdits && editDistance(t, term, maxEdits) <= maxEdits) {
+                    addPostings(p, FUZZY_WEIGHT, termScores);
+                }
+            });
+        }
+    }
+
+    private static void addPostings(Map<String, Field> postings, double matchWeight, Map<String, Double> termScores) {
+        if (postings == null) {
+            return;
+        }
+        postings.forEach((id, field) -> termScores.merge(id, field.weight * matchWeight, Math::max));
+    }
+
+    private void refreshIfStale(Snapshot snap) {
+        if (!isSquareEnabled() || lastAttempt.plus(snap.loadedAt == null ? RETRY_INTERVAL : REFRESH_INTERVAL).isAfter(Instant.now())) {
+            return;
+        }
+        if (refreshing.compareAndSet(false, true)) {
+            lastAttempt = Instant.now();
+            Thread.startVirtualThread(() -> {
+                try {
+                    refresh();
+                } catch (Exception e) {
+                    log.error("Catalog index refresh failed, keeping current index", e);
+                } finally {
+                    refreshing.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Load the catalog, full load if we have nothing yet, otherwise only the objects changed since the last load.
+     */
+    private synchronized void refresh() {
+        final var current = snapshot;
+        final var items = new HashMap<>(current.items);
+        final var categories = new HashMap<>(current.categories);
+        final var incremental = current.latestTime != null;
+
+        String latestTime = current.latestTime;
+        String cursor = null;
+        int count = 0;
+        do {
+            final var req = SearchCatalogObjectsRequest.builder()
+                    .objectTypes(List.of(CatalogObjectType.ITEM, CatalogObjectType.CATEGORY))
+                    .includeDeletedObjects(incremental)
+                    .limit(PAGE_SIZE);
+            if (incremental) {
+                req.beginTime(current.latestTime);
+            }
+            if (cursor != null) {
+                req.cursor(cursor);
+            }
+            final var request = req.build();
+            final SearchCatalogObjectsResponse res = SquareGateway.call(SquareGateway.Endpoint.CATALOG, "index:" + current.latestTime + ":" + cursor,
+                    () -> getSquareClient().catalog().search(request)).join();
+
+            for (var obj : res.getObjects().orElse(List.of())) {
+                apply(obj, items, categories);
+                count++;
+            }
+            if (res.getLatestTime().isPresent()) {
+                latestTime = res.getLatestTime().get();
+            }
+            cursor = res.getCursor().orElse(null);
+        } while (cursor != null);
+
+        snapshot = Snapshot.build(items, categories, latestTime);
+        log.debug("Catalog index {} with {} changed objects, now {} items and {} terms",
+                incremental ? "refreshed" : "loaded", count, items.size(), snapshot.postings.size());
+    }
+
+    private static void apply(CatalogObject obj, Map<String, ItemDoc> items, Map<String, String> categories) {
+        if (obj.getItem().isPresent()) {
+            final var item = obj.getItem().get();
+            if (item.getIsDeleted().orElse(false) || item.getItemData().isEmpty()) {
+                items.remove(item.getId());
+            } else {
+                items.put(item.getId(), new ItemDoc(item.getItemData().get()));
+            }
+        } else if (obj.getCategory().isPresent()) {
+            final var cat = obj.getCategory().get();
+            final var catId = cat.getId().orElse(null);
+            if (catId == null) {
+                return;
+            }
+            if (cat.getIsDeleted().orElse(false) || cat.getCategoryData().isEmpty()) {
+                categories.remove(catId);
+            } else {
+                categories.put(catId, cat.getCategoryData().get().getName().orElse(""));
+            }
+        }
+    }
+
+    /**
+     * Lower case, split on anything not a letter or digit, then stem.
+     *
+     * @param text
+     * @return
+     */
+    static List<String> tokenize(String text) {
+        if (text == null || text.isBlank()) {
+            return List.of();
+        }
+        final var terms = new ArrayList<String>();
+        for (var t : text.toLowerCase().split("[^\\p{L}\\p{Nd}]+")) {
+            if (!t.isEmpty()) {
+                terms.add(stem(t));
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Very light English stemmer (plurals and common verb endings), enough so "candles" finds "Candle" and "gummy
+     * bears" finds "Gummy Bear". Item names and queries go through the same stemmer, so a singular and its plural have
+     * to come out the same. The -ies plural belongs to both -ie (cookie, brownie) and consonant -y (candy, gummy)
+     * words, so all three end up as -i: cookies/cookie and candies/candy both meet at cooki and candi.
+     *
+     * @param t
+     * @return
+     */
+    static String stem(String t) {
+        if (t.length() <= 2) {
+            return t;
+        }
+        if (t.endsWith("ies") && t.length() > 4) {
+            return t.substring(0, t.length() - 2);
+        }
+        if (t.endsWith("ie") && t.length() > 3) {
+            return t.substring(0, t.length() - 1);
+        }
+        if (t.endsWith("y") && "aeiouy".indexOf(t.charAt(t.length() - 2)) < 0) {
+            return t.substring(0, t.length() - 1) + "i";
+        }
+        if (t.length() <= 3) {
+            return t;
+        }
+        if (t.endsWith("ches") || t.endsWith("shes") || t.endsWith("xes") || t.endsWith("sses") || t.endsWith("zes")) {
+            return t.substring(0, t.length() - 2);
+        }
+        if (t.endsWith("s") && !t.endsWith("ss") && !t.endsWith("us")) {
+            return t.substring(0, t.length() - 1);
+        }
+        if (t.endsWith("ing") && t.length() > 5) {
+            return t.substring(0, t.length() - 3);
+        }
+        if (t.endsWith("ed") && t.length() > 4) {
+            return t.substring(0, t.length() - 2);
+        }
+        return t;
+    }
+
+    /**
+     * Levenshtein distance that gives up once the distance is known to exceed max.
+     *
+     * @param a
+     * @param b
+     * @param max
+     * @return
+     */
+    static int editDistance(String a, String b, int max) {
+        int[] prev = new int[b.length() + 1];
+        int[] cur = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            prev[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            cur[0] = i;
+            int rowMin = cur[0];
+            for (int j = 1; j <= b.length(); j++) {
+                final int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                cur[j] = Math.min(Math.min(cur[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+                rowMin = Math.min(rowMin, cur[j]);
+            }
+            if (rowMin > max) {
+                return max + 1;
+            }
+            final var tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+        return prev[b.length()];
+    }
+
+    private final static double PREFIX_WEIGHT = 0.7;
+    private final static double FUZZY_WEIGHT = 0.5;
+    private final static double PHRASE_BONUS = 5.0;
+
+    /**
+     * Where in the item a term was found, which drives how much it counts toward the score.
+     */
+    enum Field {
+        NAME(3.0),
+        VARIATION(2.0),
+        CATEGORY(1.5),
+        DESCRIPTION(1.0);
+
+        final double weight;
+
+        Field(double weight) {
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * How well an item matched the full search text, so GPT doesn't have to work that out itself.
+     */
+    public enum MatchQuality {
+        /**
+         * The full search phrase appears in the item name.
+         */
+        EXACT,
+        /**
+         * Every search term matched somewhere in the item (name, variation, category or description).
+         */
+        CLOSE,
+        /**
+         * Only some of the search terms matched, likely a similar item.
+         */
+        SIMILAR
+    }
+
+    /**
+     * A ranked search result.
+     */
+    @Getter
+    public static class Result {
+
+        private final String name;
+        private final double score;
+        /**
+         * Fraction of the search terms this item matched (1.0 means every term matched).
+         */
+        private final double coverage;
+        private final MatchQuality matchQuality;
+
+        Result(String name, double score, double coverage, boolean exact) {
+            this.name = name;
+            this.score = score;
+            this.coverage = coverage;
+            this.matchQuality = exact ? MatchQuality.EXACT : coverage >= 1.0 ? MatchQuality.CLOSE : MatchQuality.SIMILAR;
+        }
+    }
+
+    /**
+     * The searchable parts of a Catalog Item.
+     */
+    private static class ItemDoc {
+
+        final String name;
+        final String description;
+        final List<String> variations = new ArrayList<>();
+        final List<String> categoryIds = new ArrayList<>();
+
+        ItemDoc(CatalogItem data) {
+            name = data.getName().orElse("");
+            description = data.getDescription().orElse("");
+            data.getVariations().orElse(List.of()).forEach(v -> v.getItemVariation()
+                    .flatMap(iv -> iv.getItemVariationData())
+                    .flatMap(ivd -> ivd.getName())
+                    .ifPresent(variations::add));
+            data.getCategories().orElse(List.of()).forEach(c -> c.getId().ifPresent(categoryIds::add));
+        }
+    }
+
+    /**
+     * Immutable index state, rebuilt in full from the documents on every refresh (catalogs for a single store are small
+     * enough this takes a few milliseconds and keeps searching lock free).
+     */
+    private static class Snapshot {
+
+        final static Snapshot EMPTY = new Snapshot(Map.of(), Map.of(), new TreeMap<>(), null, null);
+
+        final Map<String, ItemDoc> items;
+        final Map<String, String> categories;
+        /**
+         * Term to item ID to the best field that term appears in for the item.
+         */
+        final TreeMap<String, Map<String, Field>> postings;
+        final String latestTime;
+        final Instant loadedAt;
+
+        Snapshot(Map<String, ItemDoc> items, Map<String, String> categories, TreeMap<String, Map<String, Field>> postings, String latestTime, Instant loadedAt) {
+            this.items = items;
+            this.categories = categories;
+            this.postings = postings;
+            this.latestTime = latestTime;
+            this.loadedAt = loadedAt;
+        }
+
+        static Snapshot build(Map<String, ItemDoc> items, Map<String, String> categories, String latestTime) {
+            final var postings = new TreeMap<String, Map<String, Field>>();
+            items.forEach((id, doc) -> {
+                final Map<Field, Set<String>> fields = new EnumMap<>(Field.class);
+                fields.put(Field.NAME, new HashSet<>(tokenize(doc.name)));
+                fields.put(Field.VARIATION, new HashSet<>());
+                doc.variations.forEach(v -> fields.get(Field.VARIATION).addAll(tokenize(v)));
+                fields.put(Field.CATEGORY, new HashSet<>());
+                doc.categoryIds.forEach(c -> fields.get(Field.CATEGORY).addAll(tokenize(categories.get(c))));
+                fields.put(Field.DESCRIPTION, new HashSet<>(tokenize(doc.description)));
+
+                // Fields iterate highest weight first, so first one in wins
+                fields.forEach((field, terms) -> terms.forEach(t
+                        -> postings.computeIfAbsent(t, k -> new HashMap<>()).putIfAbsent(id, field)));
+            });
+            return new Snapshot(Collections.unmodifiableMap(items), Collections.unmodifiableMap(categories), postings, latestTime, Instant.now());
+        }
+    }
+}
@@ -38,7 +38,7 @@ public class DrivingDirectionsVoice extends DrivingDirections implements SendSMS
                     return mapper.createObjectNode().put("status","FAILED").put("message", "Caller is not calling from a mobile device");
                 }
                 
-                return SendSMS.sendSMS(callingNumber,DRIVING_DIRECTIONS_URL);
+                return SendSMS.sendSMS(callingNumber,DRIVING_DIRECTIONS_URL, getSessionId());
         };
     }
     
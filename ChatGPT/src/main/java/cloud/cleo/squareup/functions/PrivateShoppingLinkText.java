@@ -30,7 +30,7 @@ public class PrivateShoppingLinkText extends PrivateShoppingLink {
         return (var r) -> {
             
             if (getChannelPlatform().equals(FACEBOOK)) {
-                // Persist the shopping link as a menu choice
+                // Persist the shopping link as a menu choice, no need to wait, it completes while GPT responds
                 FaceBookOperations.addPrivateShoppingMenu(getSessionId());
             }
             return mapper.createObjectNode().put("url", PRIVATE_SHOPPING_URL);
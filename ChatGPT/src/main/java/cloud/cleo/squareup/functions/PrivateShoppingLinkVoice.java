@@ -38,7 +38,7 @@ public class PrivateShoppingLinkVoice extends PrivateShoppingLink implements Sen
                 return mapper.createObjectNode().put("status", "FAILED").put("message", "Caller is not calling from a mobile device");
             }
 
-            return SendSMS.sendSMS(callingNumber, PRIVATE_SHOPPING_URL);
+            return SendSMS.sendSMS(callingNumber, PRIVATE_SHOPPING_URL, getSessionId());
         };
     }
 
@@ -1,20 +1,14 @@
 package cloud.cleo.squareup.functions;
 
-import static cloud.cleo.squareup.ChatGPTLambda.crtAsyncHttpClient;
+import static cloud.cleo.squareup.ChatGPTLambda.FACEBOOK_NAME_WAIT;
+import cloud.cleo.squareup.CallerProfileService;
 import cloud.cleo.squareup.FaceBookOperations;
-import com.fasterxml.jackson.annotation.JsonInclude;
+import cloud.cleo.squareup.outbox.Notification;
+import cloud.cleo.squareup.outbox.Outbox;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonPropertyDescription;
-import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.squareup.square.types.Customer;
-import com.squareup.square.types.CustomerFilter;
-import com.squareup.square.types.CustomerQuery;
-import com.squareup.square.types.CustomerTextFilter;
-import com.squareup.square.types.SearchCustomersRequest;
 import java.util.concurrent.CompletionException;
 import java.util.function.Function;
-import software.amazon.awssdk.services.ses.SesAsyncClient;
-import software.amazon.awssdk.services.ses.model.SendEmailRequest;
 
 /**
  * Send an Email message
@@ -24,9 +18,7 @@ import software.amazon.awssdk.services.ses.model.SendEmailRequest;
  */
 public class SendEmail<Request> extends AbstractFunction {
 
-    protected final static SesAsyncClient sesAsyncClient = SesAsyncClient.builder()
-            .httpClient(crtAsyncHttpClient)
-            .build();
+    private final static TeamMemberDirectory directory = TeamMemberDirectory.getInstance();
 
     @Override
     public String getName() {
@@ -52,29 +44,32 @@ public class SendEmail<Request> extends AbstractFunction {
         return (var r) -> {
 
             try {
+                // Only relay messages to our own employees
+                if (directory.isLoaded() && directory.findByEmail(r.employee_email) == null) {
+                    log.warn("Refusing to send email to {}, not an employee address", r.employee_email);
+                    return mapper.createObjectNode().put("status", "FAILED").put("message", "That email address does not belong to an employee, use the team_members function to get the correct address.");
+                }
+
                 String email = null;
-                Customer customer = null;
+                String customerRecord = null;
 
-                // If we have a valid phone number, try and look up customer in Square
+                // If we have a valid phone number, use the caller profile or look up customer in Square
                 if (hasValidUSE164Number()) {
-                    try {
-                        final var customerList = getSquareClient().customers().search(SearchCustomersRequest.builder()
-                                .query(CustomerQuery.builder()
-                                        .filter(CustomerFilter.builder()
-                                                .phoneNumber(CustomerTextFilter.builder().exact(getCallingNumber()).build())
-                                                .build())
-                                        .build())
-                                .limit(1L) // Only request one match, very unlikely more than one match
-                                .build()).get().getCustomers().get();
-                        if (!customerList.isEmpty()) {
-                            customer = customerList.get(0);
-                            if (customer.getEmailAddress() != null && customer.getEmailAddress().isPresent()) {
-                                email = customer.getEmailAddress().get();
+                    final var profile = getCallerProfile();
+                    if (profile != null) {
+                        email = profile.getEmail();
+                        customerRecord = profile.getCustomerRecord();
+                    } else {
+                        try {
+                            final var customer = findCustomerByPhone(getCallingNumber()).get();
+                            if (customer.isPresent()) {
+                                email = customer.get().getEmailAddress().orElse(null);
+                                customerRecord = CallerProfileService.customerToJson(customer.get());
                             }
+                        } catch (Exception e) {
+                            // Just log error here, we don't want to stop email send
+                            log.error("Error in Customer lookup", e);
                         }
-                    } catch (Exception e) {
-                        // Just log error here, we don't want to stop email send
-                        log.error("Error in Customer lookup", e);
                     }
                 }
 
@@ -85,38 +80,22 @@ public class SendEmail<Request> extends AbstractFunction {
                     case TWILIO ->
                         "[From SMS " + getCallingNumber() + "] " + r.subject;
                     case FACEBOOK ->
-                        "[From Facebook User " + FaceBookOperations.getFacebookName(getSessionId()) + "] " + r.subject;
+                        "[From Facebook User " + FaceBookOperations.getFacebookName(getSessionId(), FACEBOOK_NAME_WAIT) + "] " + r.subject;
                     default ->
                         "[From " + getChannelPlatform() + "/" + getSessionId() + "] " + r.subject;
                 };
 
-                if (customer != null) {
+                if (customerRecord != null) {
                     // Append Square Customer record to email for reference
-                    final var myMapper = mapper.copy().setSerializationInclusion(JsonInclude.Include.NON_NULL);
-                    ObjectNode custJson = myMapper.valueToTree(customer);
-                    // Remove any card info if it exists
-                    custJson.remove("cards");
-                    r.message = r.message.concat("\n\n--\n\nSquare Customer Record:\n\n").concat(custJson.toPrettyString());
-                }
-
-                final var requestB = SendEmailRequest.builder()
-                        .destination(dest -> dest.toAddresses(r.employee_email))
-                        .message((mesg) -> {
-                            mesg.body((body) -> {
-                                body.text(cont -> cont.data(r.message));
-                            }).subject(cont -> cont.data(subject));
-                        }).source("CopperBot@CopperFoxGifts.com");
-
-                if (email != null) {
-                    // If we know the customers email, then set the reply to
-                    requestB.replyToAddresses(email);
+                    r.message = r.message.concat("\n\n--\n\nSquare Customer Record:\n\n").concat(customerRecord);
                 }
 
-                final var id = sesAsyncClient.sendEmail(requestB.build()).join();
+                // If we know the customers email, then it's set as the reply to
+                Outbox.getInstance().enqueue(Notification.email(r.employee_email, subject, r.message, email, getSessionId()));
 
-                log.info("Sent email to " + r.employee_email + " with id " + id.messageId());
-                log.info("Subject: " + subject);
-                log.info("Message: " + r.message);
+                log.info("Queued email to {}", r.employee_email);
+                log.info("Subject: {}", subject);
+                log.info("Message: {}", r.message);
                 return mapper.createObjectNode().put("status", "SUCCESS").put("message", "The email has been successfuly sent.");
             } catch (CompletionException e) {
                 log.error("Unhandled Error", e.getCause());
@@ -4,13 +4,12 @@
  */
 package cloud.cleo.squareup.functions;
 
-import static cloud.cleo.squareup.ChatGPTLambda.crtAsyncHttpClient;
 import static cloud.cleo.squareup.functions.AbstractFunction.log;
 import static cloud.cleo.squareup.functions.AbstractFunction.mapper;
+import cloud.cleo.squareup.outbox.Notification;
+import cloud.cleo.squareup.outbox.Outbox;
 import com.fasterxml.jackson.databind.JsonNode;
 import java.util.concurrent.CompletionException;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.sns.SnsAsyncClient;
 
 /**
  *
@@ -18,25 +17,20 @@ import software.amazon.awssdk.services.sns.SnsAsyncClient;
  */
 public interface SendSMS {
 
-    public final static SnsAsyncClient snsAsyncClient = SnsAsyncClient.builder()
-            // Force SMS sending to east because that's where all the 10DLC and campaign crap setup is done
-            // Otherwise have to pay for registrations and numbers in 2 regions, HUGE HASSLE (and more monthly cost)
-            // Also then all texts are sourced from the same phone number for consistancy
-            .region(Region.US_EAST_1)
-            .httpClient(crtAsyncHttpClient)
-            .build();
-
     /**
-     * Used to send SMS to the caller's cell phone.
+     * Used to send SMS to the caller's cell phone. The message goes through the Outbox, so success here means it was
+     * accepted for sending, not that it was delivered. Repeats of the same message to the same number with the same
+     * dedupe key within a few minutes are only sent once.
      * 
      * @param phoneNumber to send the message to
      * @param message body to send
+     * @param dedupeKey what makes this send unique, the session ID so a later call gets the text again
      * @return 
      */
-    public static JsonNode sendSMS(String phoneNumber, String message) {
+    public static JsonNode sendSMS(String phoneNumber, String message, String dedupeKey) {
         try {
-            final var result = snsAsyncClient.publish(b -> b.phoneNumber(phoneNumber).message(message)).join();
-            log.info("SMS [" + message +  "] sent to " + phoneNumber + " with SNS id of " + result.messageId());
+            Outbox.getInstance().enqueue(Notification.sms(phoneNumber, message, dedupeKey));
+            log.info("SMS [{}] queued for {}", message, phoneNumber);
             return mapper.createObjectNode().put("status", "SUCCESS").put("message", "The SMS message was successfuly sent to the caller");
         } catch (CompletionException e) {
             log.error("Could not send message via SMS to caller", e.getCause());
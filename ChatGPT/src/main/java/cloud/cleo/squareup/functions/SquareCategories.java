@@ -59,12 +59,12 @@ public class SquareCategories<Request> extends AbstractFunction {
                 List<Future<SearchCatalogObjectsResponse>> futures = tokens.stream()
                         .map(token -> executor.submit(() -> {
                             log.debug("Executing category search for [{}]", token);
-                            return getSquareClient().catalog()
+                            return SquareGateway.call(SquareGateway.Endpoint.CATALOG, "categories:" + token, () -> getSquareClient().catalog()
                                     .search(SearchCatalogObjectsRequest.builder()
                                             .includeDeletedObjects(false)
                                             .objectTypes(List.of(CatalogObjectType.CATEGORY))
                                             .query(CatalogQuery.builder().textQuery( CatalogQueryText.builder().addKeywords(token).build()).build())
-                                            .build())
+                                            .build()))
                                     .join(); // Block only inside the virtual thread
                         }))
                         .collect(Collectors.toList());
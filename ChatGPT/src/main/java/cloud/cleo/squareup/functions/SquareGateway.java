@@ -0,0 +1,296 @@
+package cloud.cleo.squareup.functions;
+
+import cloud.cleo.squareup.CircuitBreaker;
+import cloud.cleo.squareup.CircuitBreaker.CircuitOpenException;
+import cloud.cleo.squareup.Metrics;
+import com.squareup.square.core.SquareApiException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * All Square API access from functions goes through here. Each endpoint gets a bounded number of concurrent requests,
+ * identical requests already in flight are shared rather than sent twice (and stopped once every caller has cancelled), and 429 (rate limited) responses are retried
+ * with backoff, but only while there is time left in the current turn. When Square is failing or slow the breaker opens
+ * and calls fail right away with CircuitOpenException, so functions answer from their caches instead of waiting.
+ *
+ * @author sjensen
+ */
+public final class SquareGateway {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(SquareGateway.class);
+
+    /**
+     * When no turn deadline has been set (background refreshes, init), how long we are willing to wait.
+     */
+    private final static Duration DEFAULT_BUDGET = Duration.ofSeconds(20);
+
+    private final static long BASE_BACKOFF_MS = 200L;
+    private final static long MAX_BACKOFF_MS = 2000L;
+
+    /**
+     * Square calls slower than this count against the breaker.
+     */
+    private final static Duration SLOW_CALL = Duration.ofSeconds(5);
+
+    private final static CircuitBreaker breaker = new CircuitBreaker("Square", SLOW_CALL);
+
+    private static final ExecutorService VIRTUAL_THREAD_EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * Deadline for the turn being processed on this thread. Not inherited, background work started during a turn (index
+     * and directory refreshes) gets DEFAULT_BUDGET rather than what's left of the turn.
+     */
+    private static final ThreadLocal<Instant> TURN_DEADLINE = new ThreadLocal<>();
+
+    private static final Map<String, Flight<?>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * A request in flight and how many callers are waiting on it. When the last of them cancels the request is
+     * cancelled too, so it stops waiting for a permit or retrying and nobody pays for a Square call no one wants.
+     */
+    private static final class Flight<T> {
+
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        /**
+         * Only changed inside inFlight.compute() for this key.
+         */
+        private int waiters;
+
+        private volatile Future<?> task;
+    }
+
+    /**
+     * Square endpoints we call along with how many concurrent requests we allow to each.
+     */
+    public enum Endpoint {
+        CATALOG(4),
+        LOCATIONS(2),
+        TEAM_MEMBERS(2),
+        CUSTOMERS(2);
+
+        private final Semaphore permits;
+
+        Endpoint(int maxConcurrent) {
+            this.permits = new Semaphore(maxConcurrent);
+        }
+    }
+
+    private SquareGateway() {
+    }
+
+    /**
+     * Set the deadline for the turn being processed on the current thread.
+     *
+     * @param deadline
+     */
+    public static void setTurnDeadline(Instant deadline) {
+        TURN_DEADLINE.set(deadline);
+    }
+
+    /**
+     * Clear the turn deadline once the turn is complete.
+     */
+    public static void clearTurnDeadline() {
+        TURN_DEADLINE.remove();
+    }
+
+    /**
+     * Is Square answering, when false calls fail fast and anything cached may be out of date.
+     *
+     * @return
+     */
+    public static boolean isAvailable() {
+        return breaker.isClosed();
+    }
+
+    /**
+     * Make a Square API call.
+     *
+     * @param <T> response type
+     * @param endpoint which endpoint (for concurrency limits and metrics)
+     * @param key identifies the request, calls with the same endpoint and key while one is in flight share the result
+     * @param request the actual SDK call
+     * @return future that completes with the response, or exceptionally if the call failed or ran out of time
+     */
+    public static <T> CompletableFuture<T> call(Endpoint endpoint, String key, Supplier<CompletableFuture<T>> request) {
+        final var deadline = TURN_DEADLINE.get() != null ? TURN_DEADLINE.get() : Instant.now().plus(DEFAULT_BUDGET);
+        final var flightKey = endpoint + ":" + key;
+
+        final var created = new AtomicReference<Flight<T>>();
+        @SuppressWarnings("unchecked")
+        final var flight = (Flight<T>) inFlight.compute(flightKey, (k, f) -> {
+            if (f == null || f.future.isDone()) {
+                final var n = new Flight<T>();
+                created.set(n);
+                n.waiters++;
+                return n;
+            }
+            f.waiters++;
+            return f;
+        });
+
+        final var mine = created.get();
+        if (mine == null) {
+            log.debug("Square call {} coalesced with request in flight", flightKey);
+            Metrics.increment("Square." + endpoint + ".Coalesced");
+        } else {
+            mine.task = VIRTUAL_THREAD_EXECUTOR.submit(() -> {
+                try {
+                    mine.future.complete(execute(endpoint, deadline, request, mine.future::isCancelled));
+                } catch (Throwable t) {
+                    mine.future.completeExceptionally(t);
+                } finally {
+                    inFlight.remove(flightKey, mine);
+                }
+            });
+        }
+
+        // Each caller gets their own copy, so one caller cancelling doesn't affect the others, until they all have
+        final var copy = flight.future.copy();
+        copy.whenComplete((r, e) -> {
+            if (copy.isCancelled()) {
+                leave(endpoint, flightKey, flight);
+            }
+        });
+        return copy;
+    }
+
+    /**
+     * A caller cancelled, if it was the last one waiting stop the request.
+     */
+    private static void leave(Endpoint endpoint, String flightKey, Flight<?> flight) {
+        inFlight.computeIfPresent(flightKey, (k, f) -> {
+            if (f != flight || --f.waiters > 0) {
+                return f;
+            }
+            f.future.cancel(true);
+            final var task = f.task;
+            if (task != null) {
+                // Interrupts a permit wait or retry backoff
+                task.cancel(true);
+            }
+            Metrics.increment("Square." + endpoint + ".Cancelled");
+            return null;
+        });
+    }
+
+    /**
+     * Make the call blocking the (virtual) thread, retrying on 429 while the deadline allows.
+     */
+    private static <T> T execute(Endpoint endpoint, Instant deadline, Supplier<CompletableFuture<T>> request, BooleanSupplier cancelled) throws Exception {
+        final var name = "Square." + endpoint;
+        Metrics.increment(name + ".Calls");
+
+        int attempt = 0;
+        while (true) {
+            // Checked before waiting on a permit and before every retry
+            if (cancelled.getAsBoolean()) {
+                throw new CancellationException("Square " + endpoint + " call no longer wanted");
+            }
+            if (!breaker.tryAcquire()) {
+                Metrics.increment(name + ".BreakerRejected");
+                throw new CircuitOpenException("Square");
+            }
+            // Every attempt the breaker let through must report back, or a half open probe is never finished
+            boolean recorded = false;
+            try {
+                final long waitStart = System.currentTimeMillis();
+                final boolean acquired;
+                try {
+                    acquired = endpoint.permits.tryAcquire(remainingMillis(deadline), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    if (cancelled.getAsBoolean()) {
+                        // Nothing was sent, so nothing learned about Square
+                        recorded = true;
+                        breaker.release();
+                        throw new CancellationException("Square " + endpoint + " call no longer wanted");
+                    }
+                    throw e;
+                }
+                if (!acquired) {
+                    // Calls are backed up behind a slow Square
+                    recorded = true;
+                    breaker.onFailure();
+                    Metrics.increment(name + ".PermitTimeout");
+                    throw new TimeoutException("Timed out waiting for Square " + endpoint + " permit");
+                }
+                Metrics.recordMillis(name + ".PermitWait", System.currentTimeMillis() - waitStart);
+
+                final long start = System.currentTimeMillis();
+                CompletionException failure;
+                try {
+                    final var result = request.get().join();
+                    Metrics.recordMillis(name + ".Latency", System.currentTimeMillis() - start);
+                    recorded = true;
+                    breaker.onResult((System.currentTimeMillis() - start) * 1_000_000L);
+                    return result;
+                } catch (CompletionException e) {
+                    failure = e;
+                } catch (RuntimeException e) {
+                    failure = new CompletionException(e);
+                } finally {
+                    endpoint.permits.release();
+                }
+
+                recorded = true;
+                if (isRateLimited(failure.getCause())) {
+                    // Square is up, just busy, that's not a reason to stop calling it
+                    breaker.onResult((System.currentTimeMillis() - start) * 1_000_000L);
+                    Metrics.increment(name + ".Throttled");
+                    final long backoff = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << attempt)
+                            + ThreadLocalRandom.current().nextLong(BASE_BACKOFF_MS);
+                    if (backoff < remainingMillis(deadline)) {
+                        log.debug("Square {} rate limited, retrying in {} ms", endpoint, backoff);
+                        attempt++;
+                        Thread.sleep(backoff);
+                        continue;
+                    }
+                    log.debug("Square {} rate limited and no time left in turn to retry", endpoint);
+                } else if (isClientError(failure.getCause())) {
+                    // Bad request or not found, Square answered
+                    breaker.onResult((System.currentTimeMillis() - start) * 1_000_000L);
+                } else {
+                    breaker.onFailure();
+                }
+                Metrics.increment(name + ".Failures");
+                throw failure;
+            } finally {
+                if (!recorded) {
+                    // Interrupted or an Error, count it against Square rather than leave the breaker waiting
+                    breaker.onFailure();
+                }
+            }
+        }
+    }
+
+    private static boolean isRateLimited(Throwable t) {
+        return t instanceof SquareApiException sae && sae.statusCode() == 429;
+    }
+
+    private static boolean isClientError(Throwable t) {
+        return t instanceof SquareApiException sae && sae.statusCode() >= 400 && sae.statusCode() < 500;
+    }
+
+    private static long remainingMillis(Instant deadline) {
+        return Math.max(0L, Duration.between(Instant.now(), deadline).toMillis());
+    }
+}
@@ -1,38 +1,31 @@
 package cloud.cleo.squareup.functions;
 
-import com.fasterxml.jackson.annotation.JsonIgnore;
+import cloud.cleo.squareup.common.LocationHoursService;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.squareup.square.types.BusinessHoursPeriod;
 import com.squareup.square.types.GetLocationsRequest;
-import com.squareup.square.types.Location;
-import java.time.DayOfWeek;
-import static java.time.DayOfWeek.FRIDAY;
-import static java.time.DayOfWeek.MONDAY;
-import static java.time.DayOfWeek.SATURDAY;
-import static java.time.DayOfWeek.SUNDAY;
-import static java.time.DayOfWeek.THURSDAY;
-import static java.time.DayOfWeek.TUESDAY;
-import static java.time.DayOfWeek.WEDNESDAY;
-import java.time.LocalDateTime;
-import java.time.LocalTime;
-import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.TextStyle;
-import java.util.ArrayList;
 import java.util.Locale;
 import java.util.function.Function;
-import lombok.AccessLevel;
-import lombok.Getter;
 
 /**
- * Return the store hours from Square API
+ * Return the store hours from the shared Square Location and hours service
  *
  * @author sjensen
  * @param <Request>
  */
 public class SquareHours<Request> extends AbstractFunction {
 
-    private static volatile Location cachedLocation; // Cache for the last successful location data
+    /**
+     * How far ahead to tell GPT about special (holiday) hours.
+     */
+    private final static int SPECIAL_HOURS_DAYS = 14;
+
+    private final static LocationHoursService hoursService = isSquareEnabled()
+            ? new LocationHoursService(() -> SquareGateway.call(SquareGateway.Endpoint.LOCATIONS, "get", () -> getSquareClient().locations()
+                    .get(GetLocationsRequest.builder().locationId(System.getenv("SQUARE_LOCATION_ID")).build()))
+                    .thenApply(res -> res.getLocation().orElse(null)), System.getenv("SQUARE_SPECIAL_HOURS"))
+            : null;
 
     @Override
     public String getName() {
@@ -41,7 +34,7 @@ public class SquareHours<Request> extends AbstractFunction {
 
     @Override
     public String getDescription() {
-        return "Return the open store hours by day of week along with current open/closed status and current date/time.  Any day of week not returned means the store is closed that day.";
+        return "Return the open store hours by day of week along with current open/closed status and current date/time.  Any day of week not returned means the store is closed that day.  Any special_hours returned override the normal hours on that date.";
     }
 
     @Override
@@ -57,11 +50,12 @@ public class SquareHours<Request> extends AbstractFunction {
     public Function<Request, Object> getExecutor() {
         return (var r) -> {
             try {
-                final Location loc = getLocation();
-                final var bh = new BusinessHours(loc);
+                final var schedule = hoursService.getSchedule();
+                if (schedule == null) {
+                    return mapper.createObjectNode().put("error_message", "Store hours are not available right now.");
+                }
 
-                final var tz = ZoneId.of(loc.getTimezone().get());
-                final var now = ZonedDateTime.now(tz);
+                final var now = ZonedDateTime.now(schedule.getTimeZone());
 
                 /**
                  * GPT gives wrong information sometimes saying its open when store is closed. Giving it the concrete
@@ -70,16 +64,24 @@ public class SquareHours<Request> extends AbstractFunction {
                  * seems to fix everything and I can't get it to return wrong answer anymore
                  */
                 final ObjectNode json = mapper.createObjectNode();
-                json.put("open_closed_status", bh.isOpen() ? "OPEN" : "CLOSED");
+                json.put("open_closed_status", hoursService.isOpen(now) ? "OPEN" : "CLOSED");
                 json.put("current_date_time", now.toString());
                 json.put("current_day_of_week", now.getDayOfWeek().getDisplayName(TextStyle.FULL, Locale.US).toUpperCase());
-                if ( bh.isEmpty() ) {
+                if ( schedule.isTemporarilyClosed() ) {
                     json.put("open_hours", "Store is temporarily closed and will re-open soon");
                 } else {
-                    json.set("open_hours", mapper.valueToTree(bh));
+                    json.set("open_hours", mapper.valueToTree(schedule.getPeriods()));
+                }
+
+                // Holiday or other special hours coming up override the normal hours for those dates
+                final var special = hoursService.getSpecialHours(now.toLocalDate(), now.toLocalDate().plusDays(SPECIAL_HOURS_DAYS));
+                if (!special.isEmpty()) {
+                    final var arr = json.putArray("special_hours");
+                    special.forEach(sh -> arr.addObject().put("date", sh.getDate().toString()).put("hours", sh.getHours()));
                 }
 
-                return json;
+                // Served from the cached location, say so if Square is down
+                return fromSquareCache(json);
             } catch (Exception ex) {
                 log.error("Unhandled Error", ex);
                 return mapper.createObjectNode().put("error_message", ex.getLocalizedMessage());
@@ -90,87 +92,6 @@ public class SquareHours<Request> extends AbstractFunction {
     private static class Request {
     }
 
-    /**
-     * Gets the location data, using cache if the Square API call fails.
-     *
-     * @return the Location object
-     * @throws Exception if an error occurs and no cached data is available
-     */
-    private Location getLocation() throws Exception {
-        try {
-            Location loc = getSquareClient().locations().get( GetLocationsRequest.builder().locationId(System.getenv("SQUARE_LOCATION_ID")).build()).get().getLocation().get();
-            cachedLocation = loc;
-            return loc;
-        } catch (Exception ex) {
-            log.error("Failed to retrieve location from Square API, using cached data if available", ex);
-            if (cachedLocation != null) {
-                return cachedLocation;
-            } else {
-                throw new Exception("No cached data available and failed to retrieve from Square API", ex);
-            }
-        }
-    }
-
-
-    private static class BusinessHours extends ArrayList<OpenPeriod> {
-
-        @JsonIgnore
-        private final Location loc;
-
-        public BusinessHours(Location loc) {
-            this.loc = loc;
-            loc.getBusinessHours().get().getPeriods().get().forEach(p -> add(new OpenPeriod(p)));
-        }
-
-        @JsonIgnore
-        public boolean isOpen() {
-            // The current time in the TZ
-            final var tz = ZoneId.of(loc.getTimezone().get());
-            final var now = ZonedDateTime.now(tz);
-            final var today = now.toLocalDate();
-
-            return stream()
-                    .filter(p -> p.getDow().equals(now.getDayOfWeek()))
-                    .anyMatch(p -> {
-                        final var start = LocalDateTime.of(today, p.getStart()).atZone(tz);
-                        final var end = LocalDateTime.of(today, p.getEnd()).atZone(tz);
-                        return now.isAfter(start) && now.isBefore(end);
-                    });
-        }
-    }
-
-    @Getter(AccessLevel.PUBLIC)
-    private static class OpenPeriod {
-
-        final DayOfWeek dow;
-        final LocalTime start;
-        final LocalTime end;
-
-        public OpenPeriod(BusinessHoursPeriod bhp) {
-            dow = switch (bhp.getDayOfWeek().get().getEnumValue()) {
-                case SUN ->
-                    SUNDAY;
-                case MON ->
-                    MONDAY;
-                case TUE ->
-                    TUESDAY;
-                case WED ->
-                    WEDNESDAY;
-                case THU ->
-                    THURSDAY;
-                case FRI ->
-                    FRIDAY;
-                case SAT ->
-                    SATURDAY;
-                case UNKNOWN ->
-                    throw new RuntimeException("Day of Week Cannot be matched " + bhp.getDayOfWeek());
-            };
-
-            start = LocalTime.parse(bhp.getStartLocalTime().get());
-            end = LocalTime.parse(bhp.getEndLocalTime().get());
-        }
-    }
-
     @Override
     protected boolean isEnabled() {
         return isSquareEnabled();
@@ -7,20 +7,28 @@ import com.fasterxml.jackson.annotation.JsonPropertyDescription;
 import com.squareup.square.types.SearchCatalogItemsRequest;
 import com.squareup.square.types.SearchCatalogItemsResponse;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 /**
- * Search for items based on search query using Virtual Threads.
+ * Search for items based on search query. Searches are answered from the local Catalog Index, only when the index could
+ * not be loaded do we fall back to searching Square directly.
  *
  * @author sjensen
  */
 public class SquareItemSearch<Request> extends AbstractFunction {
 
+    /**
+     * Touching this at class init loads the catalog during SnapStart init.
+     */
+    private final static CatalogIndex catalogIndex = CatalogIndex.getInstance();
+
+    private final static int MAX_RESULTS = 5;
+
     @Override
     public String getName() {
         return "store_product_item";
@@ -28,7 +36,8 @@ public class SquareItemSearch<Request> extends AbstractFunction {
 
     @Override
     public String getDescription() {
-        return "Return item names, response limited to 5 items, so there could be more if 5 returned";
+        return "Return item names ranked best match first, each with a match_quality of EXACT (the search text matches the item), "
+                + "CLOSE (all the search words match), or SIMILAR (only some words match, a similar item).  Response limited to 5 items, so there could be more if 5 returned";
     }
 
     @Override
@@ -37,58 +46,102 @@ public class SquareItemSearch<Request> extends AbstractFunction {
     }
 
     /**
-     * Executes the search request using virtual threads.
+     * Executes the search request against the Catalog Index.
      *
      * @return Function<Request, Object>
      */
     @Override
     public Function<Request, Object> getExecutor() {
         return (var r) -> {
-            List<String> tokens = allCombinations(r.search_text);
-            List<String> itemNames = new ArrayList<>();
-
-            log.debug("Launching {} item searches in parallel using virtual threads", tokens.size());
-
-            // Use virtual threads for parallel execution
-            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
-                List<Future<SearchCatalogItemsResponse>> futures = tokens.stream()
-                        .map(token -> executor.submit(() -> {
-                            log.debug("Executing search for [{}]", token);
-                            return getSquareClient().catalog()
-                                    .searchItems(SearchCatalogItemsRequest.builder()
-                                            .textFilter(token)
-                                            .limit(5)
-                                            .build())
-                                    .join(); // Block only inside the virtual thread
-                        }))
-                        .collect(Collectors.toList());
-
-                // Collect results
-                for (Future<SearchCatalogItemsResponse> future : futures) {
-                    try {
-                        SearchCatalogItemsResponse response = future.get(); // Blocking only inside virtual threads
-                        if (response.getItems() != null) {
-                            response.getItems().get().stream()
-                                    .map(item -> item.getItem().get().getItemData().get().getName().get())
-                                    .forEach(itemNames::add);
-                        }
-                    } catch (Exception e) {
-                        log.error("Error processing search request", e);
-                    }
+            final List<CatalogIndex.Result> results;
+            if (catalogIndex.isLoaded()) {
+                results = catalogIndex.search(r.search_text, MAX_RESULTS);
+            } else if (!SquareGateway.isAvailable()) {
+                // No index and Square is down, searches would all fail and look like nothing matched
+                return mapper.createObjectNode().put("status", "FAILED").put("error_message", "Product search is not available right now.");
+            } else {
+                log.debug("Catalog Index not loaded, searching Square directly");
+                try {
+                    results = searchSquare(r.search_text);
+                } catch (Exception ex) {
+                    log.error("Unhandled Error", ex);
+                    return mapper.createObjectNode().put("status", "FAILED").put("error_message", ex.getLocalizedMessage());
                 }
-            } catch (Exception ex) {
-                log.error("Unhandled Error", ex);
-                return mapper.createObjectNode().put("status", "FAILED").put("error_message", ex.getLocalizedMessage());
             }
 
-            if (itemNames.isEmpty()) {
+            if (results.isEmpty()) {
                 return mapper.createObjectNode().put("message", "No items match the search query");
-            } else {
-                return itemNames.stream().distinct().limit(5).toList();
             }
+
+            final var json = mapper.createArrayNode();
+            results.forEach(res -> json.addObject()
+                    .put("name", res.getName())
+                    .put("match_quality", res.getMatchQuality().toString()));
+            log.debug("Item search for [{}] returned {}", r.search_text, json);
+            return catalogIndex.isLoaded() ? fromSquareCache(json) : json;
         };
     }
 
+    /**
+     * Search Square with every combination of the search text in parallel. Results are ranked as they arrive against
+     * the full search text, once we have enough exact matches the outstanding searches are cancelled.
+     *
+     * @param searchText
+     * @return ranked results
+     * @throws InterruptedException
+     */
+    private List<CatalogIndex.Result> searchSquare(String searchText) throws InterruptedException {
+        final List<String> tokens = allCombinations(searchText);
+        log.debug("Launching {} item searches in parallel", tokens.size());
+
+        final var completed = new LinkedBlockingQueue<CompletableFuture<SearchCatalogItemsResponse>>();
+        final List<CompletableFuture<SearchCatalogItemsResponse>> futures = new ArrayList<>(tokens.size());
+        for (var token : tokens) {
+            final var future = SquareGateway.call(SquareGateway.Endpoint.CATALOG, "searchItems:" + token,
+                    () -> getSquareClient().catalog()
+                            .searchItems(SearchCatalogItemsRequest.builder()
+                                    .textFilter(token)
+                                    .limit(MAX_RESULTS)
+                                    .build()));
+            futures.add(future);
+            future.whenComplete((res, ex) -> completed.add(future));
+        }
+
+        final Map<String, CatalogIndex.Result> ranked = new HashMap<>();
+        int exactMatches = 0;
+        try {
+            for (int i = 0; i < futures.size() && exactMatches < MAX_RESULTS; i++) {
+                final var future = completed.take();
+                try {
+                    final var response = future.join();
+                    for (var item : response.getItems().orElse(List.of())) {
+                        final var name = item.getItem().get().getItemData().get().getName().get();
+                        if (!ranked.containsKey(name)) {
+                            final var res = CatalogIndex.score(searchText, name);
+                            ranked.put(name, res);
+                            if (res.getMatchQuality() == CatalogIndex.MatchQuality.EXACT) {
+                                exactMatches++;
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    log.error("Error processing search request", e);
+                }
+            }
+        } finally {
+            // Anything still running is no longer needed
+            final long cancelled = futures.stream().filter(f -> f.cancel(true)).count();
+            if (cancelled > 0) {
+                log.debug("Cancelled {} outstanding item searches", cancelled);
+            }
+        }
+
+        return ranked.values().stream()
+                .sorted(CatalogIndex.RANKING)
+                .limit(MAX_RESULTS)
+                .toList();
+    }
+
     private static class Request {
         @JsonPropertyDescription("The search text to search for items for sale in English language")
         @JsonProperty(required = true)
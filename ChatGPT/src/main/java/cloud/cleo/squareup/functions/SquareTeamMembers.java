@@ -1,23 +1,19 @@
 package cloud.cleo.squareup.functions;
 
 import com.fasterxml.jackson.annotation.JsonPropertyDescription;
-import com.squareup.square.types.SearchTeamMembersFilter;
-import com.squareup.square.types.SearchTeamMembersQuery;
-import com.squareup.square.types.SearchTeamMembersRequest;
-import com.squareup.square.types.TeamMember;
-import com.squareup.square.types.TeamMemberStatus;
-import java.util.List;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import java.util.function.Function;
 import lombok.Getter;
 
 /**
- *  Return Employees (team members) from Square API
+ *  Return Employees (team members) from the cached Square Team Member directory
  * 
  * @author sjensen
  * @param <Request>
  */
 public class SquareTeamMembers<Request> extends AbstractFunction {
 
+    private final static TeamMemberDirectory directory = TeamMemberDirectory.getInstance();
 
     @Override
     public String getName() {
@@ -26,7 +22,7 @@ public class SquareTeamMembers<Request> extends AbstractFunction {
 
     @Override
     public String getDescription() {
-        return "Return the Emoloyee names and phone numbers for this store location, do not give the phone numbers to the callers or give out the whole list.";
+        return "Return the Emoloyee names and phone numbers for this store location, pass a name to look up a specific employee. Do not give the phone numbers to the callers or give out the whole list.";
     }
 
     @Override
@@ -42,14 +38,16 @@ public class SquareTeamMembers<Request> extends AbstractFunction {
     public Function<Request, Object> getExecutor() {
         return (var r) -> {
             try {
-                return getSquareClient().teamMembers()
-                        .search(SearchTeamMembersRequest.builder().query(SearchTeamMembersQuery.builder()
-                                // Only return active employees at the defined location
-                                .filter(SearchTeamMembersFilter.builder().status(TeamMemberStatus.ACTIVE).locationIds(List.of(System.getenv("SQUARE_LOCATION_ID"))).build())
-                                .build()).build())
-                        .get().getTeamMembers().get().stream()
+                if (!directory.isLoaded()) {
+                    return mapper.createObjectNode().put("error_message", "The employee list is not available right now.");
+                }
+                final var members = r.name == null || r.name.isBlank() ? directory.getMembers() : directory.findByName(r.name);
+                if (members.isEmpty()) {
+                    return mapper.createObjectNode().put("message", "No employee found by that name.");
+                }
+                return fromSquareCache(members.stream()
                         .map(tm -> new Response(tm))
-                        .toList();
+                        .toList());
             } catch (Exception ex) {
                 log.error("Unhandled Error",ex);
                 return mapper.createObjectNode().put("error_message", ex.getLocalizedMessage());
@@ -69,15 +67,18 @@ public class SquareTeamMembers<Request> extends AbstractFunction {
         @JsonPropertyDescription("Employee Email address, to be used to send messages")
         String email;
 
-        private Response(TeamMember tm){
-            this.first_name = tm.getGivenName().orElse(null);
-            this.last_name = tm.getFamilyName().orElse(null);
-            this.phone_number = tm.getPhoneNumber().orElse(null);
-            this.email = tm.getEmailAddress().orElse(null);
+        private Response(TeamMemberDirectory.Member tm){
+            this.first_name = tm.getFirstName();
+            this.last_name = tm.getLastName();
+            this.phone_number = tm.getPhoneNumber();
+            this.email = tm.getEmail();
         }
     }
 
     private static class Request {
+        @JsonPropertyDescription("Employee first and/or last name to look up, omit to return all employees")
+        @JsonProperty(value = "name", required = false)
+        public String name;
     }
    
     @Override
@@ -0,0 +1,256 @@
+package cloud.cleo.squareup.functions;
+
+import static cloud.cleo.squareup.functions.AbstractFunction.getSquareClient;
+import static cloud.cleo.squareup.functions.AbstractFunction.isSquareEnabled;
+import com.squareup.square.types.SearchTeamMembersFilter;
+import com.squareup.square.types.SearchTeamMembersQuery;
+import com.squareup.square.types.SearchTeamMembersRequest;
+import com.squareup.square.types.SearchTeamMembersResponse;
+import com.squareup.square.types.TeamMember;
+import com.squareup.square.types.TeamMemberStatus;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.Getter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Cached directory of active Square Team Members for the store location. Loaded at SnapStart init and refreshed in the
+ * background once the TTL passes, so functions can look up and validate employees without calling Square.
+ *
+ * @author sjensen
+ */
+public final class TeamMemberDirectory {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(TeamMemberDirectory.class);
+
+    /**
+     * Staff rarely changes, but don't let a new hire wait too long to be transferable.
+     */
+    private final static Duration TTL = Duration.ofMinutes(15);
+
+    private final static Duration RETRY_INTERVAL = Duration.ofMinutes(1);
+
+    private final static TeamMemberDirectory me = new TeamMemberDirectory();
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+    private volatile Instant lastAttempt = Instant.EPOCH;
+
+    private TeamMemberDirectory() {
+        if (isSquareEnabled()) {
+            lastAttempt = Instant.now();
+            try {
+                refresh();
+            } catch (Exception e) {
+                log.error("Initial Team Member load failed", e);
+            }
+        }
+    }
+
+    public static TeamMemberDirectory getInstance() {
+        return me;
+    }
+
+    /**
+     * Has the directory been loaded at least once.
+     *
+     * @return
+     */
+    public boolean isLoaded() {
+        return current().loadedAt != null;
+    }
+
+    /**
+     * All active team members.
+     *
+     * @return
+     */
+    public List<Member> getMembers() {
+        return current().members;
+    }
+
+    /**
+     * Find a team member by E164 phone number.
+     *
+     * @param phone
+     * @return member or null
+     */
+    public Member findByPhone(String phone) {
+        return phone == null ? null : current().byPhone.get(normalizePhone(phone));
+    }
+
+    /**
+     * Find a team member by email address (case insensitive).
+     *
+     * @param email
+     * @return member or null
+     */
+    public Member findByEmail(String email) {
+        return email == null ? null : current().byEmail.get(email.trim().toLowerCase());
+    }
+
+    /**
+     * Find team members by name, first or last or both. Exact name matches are returned if there are any, otherwise
+     * close matches (speech to text rarely spells names right).
+     *
+     * @param name
+     * @return matching members, empty if none
+     */
+    public List<Member> findByName(String name) {
+        final var snap = current();
+        final var terms = nameTerms(name);
+        if (terms.isEmpty()) {
+            return List.of();
+        }
+
+        final var exact = new LinkedHashSet<Member>();
+        final var fuzzy = new LinkedHashSet<Member>();
+        for (var term : terms) {
+            exact.addAll(snap.byName.getOrDefault(term, List.of()));
+            if (term.length() >= 3) {
+                final int maxEdits = term.length() >= 6 ? 2 : 1;
+                snap.byName.forEach((t, members) -> {
+                    if (Math.abs(t.length() - term.length()) <= maxEdits && CatalogIndex.editDistance(t, term, maxEdits) <= maxEdits) {
+                        fuzzy.addAll(members);
+                    }
+                });
+            }
+        }
+
+        if (!exact.isEmpty()) {
+            // When more than one term given (first and last) prefer members matching all of them
+            final var all = exact.stream().filter(m -> nameTerms(m.getFullName()).containsAll(terms)).toList();
+            return all.isEmpty() ? List.copyOf(exact) : all;
+        }
+        return List.copyOf(fuzzy);
+    }
+
+    /**
+     * Get the current snapshot, starting a background refresh if it's past the TTL.
+     */
+    private Snapshot current() {
+        final var snap = snapshot;
+        final var wait = snap.loadedAt == null ? RETRY_INTERVAL : TTL;
+        if (isSquareEnabled() && lastAttempt.plus(wait).isBefore(Instant.now()) && refreshing.compareAndSet(false, true)) {
+            lastAttempt = Instant.now();
+            Thread.startVirtualThread(() -> {
+                try {
+                    refresh();
+                } catch (Exception e) {
+                    log.error("Team Member refresh failed, keeping current directory", e);
+                } finally {
+                    refreshing.set(false);
+                }
+            });
+        }
+        return snap;
+    }
+
+    private void refresh() {
+        final var members = new ArrayList<Member>();
+        String cursor = null;
+        do {
+            final var req = SearchTeamMembersRequest.builder().query(SearchTeamMembersQuery.builder()
+                    // Only return active employees at the defined location
+                    .filter(SearchTeamMembersFilter.builder().status(TeamMemberStatus.ACTIVE).locationIds(List.of(System.getenv("SQUARE_LOCATION_ID"))).build())
+                    .build());
+            if (cursor != null) {
+                req.cursor(cursor);
+            }
+            final var request = req.build();
+            final SearchTeamMembersResponse res = SquareGateway.call(SquareGateway.Endpoint.TEAM_MEMBERS, "directory:" + cursor,
+                    () -> getSquareClient().teamMembers().search(request)).join();
+            res.getTeamMembers().orElse(List.of()).forEach(tm -> members.add(new Member(tm)));
+            cursor = res.getCursor().orElse(null);
+        } while (cursor != null);
+
+        snapshot = new Snapshot(List.copyOf(members), Instant.now());
+        log.debug("Team Member directory loaded with {} members", members.size());
+    }
+
+    private static List<String> nameTerms(String name) {
+        if (name == null || name.isBlank()) {
+            return List.of();
+        }
+        final var terms = new ArrayList<String>();
+        for (var t : name.toLowerCase().split("[^\\p{L}\\p{Nd}]+")) {
+            if (!t.isEmpty()) {
+                terms.add(t);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Strip everything but digits and leading +, so "+1 (320) 555-1212", "(320) 555-1212" and "+13205551212" compare
+     * equal.
+     *
+     * @param phone
+     * @return
+     */
+    static String normalizePhone(String phone) {
+        final var digits = phone.replaceAll("[^0-9]", "");
+        return digits.length() == 10 ? "+1" + digits : "+" + digits;
+    }
+
+    /**
+     * A Team Member as we need it.
+     */
+    @Getter
+    public static class Member {
+
+        private final String firstName;
+        private final String lastName;
+        private final String phoneNumber;
+        private final String email;
+
+        private Member(TeamMember tm) {
+            this.firstName = tm.getGivenName().orElse(null);
+            this.lastName = tm.getFamilyName().orElse(null);
+            this.phoneNumber = tm.getPhoneNumber().orElse(null);
+            this.email = tm.getEmailAddress().orElse(null);
+        }
+
+        public String getFullName() {
+            return ((firstName != null ? firstName : "") + " " + (lastName != null ? lastName : "")).trim();
+        }
+    }
+
+    /**
+     * Immutable view of the directory with lookup indexes.
+     */
+    private static class Snapshot {
+
+        final static Snapshot EMPTY = new Snapshot(List.of(), null);
+
+        final List<Member> members;
+        final Instant loadedAt;
+        final Map<String, Member> byPhone = new HashMap<>();
+        final Map<String, Member> byEmail = new HashMap<>();
+        final Map<String, List<Member>> byName = new HashMap<>();
+
+        Snapshot(List<Member> members, Instant loadedAt) {
+            this.members = members;
+            this.loadedAt = loadedAt;
+            for (var m : members) {
+                if (m.phoneNumber != null) {
+                    byPhone.put(normalizePhone(m.phoneNumber), m);
+                }
+                if (m.email != null) {
+                    byEmail.put(m.email.trim().toLowerCase(), m);
+                }
+                nameTerms(m.getFullName()).forEach(t -> byName.computeIfAbsent(t, k -> new ArrayList<>()).add(m));
+            }
+        }
+    }
+}
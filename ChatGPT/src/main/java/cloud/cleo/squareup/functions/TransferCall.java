@@ -37,10 +37,50 @@ public class TransferCall<Request> extends AbstractFunction {
     @Override
     public Function<Request, Object> getExecutor() {
         return (var r) -> {
+            // Only ever transfer to the store or a known employee, never to a number the caller talked us into
+            if (!isAllowedNumber(r.transfer_number)) {
+                log.warn("Refusing transfer to {}, not the store or an employee number", r.transfer_number);
+                return mapper.createObjectNode().put("status", "FAILED").put("message", "That number is not an employee or the main store number, the caller cannot be transferred to it.");
+            }
             return mapper.createObjectNode().put("message", "The caller is now ready to be transferred.");
         };
     }
 
+    /**
+     * Is the number the main store number or an active employee. Both sides are normalized, GPT doesn't always send
+     * E164. When the directory has never loaded (Square disabled or unreachable at init) employees can't be checked, so
+     * the transfer is allowed like SendEmail does rather than leaving the main number as the only way out.
+     *
+     * @param number
+     * @return
+     */
+    public static boolean isAllowedNumber(String number) {
+        if (number == null || number.isBlank()) {
+            return false;
+        }
+        final var normalized = normalizeNumber(number);
+        final var main = System.getenv("MAIN_NUMBER");
+        if (main != null && !main.isBlank() && normalized.equals(normalizeNumber(main))) {
+            return true;
+        }
+        final var directory = TeamMemberDirectory.getInstance();
+        if (!directory.isLoaded()) {
+            log.warn("Team directory not loaded, transfer to {} not checked", number);
+            return true;
+        }
+        return directory.findByPhone(normalized) != null;
+    }
+
+    /**
+     * Number as E164 for Chime, however GPT formatted it.
+     *
+     * @param number
+     * @return
+     */
+    public static String normalizeNumber(String number) {
+        return TeamMemberDirectory.normalizePhone(number);
+    }
+
     private static class Request {
         @JsonPropertyDescription("the phone number in E164 format to transfer the caller to")
         @JsonProperty(value = "transfer_number",required = true)
@@ -0,0 +1,38 @@
+package cloud.cleo.squareup.json;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.node.TextNode;
+import java.io.IOException;
+
+/**
+ * Function call arguments come from OpenAI as a string holding JSON. Parse it, and if GPT sent something that isn't
+ * valid JSON keep the text so the caller can decide. Streamed pieces never come through here, OpenAiClient joins them
+ * first.
+ *
+ * @author sjensen
+ */
+public class FunctionArgumentsDeserializer extends StdDeserializer<JsonNode> {
+
+    public FunctionArgumentsDeserializer() {
+        super(JsonNode.class);
+    }
+
+    @Override
+    public JsonNode deserialize(JsonParser jp, DeserializationContext ctxt) throws IOException {
+        if (jp.currentToken() != JsonToken.VALUE_STRING) {
+            // Already JSON (stand-ins sometimes send it that way)
+            return ctxt.readTree(jp);
+        }
+        final var text = jp.getText();
+        try (var parser = jp.getCodec().getFactory().createParser(text)) {
+            final JsonNode node = parser.readValueAsTree();
+            return node != null ? node : TextNode.valueOf(text);
+        } catch (IOException e) {
+            return TextNode.valueOf(text);
+        }
+    }
+}
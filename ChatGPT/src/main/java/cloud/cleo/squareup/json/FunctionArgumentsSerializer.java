@@ -0,0 +1,24 @@
+package cloud.cleo.squareup.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import java.io.IOException;
+
+/**
+ * OpenAI wants function call arguments as a string holding JSON, not as JSON.
+ *
+ * @author sjensen
+ */
+public class FunctionArgumentsSerializer extends StdSerializer<JsonNode> {
+
+    public FunctionArgumentsSerializer() {
+        super(JsonNode.class);
+    }
+
+    @Override
+    public void serialize(JsonNode value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        gen.writeString(value.isTextual() ? value.asText() : value.toString());
+    }
+}
@@ -0,0 +1,20 @@
+package cloud.cleo.squareup.openai;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+/**
+ * One completion.
+ *
+ * @author sjensen
+ */
+@Data
+public class ChatCompletionChoice {
+
+    private Integer index;
+
+    private ChatMessage message;
+
+    @JsonProperty("finish_reason")
+    private String finishReason;
+}
@@ -0,0 +1,45 @@
+package cloud.cleo.squareup.openai;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.List;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Chat completions request, only what we use. Nulls are left out when written (see JsonCodecs).
+ *
+ * @author sjensen
+ * @see <a href="https://platform.openai.com/docs/api-reference/chat/create">Create chat completion</a>
+ */
+@Data
+@Builder(setterPrefix = "with", toBuilder = true)
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChatCompletionRequest {
+
+    private String model;
+
+    private List<ChatMessage> messages;
+
+    private List<ChatFunction> functions;
+
+    /**
+     * "auto", "none" or a function name object.
+     */
+    @JsonProperty("function_call")
+    private Object functionCall;
+
+    private Double temperature;
+
+    @JsonProperty("max_tokens")
+    private Integer maxTokens;
+
+    private Integer n;
+
+    /**
+     * Set by OpenAiClient when streaming.
+     */
+    private Boolean stream;
+}
@@ -0,0 +1,37 @@
+package cloud.cleo.squareup.openai;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.List;
+import lombok.Data;
+
+/**
+ * Chat completions response, also each chunk of a streamed response. Anything else OpenAI sends is ignored.
+ *
+ * @author sjensen
+ */
+@Data
+public class ChatCompletionResult {
+
+    private String id;
+
+    private String model;
+
+    private Long created;
+
+    private List<ChatCompletionChoice> choices;
+
+    private Usage usage;
+
+    @Data
+    public static class Usage {
+
+        @JsonProperty("prompt_tokens")
+        private Integer promptTokens;
+
+        @JsonProperty("completion_tokens")
+        private Integer completionTokens;
+
+        @JsonProperty("total_tokens")
+        private Integer totalTokens;
+    }
+}
@@ -0,0 +1,56 @@
+package cloud.cleo.squareup.openai;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.util.function.Function;
+import lombok.Getter;
+
+/**
+ * Function offered to GPT. The parameters schema is generated from the request class (see JsonSchema), the executor
+ * is what runs when GPT calls it.
+ *
+ * @author sjensen
+ */
+@Getter
+public final class ChatFunction {
+
+    private final String name;
+
+    private final String description;
+
+    private final ObjectNode parameters;
+
+    @JsonIgnore
+    private final Class<?> parametersClass;
+
+    @JsonIgnore
+    private final Function<Object, Object> executor;
+
+    @SuppressWarnings("unchecked")
+    private <T> ChatFunction(String name, String description, Class<T> parametersClass, Function<T, Object> executor) {
+        this.name = name;
+        this.description = description;
+        this.parametersClass = parametersClass;
+        this.executor = (Function<Object, Object>) executor;
+        this.parameters = JsonSchema.forClass(parametersClass);
+    }
+
+    /**
+     * Define a function.
+     *
+     * @param <T>
+     * @param name
+     * @param description
+     * @param parametersClass what the GPT arguments are read into
+     * @param executor
+     * @return
+     */
+    public static <T> ChatFunction of(String name, String description, Class<T> parametersClass, Function<T, Object> executor) {
+        return new ChatFunction(name, description, parametersClass, executor);
+    }
+
+    @Override
+    public String toString() {
+        return "ChatFunction(" + name + ")";
+    }
+}
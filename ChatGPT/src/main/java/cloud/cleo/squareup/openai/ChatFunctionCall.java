@@ -0,0 +1,28 @@
+package cloud.cleo.squareup.openai;
+
+import cloud.cleo.squareup.json.FunctionArgumentsDeserializer;
+import cloud.cleo.squareup.json.FunctionArgumentsSerializer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Function GPT wants called and the arguments for it. Arguments go over the wire as a string of JSON, here they are
+ * the parsed JSON (or the text if GPT sent something that doesn't parse).
+ *
+ * @author sjensen
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChatFunctionCall {
+
+    private String name;
+
+    @JsonSerialize(using = FunctionArgumentsSerializer.class)
+    @JsonDeserialize(using = FunctionArgumentsDeserializer.class)
+    private JsonNode arguments;
+}
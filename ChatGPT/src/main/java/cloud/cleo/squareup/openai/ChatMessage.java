@@ -0,0 +1,46 @@
+package cloud.cleo.squareup.openai;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One message in a chat completion.
+ *
+ * @author sjensen
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ChatMessage {
+
+    /**
+     * One of the ChatMessageRole values.
+     */
+    private String role;
+
+    /**
+     * Always sent, null when the assistant is calling a function.
+     */
+    @JsonInclude(JsonInclude.Include.ALWAYS)
+    private String content;
+
+    /**
+     * Function name on function result messages.
+     */
+    private String name;
+
+    @JsonProperty("function_call")
+    private ChatFunctionCall functionCall;
+
+    public ChatMessage(String role, String content) {
+        this(role, content, null, null);
+    }
+
+    public ChatMessage(String role, String content, String name) {
+        this(role, content, name, null);
+    }
+}
@@ -0,0 +1,28 @@
+package cloud.cleo.squareup.openai;
+
+/**
+ * Roles a chat message can have.
+ *
+ * @author sjensen
+ */
+public enum ChatMessageRole {
+    SYSTEM("system"),
+    USER("user"),
+    ASSISTANT("assistant"),
+    FUNCTION("function");
+
+    private final String value;
+
+    ChatMessageRole(String value) {
+        this.value = value;
+    }
+
+    /**
+     * Role as OpenAI names it.
+     *
+     * @return
+     */
+    public String value() {
+        return value;
+    }
+}
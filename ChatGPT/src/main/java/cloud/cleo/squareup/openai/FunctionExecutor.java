@@ -0,0 +1,95 @@
+package cloud.cleo.squareup.openai;
+
+import cloud.cleo.squareup.JsonCodecs;
+import static cloud.cleo.squareup.JsonCodecs.mapper;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs the functions GPT calls. Arguments are read with the cached request readers (JsonCodecs) and the result is
+ * written back as the function message GPT gets on the next completion.
+ *
+ * @author sjensen
+ */
+public final class FunctionExecutor {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(FunctionExecutor.class);
+
+    private final Map<String, ChatFunction> functions = new LinkedHashMap<>();
+
+    public FunctionExecutor(List<ChatFunction> functions) {
+        functions.forEach(f -> this.functions.put(f.getName(), f));
+    }
+
+    /**
+     * Functions to offer on the completion request.
+     *
+     * @return
+     */
+    public List<ChatFunction> getFunctions() {
+        return List.copyOf(functions.values());
+    }
+
+    /**
+     * Run the function and return its result as a function message.
+     *
+     * @param call
+     * @return
+     * @throws IllegalArgumentException if the function is unknown or the arguments can't be read
+     */
+    public ChatMessage executeAndConvertToMessage(ChatFunctionCall call) {
+        final var function = functions.get(call.getName());
+        if (function == null) {
+            throw new IllegalArgumentException("No function named " + call.getName());
+        }
+
+        final Object request;
+        try {
+            request = JsonCodecs.requestReader(function.getParametersClass()).readValue(arguments(call));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Arguments for " + call.getName() + " can't be read: " + e.getMessage(), e);
+        }
+
+        final var result = function.getExecutor().apply(request);
+        try {
+            return new ChatMessage(ChatMessageRole.FUNCTION.value(), mapper.writeValueAsString(result), call.getName());
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException("Result of " + call.getName() + " can't be written", e);
+        }
+    }
+
+    /**
+     * Same as executeAndConvertToMessage, but empty instead of throwing.
+     *
+     * @param call
+     * @return
+     */
+    public Optional<ChatMessage> executeAndConvertToMessageSafely(ChatFunctionCall call) {
+        try {
+            return Optional.of(executeAndConvertToMessage(call));
+        } catch (RuntimeException e) {
+            log.debug("Function {} failed: {}", call.getName(), e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Arguments as JSON, GPT sometimes double encodes them so a string is parsed once more.
+     */
+    private static JsonNode arguments(ChatFunctionCall call) throws IOException {
+        final var args = call.getArguments();
+        if (args == null || args.isNull()) {
+            return mapper.createObjectNode();
+        }
+        return args.isTextual() ? mapper.readTree(args.asText()) : args;
+    }
+}
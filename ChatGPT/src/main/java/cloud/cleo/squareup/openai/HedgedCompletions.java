@@ -0,0 +1,265 @@
+package cloud.cleo.squareup.openai;
+
+import cloud.cleo.squareup.Metrics;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Hedged completion calls. One slow OpenAI response holds up the whole turn (the caller is sitting in silence), so if
+ * the first call hasn't answered within the p90 we've seen for prompts of about the same size, an identical second
+ * call is sent, optionally to a fallback model or endpoint. Whichever answers first wins and the other is cancelled.
+ *
+ * Hedges are capped two ways. Each call earns a fraction of a hedge (OPENAI_HEDGE_PERCENT, default 10) so at most that
+ * share of calls are ever hedged, and the prompt tokens a hedge throws away come out of a per minute allowance
+ * (OPENAI_HEDGE_MAX_TOKENS_PER_MINUTE, default 20000). Until a size has OPENAI_HEDGE_MIN_SAMPLES (default 20) the hedge
+ * waits OPENAI_HEDGE_DELAY_MILLIS (default 4000).
+ *
+ * OPENAI_HEDGE_MODEL and OPENAI_HEDGE_BASE_URL (with OPENAI_HEDGE_API_KEY, defaults to OPENAI_API_KEY) send the hedge
+ * somewhere else, by default it's the same model and endpoint.
+ *
+ * @author sjensen
+ */
+public final class HedgedCompletions {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(HedgedCompletions.class);
+
+    private final static int HEDGE_PERCENT = Integer.parseInt(System.getenv().getOrDefault("OPENAI_HEDGE_PERCENT", "10"));
+
+    private final static long MAX_TOKENS_PER_MINUTE = Long.parseLong(System.getenv().getOrDefault("OPENAI_HEDGE_MAX_TOKENS_PER_MINUTE", "20000"));
+
+    private final static int MIN_SAMPLES = Integer.parseInt(System.getenv().getOrDefault("OPENAI_HEDGE_MIN_SAMPLES", "20"));
+
+    private final static Duration DEFAULT_DELAY = Duration.ofMillis(Long.parseLong(System.getenv().getOrDefault("OPENAI_HEDGE_DELAY_MILLIS", "4000")));
+
+    /**
+     * Never hedge sooner than this, even the fastest answers take about this long.
+     */
+    private final static Duration MIN_DELAY = Duration.ofMillis(300);
+
+    /**
+     * No point in a hedge with less than this left before the deadline.
+     */
+    private final static Duration MIN_HEDGE_TIME = Duration.ofSeconds(1);
+
+    /**
+     * Hedges that can be saved up for a burst of slow calls, in thousandths of a hedge like the credits.
+     */
+    private final static long MAX_CREDITS = 3_000L;
+
+    /**
+     * Prompt size buckets by estimated tokens: under 1k, 1-2k, 2-4k, 4-8k, 8k and up.
+     */
+    private final static int BUCKETS = 5;
+
+    /**
+     * Latencies kept per bucket for the p90.
+     */
+    private final static int WINDOW = 128;
+
+    /**
+     * Rough chars per token, close enough to size buckets and the waste allowance.
+     */
+    private final static int CHARS_PER_TOKEN = 4;
+
+    private final OpenAiClient primary;
+
+    private final OpenAiClient hedge;
+
+    private final String hedgeModel;
+
+    private final long[][] latencies = new long[BUCKETS][WINDOW];
+
+    private final int[] samples = new int[BUCKETS];
+
+    /**
+     * Hedges earned, in thousandths.
+     */
+    private long credits = MAX_CREDITS;
+
+    private long minute;
+
+    private long tokensThisMinute;
+
+    private HedgedCompletions(OpenAiClient primary, OpenAiClient hedge, String hedgeModel) {
+        this.primary = primary;
+        this.hedge = hedge;
+        this.hedgeModel = hedgeModel;
+    }
+
+    /**
+     * Hedging on top of the primary client, configured from the environment.
+     *
+     * @param primary
+     * @return
+     */
+    public static HedgedCompletions fromEnvironment(OpenAiClient primary) {
+        final var baseUrl = System.getenv("OPENAI_HEDGE_BASE_URL");
+        final var model = System.getenv("OPENAI_HEDGE_MODEL");
+        OpenAiClient hedge = primary;
+        if (baseUrl != null && !baseUrl.isBlank()) {
+            final var key = System.getenv().getOrDefault("OPENAI_HEDGE_API_KEY", System.getenv("OPENAI_API_KEY"));
+            hedge = new OpenAiClient(baseUrl.endsWith("/") ? baseUrl : baseUrl + "/", key, Duration.ofSeconds(50));
+        }
+        log.debug("Completion hedging at {}% to {} model {}", HEDGE_PERCENT, baseUrl != null ? baseUrl : "primary", model != null ? model : "unchanged");
+        return new HedgedCompletions(primary, hedge, model == null || model.isBlank() ? null : model);
+    }
+
+    /**
+     * Create a completion, hedging if it's slow.
+     *
+     * @param request
+     * @param deadline
+     * @param hedged whether this call may be hedged (voice turns, where a caller is waiting)
+     * @return
+     * @throws CompletionException with HttpTimeoutException if the deadline passed, OpenAiHttpException on an error
+     * status
+     */
+    public ChatCompletionResult complete(ChatCompletionRequest request, Instant deadline, boolean hedged) {
+        final var tokens = estimateTokens(request);
+        final var bucket = bucket(tokens);
+        final var start = System.nanoTime();
+        earnCredit();
+
+        final var first = primary.createChatCompletionAsync(request, deadline);
+        if (!hedged || HEDGE_PERCENT <= 0) {
+            return record(bucket, start, first.join());
+        }
+
+        final var delay = hedgeDelay(bucket);
+        try {
+            return record(bucket, start, first.get(delay.toMillis(), TimeUnit.MILLISECONDS));
+        } catch (TimeoutException e) {
+            // Slow, hedge below if allowed
+        } catch (ExecutionException e) {
+            throw new CompletionException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            first.cancel(true);
+            throw new CompletionException(e);
+        }
+
+        if (Duration.between(Instant.now(), deadline).compareTo(MIN_HEDGE_TIME) < 0 || !tryHedge(tokens)) {
+            Metrics.increment("OpenAI.HedgesSkipped");
+            return record(bucket, start, first.join());
+        }
+
+        log.debug("Completion slower than {} ms, hedging", delay.toMillis());
+        Metrics.increment("OpenAI.Hedges");
+        final var second = hedge.createChatCompletionAsync(hedgeModel != null ? request.toBuilder().withModel(hedgeModel).build() : request, deadline);
+
+        final var winner = new CompletableFuture<ChatCompletionResult>();
+        final var failures = new AtomicInteger();
+        first.whenComplete((r, e) -> {
+            if (e == null) {
+                winner.complete(r);
+            } else if (failures.incrementAndGet() == 2) {
+                winner.completeExceptionally(e);
+            }
+        });
+        second.whenComplete((r, e) -> {
+            if (e == null) {
+                if (winner.complete(r)) {
+                    Metrics.increment("OpenAI.HedgeWins");
+                }
+            } else if (failures.incrementAndGet() == 2) {
+                // Both failed, report the primary's failure
+                first.whenComplete((r1, e1) -> winner.completeExceptionally(e1));
+            }
+        });
+
+        try {
+            // Elapsed for the primary either way, if it lost it took at least this long
+            return record(bucket, start, winner.join());
+        } finally {
+            first.cancel(true);
+            second.cancel(true);
+            // One of the two prompts was thrown away
+            Metrics.add("OpenAI.HedgeWastedTokens", tokens);
+        }
+    }
+
+    /**
+     * Reconnect the hedge client after a SnapStart restore, if it's not the primary.
+     *
+     * @return
+     */
+    public CompletableFuture<Void> reconnectHedge() {
+        return hedge != primary ? hedge.reconnect() : CompletableFuture.completedFuture(null);
+    }
+
+    private ChatCompletionResult record(int bucket, long start, ChatCompletionResult result) {
+        final var millis = (System.nanoTime() - start) / 1_000_000L;
+        Metrics.recordMillis("OpenAI.CompletionTime", millis);
+        synchronized (latencies) {
+            latencies[bucket][samples[bucket]++ % WINDOW] = millis;
+        }
+        return result;
+    }
+
+    /**
+     * p90 of recent calls this size, or the default until there are enough.
+     */
+    private Duration hedgeDelay(int bucket) {
+        final long[] recent;
+        synchronized (latencies) {
+            if (samples[bucket] < MIN_SAMPLES) {
+                return DEFAULT_DELAY;
+            }
+            recent = Arrays.copyOf(latencies[bucket], Math.min(samples[bucket], WINDOW));
+        }
+        Arrays.sort(recent);
+        final var p90 = Duration.ofMillis(recent[(int) Math.ceil(recent.length * 0.9) - 1]);
+        return p90.compareTo(MIN_DELAY) < 0 ? MIN_DELAY : p90;
+    }
+
+    private synchronized void earnCredit() {
+        credits = Math.min(MAX_CREDITS, credits + HEDGE_PERCENT * 10L);
+    }
+
+    /**
+     * Take a hedge credit and the tokens it will waste, if both are available.
+     */
+    private synchronized boolean tryHedge(long tokens) {
+        final var now = System.currentTimeMillis() / 60_000L;
+        if (now != minute) {
+            minute = now;
+            tokensThisMinute = 0L;
+        }
+        if (credits < 1_000L || tokensThisMinute + tokens > MAX_TOKENS_PER_MINUTE) {
+            return false;
+        }
+        credits -= 1_000L;
+        tokensThisMinute += tokens;
+        return true;
+    }
+
+    private static long estimateTokens(ChatCompletionRequest request) {
+        long chars = 0;
+        if (request.getMessages() != null) {
+            for (var m : request.getMessages()) {
+                chars += m.getContent() != null ? m.getContent().length() : 0;
+                chars += m.getFunctionCall() != null && m.getFunctionCall().getArguments() != null ? m.getFunctionCall().getArguments().toString().length() : 0;
+            }
+        }
+        if (request.getFunctions() != null) {
+            for (var f : request.getFunctions()) {
+                chars += f.getDescription().length() + f.getParameters().toString().length();
+            }
+        }
+        return chars / CHARS_PER_TOKEN;
+    }
+
+    private static int bucket(long tokens) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(tokens / 1000L));
+    }
+}
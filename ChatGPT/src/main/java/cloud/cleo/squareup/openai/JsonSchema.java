@@ -0,0 +1,93 @@
+package cloud.cleo.squareup.openai;
+
+import static cloud.cleo.squareup.JsonCodecs.mapper;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JSON Schema for function parameters, built from the request class the same way Jackson sees it, so property names,
+ * @JsonPropertyDescription and @JsonProperty(required = true) all carry over. Only covers what function requests use
+ * (strings, numbers, booleans, enums, java.time, lists and nested beans). Built once per class.
+ *
+ * @author sjensen
+ */
+final class JsonSchema {
+
+    private final static Map<Class<?>, ObjectNode> schemas = new ConcurrentHashMap<>();
+
+    private JsonSchema() {
+    }
+
+    /**
+     * Schema for a function request class.
+     *
+     * @param clazz
+     * @return shared schema, don't modify
+     */
+    static ObjectNode forClass(Class<?> clazz) {
+        return schemas.computeIfAbsent(clazz, c -> forType(mapper.constructType(c)));
+    }
+
+    private static ObjectNode forType(JavaType type) {
+        final var node = mapper.createObjectNode();
+        final var raw = type.getRawClass();
+
+        if (raw == String.class || raw == char.class || raw == Character.class) {
+            node.put("type", "string");
+        } else if (raw == boolean.class || raw == Boolean.class) {
+            node.put("type", "boolean");
+        } else if (raw == int.class || raw == long.class || raw == short.class || raw == byte.class
+                || raw == Integer.class || raw == Long.class || raw == Short.class || raw == Byte.class
+                || raw == BigInteger.class) {
+            node.put("type", "integer");
+        } else if (raw.isPrimitive() || Number.class.isAssignableFrom(raw)) {
+            node.put("type", "number");
+        } else if (raw == LocalDate.class) {
+            node.put("type", "string").put("format", "date");
+        } else if (raw == LocalTime.class) {
+            node.put("type", "string").put("format", "time");
+        } else if (raw == ZonedDateTime.class || raw == OffsetDateTime.class || raw == LocalDateTime.class || raw == Instant.class) {
+            node.put("type", "string").put("format", "date-time");
+        } else if (raw.isEnum()) {
+            node.put("type", "string");
+            final var values = node.putArray("enum");
+            for (var e : raw.getEnumConstants()) {
+                values.add(mapper.convertValue(e, String.class));
+            }
+        } else if (type.isArrayType() || type.isCollectionLikeType()) {
+            node.put("type", "array");
+            node.set("items", forType(type.getContentType()));
+        } else if (type.isMapLikeType()) {
+            node.put("type", "object");
+        } else if (raw.getName().startsWith("java.")) {
+            // ZoneId, Duration, UUID and friends are all strings to Jackson
+            node.put("type", "string");
+        } else {
+            node.put("type", "object");
+            final var properties = node.putObject("properties");
+            final var required = mapper.createArrayNode();
+            for (var prop : mapper.getDeserializationConfig().introspect(type).findProperties()) {
+                final var propSchema = forType(prop.getPrimaryType());
+                final var description = prop.getMetadata().getDescription();
+                if (description != null) {
+                    propSchema.put("description", description);
+                }
+                properties.set(prop.getName(), propSchema);
+                if (prop.isRequired()) {
+                    required.add(prop.getName());
+                }
+            }
+            node.set("required", required);
+        }
+        return node;
+    }
+}
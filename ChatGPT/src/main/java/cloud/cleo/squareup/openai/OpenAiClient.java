@@ -0,0 +1,341 @@
+package cloud.cleo.squareup.openai;
+
+import static cloud.cleo.squareup.JsonCodecs.COMPLETION_REQUEST_WRITER;
+import static cloud.cleo.squareup.JsonCodecs.COMPLETION_RESULT_READER;
+import static cloud.cleo.squareup.JsonCodecs.mapper;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * OpenAI chat completions over the JDK HTTP client (HTTP/2, one connection multiplexed for all calls). Requests and
+ * responses go through the shared mapper's pre-built writer and reader, and every call has a deadline, when it passes
+ * the HTTP exchange is cancelled and the future fails with HttpTimeoutException.
+ *
+ * OPENAI_API_KEY and OPENAI_BASE_URL (default https://api.openai.com/, the LoadTest stand-ins for example) configure
+ * fromEnvironment().
+ *
+ * @author sjensen
+ */
+public final class OpenAiClient {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(OpenAiClient.class);
+
+    private final static String DEFAULT_BASE_URL = "https://api.openai.com/";
+
+    private final static Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+
+    private final static String SSE_DATA = "data:";
+
+    private final static String SSE_DONE = "[DONE]";
+
+    private final static ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final String baseUrl;
+
+    private final URI completionsUri;
+
+    private final String authorization;
+
+    private final Duration timeout;
+
+    /**
+     * Replaced by reconnect(), the JDK client has no way to drop its pooled connections.
+     */
+    private volatile HttpClient httpClient = newHttpClient();
+
+    /**
+     * @param baseUrl API base, ending with /
+     * @param apiKey
+     * @param timeout used when a call doesn't give a deadline
+     */
+    public OpenAiClient(String baseUrl, String apiKey, Duration timeout) {
+        this.baseUrl = baseUrl;
+        this.completionsUri = URI.create(baseUrl + "v1/chat/completions");
+        this.authorization = "Bearer " + apiKey;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Client for OPENAI_BASE_URL (or api.openai.com) with OPENAI_API_KEY.
+     *
+     * @param timeout used when a call doesn't give a deadline
+     * @return
+     */
+    public static OpenAiClient fromEnvironment(Duration timeout) {
+        var baseUrl = System.getenv("OPENAI_BASE_URL");
+        if (baseUrl == null || baseUrl.isBlank()) {
+            baseUrl = DEFAULT_BASE_URL;
+        } else {
+            log.debug("OpenAI base URL is {}", baseUrl);
+        }
+        return new OpenAiClient(baseUrl.endsWith("/") ? baseUrl : baseUrl + "/", System.getenv("OPENAI_API_KEY"), timeout);
+    }
+
+    /**
+     * Create a completion, blocking.
+     *
+     * @param request
+     * @param deadline
+     * @return
+     * @throws CompletionException with HttpTimeoutException if the deadline passed, OpenAiHttpException on an error
+     * status
+     */
+    public ChatCompletionResult createChatCompletion(ChatCompletionRequest request, Instant deadline) {
+        return createChatCompletionAsync(request, deadline).join();
+    }
+
+    /**
+     * Create a completion using the default timeout.
+     *
+     * @param request
+     * @return
+     */
+    public CompletableFuture<ChatCompletionResult> createChatCompletionAsync(ChatCompletionRequest request) {
+        return createChatCompletionAsync(request, Instant.now().plus(timeout));
+    }
+
+    /**
+     * Create a completion.
+     *
+     * @param request
+     * @param deadline cancel the call if no answer by then
+     * @return
+     */
+    public CompletableFuture<ChatCompletionResult> createChatCompletionAsync(ChatCompletionRequest request, Instant deadline) {
+        return send(request, deadline, "application/json", HttpResponse.BodyHandlers.ofByteArray(), res -> {
+            if (res.statusCode() / 100 != 2) {
+                throw error(res.statusCode(), res.body());
+            }
+            try {
+                return COMPLETION_RESULT_READER.readValue(res.body());
+            } catch (IOException e) {
+                throw new UncheckedIOException("OpenAI response can't be read", e);
+            }
+        });
+    }
+
+    /**
+     * Stream a completion. Content is handed to onContent as it arrives (so speech or typing can start early) and the
+     * future completes with the whole completion put back together, function call included.
+     *
+     * @param request
+     * @param onContent called with each piece of content, on a virtual thread
+     * @param deadline cancel the call if not finished by then
+     * @return
+     */
+    public CompletableFuture<ChatCompletionResult> streamChatCompletion(ChatCompletionRequest request, Consumer<String> onContent, Instant deadline) {
+        final var body = new AtomicReference<Stream<String>>();
+        final var future = send(request.toBuilder().withStream(true).build(), deadline, "text/event-stream", HttpResponse.BodyHandlers.ofLines(), res -> {
+            body.set(res.body());
+            try (Stream<String> lines = res.body()) {
+                if (res.statusCode() / 100 != 2) {
+                    throw error(res.statusCode(), String.join("\n", lines.toList()).getBytes());
+                }
+                return assemble(lines, onContent);
+            }
+        });
+        // Past the headers cancelling the exchange does nothing, closing the body stops the read
+        future.whenComplete((r, e) -> {
+            final var lines = body.get();
+            if (e != null && lines != null) {
+                lines.close();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Swap in a new HTTP client and open a connection with it. Call after a SnapStart restore, the connections held
+     * from before the snapshot are dead.
+     *
+     * @return completes once OpenAI answered (with any status)
+     */
+    public CompletableFuture<Void> reconnect() {
+        final var old = httpClient;
+        httpClient = newHttpClient();
+        old.shutdownNow();
+        return httpClient.sendAsync(HttpRequest.newBuilder(URI.create(baseUrl + "v1/models"))
+                .timeout(CONNECT_TIMEOUT)
+                .header("Authorization", authorization)
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .build(), HttpResponse.BodyHandlers.discarding())
+                .thenAccept(res -> log.debug("OpenAI connection open, HEAD returned {}", res.statusCode()));
+    }
+
+    /**
+     * Send with what's left until the deadline and read the response on a virtual thread. If the deadline passes first
+     * the HTTP exchange is cancelled and the future fails with HttpTimeoutException, cancelling the returned future
+     * cancels the exchange too.
+     */
+    private <B, T> CompletableFuture<T> send(ChatCompletionRequest request, Instant deadline, String accept,
+            HttpResponse.BodyHandler<B> handler, Function<HttpResponse<B>, T> read) {
+        final var remaining = Duration.between(Instant.now(), deadline);
+        if (remaining.isNegative() || remaining.isZero()) {
+            return CompletableFuture.failedFuture(new HttpTimeoutException("OpenAI deadline already passed"));
+        }
+
+        final var exchange = httpClient.sendAsync(post(request, remaining, accept), handler);
+        final CompletableFuture<T> result = exchange.thenApplyAsync(read, executor)
+                .orTimeout(remaining.toMillis(), TimeUnit.MILLISECONDS)
+                .handle((r, e) -> {
+                    if (e == null) {
+                        return r;
+                    }
+                    exchange.cancel(true);
+                    final var cause = e instanceof CompletionException ? e.getCause() : e;
+                    if (cause instanceof TimeoutException) {
+                        throw new CompletionException(new HttpTimeoutException("OpenAI call passed its deadline"));
+                    }
+                    throw e instanceof CompletionException ce ? ce : new CompletionException(e);
+                });
+        // Cancelling what we return (like the losing side of a hedge) aborts the HTTP exchange as well
+        result.whenComplete((r, e) -> {
+            if (result.isCancelled()) {
+                exchange.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private HttpRequest post(ChatCompletionRequest request, Duration remaining, String accept) {
+        final byte[] body;
+        try {
+            body = COMPLETION_REQUEST_WRITER.writeValueAsBytes(request);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Completion request can't be written", e);
+        }
+        return HttpRequest.newBuilder(completionsUri)
+                .timeout(remaining)
+                .header("Authorization", authorization)
+                .header("Content-Type", "application/json")
+                .header("Accept", accept)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+    }
+
+    /**
+     * Put the streamed chunks back together into one completion. Chunks are read as trees, not ChatCompletionResult,
+     * since function call arguments arrive as pieces of a JSON string ("{\"ci", "ty\":") that must be kept exactly as
+     * sent and only parsed once whole.
+     */
+    private static ChatCompletionResult assemble(Stream<String> lines, Consumer<String> onContent) {
+        final var content = new StringBuilder();
+        final var arguments = new StringBuilder();
+        String functionName = null;
+        String role = null;
+        String finishReason = null;
+        JsonNode last = null;
+
+        final var it = lines.iterator();
+        while (it.hasNext()) {
+            final var line = it.next();
+            if (!line.startsWith(SSE_DATA)) {
+                continue;
+            }
+            final var data = line.substring(SSE_DATA.length()).trim();
+            if (SSE_DONE.equals(data)) {
+                break;
+            }
+            try {
+                last = mapper.readTree(data);
+            } catch (IOException e) {
+                throw new UncheckedIOException("OpenAI stream chunk can't be read", e);
+            }
+            final var choice = last.path("choices").path(0);
+            if (choice.isMissingNode()) {
+                continue;
+            }
+            if (choice.hasNonNull("finish_reason")) {
+                finishReason = choice.get("finish_reason").asText();
+            }
+            final var delta = choice.path("delta");
+            if (delta.hasNonNull("role")) {
+                role = delta.get("role").asText();
+            }
+            final var piece = delta.path("content").textValue();
+            if (piece != null && !piece.isEmpty()) {
+                content.append(piece);
+                onContent.accept(piece);
+            }
+            final var fc = delta.path("function_call");
+            if (fc.hasNonNull("name")) {
+                functionName = fc.get("name").asText();
+            }
+            final var args = fc.get("arguments");
+            if (args != null && !args.isNull()) {
+                // Normally a piece of the JSON string, some servers send the whole object at once
+                arguments.append(args.isTextual() ? args.textValue() : args.toString());
+            }
+        }
+
+        final var message = new ChatMessage(role != null ? role : ChatMessageRole.ASSISTANT.value(), content.isEmpty() ? null : content.toString());
+        if (functionName != null) {
+            message.setFunctionCall(new ChatFunctionCall(functionName, parseArguments(arguments.toString())));
+        }
+        final var choice = new ChatCompletionChoice();
+        choice.setIndex(0);
+        choice.setMessage(message);
+        choice.setFinishReason(finishReason);
+
+        final var result = new ChatCompletionResult();
+        if (last != null) {
+            result.setId(last.path("id").textValue());
+            result.setModel(last.path("model").textValue());
+            result.setCreated(last.hasNonNull("created") ? last.get("created").asLong() : null);
+        }
+        result.setChoices(List.of(choice));
+        return result;
+    }
+
+    private static JsonNode parseArguments(String arguments) {
+        try {
+            return mapper.readTree(arguments);
+        } catch (IOException e) {
+            return TextNode.valueOf(arguments);
+        }
+    }
+
+    private static OpenAiHttpException error(int status, byte[] body) {
+        String type = null;
+        String message = null;
+        try {
+            final var error = mapper.readTree(body).path("error");
+            type = error.path("type").asText(null);
+            message = error.path("message").asText(null);
+        } catch (IOException e) {
+            // Not JSON, status is all we have
+        }
+        return new OpenAiHttpException(status, type, message);
+    }
+
+    private static HttpClient newHttpClient() {
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .executor(executor)
+                .build();
+    }
+}
@@ -0,0 +1,25 @@
+package cloud.cleo.squareup.openai;
+
+import lombok.Getter;
+
+/**
+ * OpenAI answered with an error status.
+ *
+ * @author sjensen
+ */
+@Getter
+public class OpenAiHttpException extends RuntimeException {
+
+    private final int statusCode;
+
+    /**
+     * Error type from the body, like "invalid_request_error", null if there wasn't one.
+     */
+    private final String type;
+
+    public OpenAiHttpException(int statusCode, String type, String message) {
+        super("OpenAI returned " + statusCode + (message != null ? ": " + message : ""));
+        this.statusCode = statusCode;
+        this.type = type;
+    }
+}
@@ -0,0 +1,107 @@
+package cloud.cleo.squareup.outbox;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.HexFormat;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * An outbound SMS or Email waiting to be sent. This is what goes on the Outbox queue as JSON.
+ *
+ * @author sjensen
+ */
+@Data
+@NoArgsConstructor
+public class Notification {
+
+    public enum Type {
+        SMS,
+        EMAIL
+    }
+
+    private Type type;
+    /**
+     * Dedupe ID, the same notification enqueued twice (GPT calling a function twice, a retried turn) has the same ID and
+     * is only sent once.
+     */
+    private String id;
+    /**
+     * E164 number for SMS, email address for EMAIL.
+     */
+    private String to;
+    /**
+     * Email only.
+     */
+    private String subject;
+    private String body;
+    /**
+     * Email only, optional.
+     */
+    private String replyTo;
+    /**
+     * Unix timestamp (millis) when enqueued, used to measure time in the queue.
+     */
+    private Long createdAt;
+
+    /**
+     * SMS to a phone.
+     *
+     * @param to E164 number
+     * @param body
+     * @param dedupeKey what makes this message unique (session ID, inbound message ID, etc.)
+     * @return
+     */
+    public static Notification sms(String to, String body, String dedupeKey) {
+        final var n = new Notification();
+        n.type = Type.SMS;
+        n.to = to;
+        n.body = body;
+        n.createdAt = Instant.now().toEpochMilli();
+        n.id = dedupeId(n, dedupeKey);
+        return n;
+    }
+
+    /**
+     * Email to an address.
+     *
+     * @param to email address
+     * @param subject
+     * @param body plain text body
+     * @param replyTo optional reply to address
+     * @param dedupeKey what makes this message unique (session ID, etc.)
+     * @return
+     */
+    public static Notification email(String to, String subject, String body, String replyTo, String dedupeKey) {
+        final var n = new Notification();
+        n.type = Type.EMAIL;
+        n.to = to;
+        n.subject = subject;
+        n.body = body;
+        n.replyTo = replyTo;
+        n.createdAt = Instant.now().toEpochMilli();
+        n.id = dedupeId(n, dedupeKey);
+        return n;
+    }
+
+    /**
+     * Hash of everything that makes the message what it is, so identical messages for the same key collapse to one.
+     */
+    private static String dedupeId(Notification n, String dedupeKey) {
+        try {
+            final var md = MessageDigest.getInstance("SHA-256");
+            for (var s : new String[]{n.type.name(), n.to, n.subject, n.body, dedupeKey}) {
+                if (s != null) {
+                    md.update(s.getBytes(StandardCharsets.UTF_8));
+                }
+                md.update((byte) 0);
+            }
+            return HexFormat.of().formatHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
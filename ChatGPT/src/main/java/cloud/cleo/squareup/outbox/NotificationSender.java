@@ -0,0 +1,96 @@
+package cloud.cleo.squareup.outbox;
+
+import java.util.concurrent.CompletableFuture;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.crt.AwsCrtAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.ses.SesAsyncClient;
+import software.amazon.awssdk.services.ses.model.SendEmailRequest;
+import software.amazon.awssdk.services.sns.SnsAsyncClient;
+
+/**
+ * Actually delivers a Notification via SNS (SMS) or SES (Email). Used by the Outbox sender Lambda, and by the Outbox
+ * itself when in SYNC mode or when the queue can't be reached.
+ *
+ * Doesn't depend on ChatGPTLambda so the sender Lambda doesn't have to initialize OpenAI, Square, etc.
+ *
+ * @author sjensen
+ */
+public final class NotificationSender {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(NotificationSender.class);
+
+    public final static String EMAIL_SOURCE = "CopperBot@CopperFoxGifts.com";
+
+    final static SdkAsyncHttpClient crtAsyncHttpClient = AwsCrtAsyncHttpClient.create();
+
+    private final static SnsAsyncClient snsAsyncClient = SnsAsyncClient.builder()
+            // Force SMS sending to east because that's where all the 10DLC and campaign crap setup is done
+            // Otherwise have to pay for registrations and numbers in 2 regions, HUGE HASSLE (and more monthly cost)
+            // Also then all texts are sourced from the same phone number for consistancy
+            .region(Region.US_EAST_1)
+            .httpClient(crtAsyncHttpClient)
+            .build();
+
+    private final static SesAsyncClient sesAsyncClient = SesAsyncClient.builder()
+            .httpClient(crtAsyncHttpClient)
+            .build();
+
+    private NotificationSender() {
+    }
+
+    /**
+     * Send the notification.
+     *
+     * @param n
+     * @return future with the SNS or SES message ID
+     */
+    public static CompletableFuture<String> send(Notification n) {
+        return switch (n.getType()) {
+            case SMS ->
+                snsAsyncClient.publish(b -> b.phoneNumber(n.getTo()).message(n.getBody()))
+                .thenApply(result -> {
+                    log.info("SMS [{}] sent to {} with SNS id of {}", n.getBody(), n.getTo(), result.messageId());
+                    return result.messageId();
+                });
+            case EMAIL -> {
+                final var requestB = SendEmailRequest.builder()
+                        .destination(dest -> dest.toAddresses(n.getTo()))
+                        .message((mesg) -> {
+                            mesg.body((body) -> {
+                                body.text(cont -> cont.data(n.getBody()));
+                            }).subject(cont -> cont.data(n.getSubject()));
+                        }).source(EMAIL_SOURCE);
+
+                if (n.getReplyTo() != null) {
+                    requestB.replyToAddresses(n.getReplyTo());
+                }
+
+                yield sesAsyncClient.sendEmail(requestB.build())
+                        .thenApply(result -> {
+                            log.info("Sent email to {} with id {}", n.getTo(), result.messageId());
+                            log.info("Subject: {}", n.getSubject());
+                            log.info("Message: {}", n.getBody());
+                            return result.messageId();
+                        });
+            }
+        };
+    }
+
+    /**
+     * Open the SNS connection with a cheap call. The CRT client can't drop its pooled connections, but one that died
+     * with the snapshot gets replaced here rather than on the first real send. Call after a SnapStart restore.
+     *
+     * @return completes once SNS answered, errors (like not being allowed the call) still mean it's connected
+     */
+    public static CompletableFuture<Void> reconnect() {
+        return snsAsyncClient.getSMSAttributes(b -> b.attributes("DefaultSMSType"))
+                .handle((r, e) -> {
+                    log.debug("SNS connection open{}", e == null ? "" : ", call failed with " + e.getMessage());
+                    return null;
+                });
+    }
+}
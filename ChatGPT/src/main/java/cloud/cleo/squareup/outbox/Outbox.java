@@ -0,0 +1,139 @@
+package cloud.cleo.squareup.outbox;
+
+import cloud.cleo.squareup.Metrics;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+
+/**
+ * Outbound SMS and Email go through here rather than calling SNS/SES in the middle of a turn. In SQS mode the
+ * notification is put on a FIFO queue in the background and the caller gets success right away, the OutboxSenderLambda
+ * does the actual sending with retries (SQS redrive) and dedupe (FIFO dedupe ID plus a recently sent set). The enqueue
+ * overlaps with the rest of the turn and the handler calls flush() at the end to make sure it landed.
+ *
+ * SYNC mode sends inline and throws on failure, which is what you want for tests or when no queue is configured.
+ *
+ * OUTBOX_MODE=SQS|SYNC, defaults to SQS when OUTBOX_QUEUE_URL is set.
+ *
+ * @author sjensen
+ */
+public final class Outbox {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(Outbox.class);
+
+    public enum Mode {
+        SQS,
+        SYNC
+    }
+
+    private final static String QUEUE_URL = System.getenv("OUTBOX_QUEUE_URL");
+
+    public final static Mode MODE = resolveMode();
+
+    // Plain mapper, Notification is a simple bean
+    private final static ObjectMapper mapper = new ObjectMapper();
+
+    final static ObjectReader NOTIFICATION_READER = mapper.readerFor(Notification.class);
+
+    final static ObjectWriter NOTIFICATION_WRITER = mapper.writerFor(Notification.class);
+
+    private final static SqsAsyncClient sqsAsyncClient = MODE == Mode.SQS
+            ? SqsAsyncClient.builder().httpClient(NotificationSender.crtAsyncHttpClient).build() : null;
+
+    private final static Outbox me = new Outbox();
+
+    /**
+     * Enqueues started but not yet complete, so we can make sure they finish before the Lambda returns.
+     */
+    private final Set<CompletableFuture<?>> pending = ConcurrentHashMap.newKeySet();
+
+    private Outbox() {
+        log.debug("Outbox mode is {}{}", MODE, MODE == Mode.SQS ? " using " + QUEUE_URL : "");
+    }
+
+    public static Outbox getInstance() {
+        return me;
+    }
+
+    /**
+     * Queue a notification for sending. Returns right away in SQS mode, if the queue can't be reached the notification
+     * is sent directly instead. In SYNC mode the notification is sent before returning.
+     *
+     * @param n
+     * @throws java.util.concurrent.CompletionException in SYNC mode if the send fails
+     */
+    public void enqueue(Notification n) {
+        if (MODE == Mode.SYNC) {
+            NotificationSender.send(n).join();
+            Metrics.increment("Outbox.SentSync");
+            return;
+        }
+
+        final String body;
+        try {
+            body = NOTIFICATION_WRITER.writeValueAsString(n);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Notification cannot be serialized", e);
+        }
+
+        final var future = sqsAsyncClient.sendMessage(b -> b.queueUrl(QUEUE_URL)
+                .messageBody(body)
+                // Keeps messages to the same person in order
+                .messageGroupId(n.getTo())
+                .messageDeduplicationId(n.getId()))
+                .thenApply(r -> {
+                    log.debug("Notification {} queued as {}", n.getId(), r.messageId());
+                    Metrics.increment("Outbox.Enqueued");
+                    return r.messageId();
+                })
+                .exceptionallyCompose(e -> {
+                    log.error("Outbox enqueue failed, sending directly", e);
+                    Metrics.increment("Outbox.EnqueueFailures");
+                    return NotificationSender.send(n);
+                })
+                .exceptionally(e -> {
+                    log.error("Notification could not be sent {}", n, e);
+                    Metrics.increment("Outbox.Lost");
+                    return null;
+                });
+
+        pending.add(future);
+        future.whenComplete((r, e) -> pending.remove(future));
+    }
+
+    /**
+     * Wait for any enqueues in flight, call before the Lambda returns so nothing is left frozen mid request.
+     *
+     * @param maxWait
+     */
+    public void flush(Duration maxWait) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        final var start = System.currentTimeMillis();
+        try {
+            CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new)).get(maxWait.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.error("Outbox enqueues did not complete in time", e);
+        }
+        Metrics.recordMillis("Outbox.FlushTime", System.currentTimeMillis() - start);
+    }
+
+    private static Mode resolveMode() {
+        final var mode = System.getenv("OUTBOX_MODE");
+        if (mode != null && !mode.isBlank()) {
+            return Mode.valueOf(mode.trim().toUpperCase());
+        }
+        return QUEUE_URL != null && !QUEUE_URL.isBlank() ? Mode.SQS : Mode.SYNC;
+    }
+}
@@ -0,0 +1,89 @@
+package cloud.cleo.squareup.outbox;
+
+import cloud.cleo.squareup.AsyncLogging;
+import cloud.cleo.squareup.Metrics;
+import static cloud.cleo.squareup.outbox.Outbox.NOTIFICATION_READER;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Drains the Outbox FIFO queue and sends the notifications. Failures are reported back per message so only those are
+ * retried, after enough receives SQS moves them to the dead letter queue.
+ *
+ * Since the queue is FIFO, once a message fails every message after it in the batch is reported as failed too, otherwise
+ * a later message to the same person could go out before the earlier one.
+ *
+ * @author sjensen
+ */
+public class OutboxSenderLambda implements RequestHandler<SQSEvent, SQSBatchResponse> {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(OutboxSenderLambda.class);
+
+    private final static int MAX_SENT_IDS = 10_000;
+
+    /**
+     * Same as the SQS FIFO deduplication interval, a notification with the same ID after this is a new send.
+     */
+    private final static long DEDUPE_WINDOW_MS = Duration.ofMinutes(5).toMillis();
+
+    /**
+     * IDs this container has sent and when. FIFO dedupe covers 5 minutes at enqueue time, this covers a redelivery
+     * after we sent but before the delete happened, for the same 5 minutes.
+     */
+    private final static Map<String, Long> sentIds = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_SENT_IDS || System.currentTimeMillis() - eldest.getValue() > DEDUPE_WINDOW_MS;
+        }
+    });
+
+    @Override
+    public SQSBatchResponse handleRequest(SQSEvent input, Context cntxt) {
+        final var failures = new ArrayList<SQSBatchResponse.BatchItemFailure>();
+        boolean failed = false;
+        try {
+            for (var msg : input.getRecords()) {
+                if (failed) {
+                    failures.add(new SQSBatchResponse.BatchItemFailure(msg.getMessageId()));
+                    continue;
+                }
+                try {
+                    final Notification n = NOTIFICATION_READER.readValue(msg.getBody());
+                    final var sentAt = sentIds.get(n.getId());
+                    if (sentAt != null && System.currentTimeMillis() - sentAt <= DEDUPE_WINDOW_MS) {
+                        log.debug("Notification {} already sent, skipping", n.getId());
+                        Metrics.increment("Outbox.Duplicates");
+                        continue;
+                    }
+                    NotificationSender.send(n).join();
+                    // Re-insert so the map stays in send order for expiry
+                    sentIds.remove(n.getId());
+                    sentIds.put(n.getId(), System.currentTimeMillis());
+                    Metrics.increment("Outbox.Sent");
+                    if (n.getCreatedAt() != null) {
+                        Metrics.recordMillis("Outbox.QueueTime", System.currentTimeMillis() - n.getCreatedAt());
+                    }
+                } catch (Exception e) {
+                    log.error("Notification send failed for message {}", msg.getMessageId(), e);
+                    Metrics.increment("Outbox.SendFailures");
+                    failures.add(new SQSBatchResponse.BatchItemFailure(msg.getMessageId()));
+                    failed = true;
+                }
+            }
+        } finally {
+            Metrics.flush();
+            AsyncLogging.drain();
+        }
+        return new SQSBatchResponse(failures);
+    }
+}
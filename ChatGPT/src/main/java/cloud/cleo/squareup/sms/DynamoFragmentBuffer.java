@@ -0,0 +1,236 @@
+package cloud.cleo.squareup.sms;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+
+/**
+ * Fragment buffer in DynamoDB, one item per sender holding the buffered fragments and the lease. Every change is a
+ * single conditional UpdateItem so concurrent Lambdas can't lose a fragment or both think they hold the lease.
+ *
+ * Item: phoneNumber (PK), fragments (list of {id, text, at}), inflight (same, drained but not yet complete), ids
+ * (string set of every fragment ID seen, so redeliveries are ignored until the item expires), lastAt, leaseOwner,
+ * leaseUntil, ttl
+ *
+ * @author sjensen
+ */
+public class DynamoFragmentBuffer implements FragmentBuffer {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(DynamoFragmentBuffer.class);
+
+    /**
+     * Items are only needed for seconds, but keep them around a day for troubleshooting.
+     */
+    private final static Duration TTL = Duration.ofDays(1);
+
+    private final static AttributeValue EMPTY_LIST = AttributeValue.fromL(List.of());
+
+    // ttl is a reserved word
+    private final static Map<String, String> TTL_NAME = Map.of("#ttl", "ttl");
+
+    private final DynamoDbAsyncClient client;
+    private final String tableName;
+
+    public DynamoFragmentBuffer(DynamoDbAsyncClient client, String tableName) {
+        this.client = client;
+        this.tableName = tableName;
+    }
+
+    @Override
+    public boolean append(String sender, Fragment fragment) {
+        final var now = Instant.now();
+        try {
+            update(UpdateItemRequest.builder()
+                    .key(key(sender))
+                    .updateExpression("SET fragments = list_append(if_not_exists(fragments, :empty), :f), lastAt = :now, #ttl = :ttl ADD ids :idset")
+                    .conditionExpression("attribute_not_exists(ids) OR NOT contains(ids, :id)")
+                    .expressionAttributeNames(TTL_NAME)
+                    .expressionAttributeValues(Map.of(
+                            ":empty", EMPTY_LIST,
+                            ":f", AttributeValue.fromL(List.of(toAttribute(fragment))),
+                            ":now", number(now.toEpochMilli()),
+                            ":ttl", number(now.plus(TTL).getEpochSecond()),
+                            ":idset", AttributeValue.fromSs(List.of(fragment.id())),
+                            ":id", AttributeValue.fromS(fragment.id()))));
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            log.debug("Fragment {} already buffered for {}", fragment.id(), sender);
+            return false;
+        }
+    }
+
+    @Override
+    public void restore(String sender, List<Fragment> fragments) {
+        if (fragments.isEmpty()) {
+            return;
+        }
+        update(UpdateItemRequest.builder()
+                .key(key(sender))
+                .updateExpression("SET fragments = list_append(:f, if_not_exists(fragments, :empty)) REMOVE inflight ADD ids :idset")
+                .expressionAttributeValues(Map.of(
+                        ":empty", EMPTY_LIST,
+                        ":f", AttributeValue.fromL(fragments.stream().map(DynamoFragmentBuffer::toAttribute).toList()),
+                        ":idset", AttributeValue.fromSs(fragments.stream().map(Fragment::id).distinct().toList()))));
+    }
+
+    @Override
+    public Instant lastFragmentAt(String sender) {
+        final var item = join(client.getItem(b -> b.tableName(tableName)
+                .key(key(sender))
+                .consistentRead(true)
+                .projectionExpression("lastAt, fragments"))).item();
+        if (item == null || !item.containsKey("fragments") || item.get("fragments").l().isEmpty() || !item.containsKey("lastAt")) {
+            return null;
+        }
+        return Instant.ofEpochMilli(Long.parseLong(item.get("lastAt").n()));
+    }
+
+    @Override
+    public List<Fragment> drain(String sender) {
+        final Map<String, AttributeValue> old;
+        try {
+            // ids stay, so a redelivered message is still recognized after its turn
+            old = update(UpdateItemRequest.builder()
+                    .key(key(sender))
+                    .updateExpression("SET inflight = list_append(if_not_exists(inflight, :empty), fragments) REMOVE fragments")
+                    .conditionExpression("attribute_exists(fragments)")
+                    .expressionAttributeValues(Map.of(":empty", EMPTY_LIST))
+                    .returnValues(ReturnValue.UPDATED_OLD)).attributes();
+        } catch (ConditionalCheckFailedException e) {
+            return List.of();
+        }
+        if (old == null || !old.containsKey("fragments")) {
+            return List.of();
+        }
+        return old.get("fragments").l().stream().map(DynamoFragmentBuffer::fromAttribute).toList();
+    }
+
+    @Override
+    public void complete(String sender) {
+        update(UpdateItemRequest.builder()
+                .key(key(sender))
+                .updateExpression("REMOVE inflight"));
+    }
+
+    @Override
+    public boolean tryLock(String sender, String owner, Duration lease) {
+        final var now = Instant.now();
+        final Map<String, AttributeValue> old;
+        try {
+            old = update(UpdateItemRequest.builder()
+                    .key(key(sender))
+                    .updateExpression("SET leaseOwner = :o, leaseUntil = :until")
+                    .conditionExpression("attribute_not_exists(leaseUntil) OR leaseUntil < :now OR leaseOwner = :o")
+                    .expressionAttributeValues(Map.of(
+                            ":o", AttributeValue.fromS(owner),
+                            ":until", number(now.plus(lease).toEpochMilli()),
+                            ":now", number(now.toEpochMilli())))
+                    .returnValues(ReturnValue.ALL_OLD)).attributes();
+        } catch (ConditionalCheckFailedException e) {
+            return false;
+        }
+        if (old != null && old.containsKey("inflight") && !old.get("inflight").l().isEmpty()
+                && (!old.containsKey("leaseOwner") || !owner.equals(old.get("leaseOwner").s()))) {
+            recover(sender, owner, old.get("inflight").l().size());
+        }
+        return true;
+    }
+
+    /**
+     * The last owner drained fragments and never finished their turn, put them back in front of anything newer.
+     */
+    private void recover(String sender, String owner, int count) {
+        try {
+            update(UpdateItemRequest.builder()
+                    .key(key(sender))
+                    .updateExpression("SET fragments = list_append(inflight, if_not_exists(fragments, :empty)), lastAt = if_not_exists(lastAt, :zero) REMOVE inflight")
+                    .conditionExpression("leaseOwner = :o AND attribute_exists(inflight)")
+                    .expressionAttributeValues(Map.of(
+                            ":o", AttributeValue.fromS(owner),
+                            ":empty", EMPTY_LIST,
+                            ":zero", number(0))));
+            log.warn("Recovered {} fragments for {} left in flight by a previous owner", count, sender);
+        } catch (ConditionalCheckFailedException e) {
+            log.debug("Fragments for {} already recovered", sender);
+        }
+    }
+
+    @Override
+    public boolean unlockIfEmpty(String sender, String owner) {
+        try {
+            update(UpdateItemRequest.builder()
+                    .key(key(sender))
+                    .updateExpression("REMOVE leaseOwner, leaseUntil")
+                    .conditionExpression("leaseOwner = :o AND (attribute_not_exists(fragments) OR size(fragments) = :zero)")
+                    .expressionAttributeValues(Map.of(
+                            ":o", AttributeValue.fromS(owner),
+                            ":zero", number(0))));
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void unlock(String sender, String owner) {
+        try {
+            update(UpdateItemRequest.builder()
+                    .key(key(sender))
+                    .updateExpression("REMOVE leaseOwner, leaseUntil")
+                    .conditionExpression("leaseOwner = :o")
+                    .expressionAttributeValues(Map.of(":o", AttributeValue.fromS(owner))));
+        } catch (ConditionalCheckFailedException e) {
+            log.debug("Lease for {} already taken by someone else", sender);
+        }
+    }
+
+    private UpdateItemResponse update(UpdateItemRequest.Builder builder) {
+        return join(client.updateItem(builder.tableName(tableName).build()));
+    }
+
+    /**
+     * Join and unwrap, so callers can catch the DynamoDB exception itself.
+     */
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw e;
+        }
+    }
+
+    private static Map<String, AttributeValue> key(String sender) {
+        return Map.of("phoneNumber", AttributeValue.fromS(sender));
+    }
+
+    private static AttributeValue number(long value) {
+        return AttributeValue.fromN(Long.toString(value));
+    }
+
+    private static AttributeValue toAttribute(Fragment f) {
+        return AttributeValue.fromM(Map.of(
+                "id", AttributeValue.fromS(f.id()),
+                "text", AttributeValue.fromS(f.text() != null ? f.text() : ""),
+                "at", number(f.at())));
+    }
+
+    private static Fragment fromAttribute(AttributeValue av) {
+        final var m = av.m();
+        return new Fragment(m.get("id").s(), m.get("text").s(), Long.parseLong(m.get("at").n()));
+    }
+}
@@ -0,0 +1,95 @@
+package cloud.cleo.squareup.sms;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Holds SMS fragments per sender until they are taken as one turn, along with a lease so only one invocation at a time
+ * processes a given sender.
+ *
+ * @author sjensen
+ */
+public interface FragmentBuffer {
+
+    /**
+     * One inbound text.
+     *
+     * @param id inbound message ID, a fragment with an ID already in the buffer is ignored
+     * @param text message body
+     * @param at Unix timestamp (millis) received
+     */
+    record Fragment(String id, String text, long at) {
+
+    }
+
+    /**
+     * Add a fragment for the sender.
+     *
+     * @param sender
+     * @param fragment
+     * @return false if the fragment was already in the buffer
+     */
+    boolean append(String sender, Fragment fragment);
+
+    /**
+     * Put fragments back at the front of the buffer (and no longer in flight), used when the turn for them failed.
+     *
+     * @param sender
+     * @param fragments
+     */
+    void restore(String sender, List<Fragment> fragments);
+
+    /**
+     * When the most recent fragment for the sender was appended.
+     *
+     * @param sender
+     * @return null if nothing is buffered
+     */
+    Instant lastFragmentAt(String sender);
+
+    /**
+     * Take everything buffered for the sender. The fragments are kept aside as in flight until complete() or restore(),
+     * so if the owner dies before the turn is saved whoever takes over the lease gets them back. Fragment IDs are
+     * remembered either way, so a redelivered message is still ignored after its turn.
+     *
+     * @param sender
+     * @return fragments in the order received, empty if none
+     */
+    List<Fragment> drain(String sender);
+
+    /**
+     * The turn for the fragments last drained is saved, forget them.
+     *
+     * @param sender
+     */
+    void complete(String sender);
+
+    /**
+     * Acquire or extend the lease on the sender. Taking over from an owner whose lease ran out puts anything it left in
+     * flight back at the front of the buffer.
+     *
+     * @param sender
+     * @param owner unique to the caller
+     * @param lease how long before the lease can be taken by someone else
+     * @return true if the caller now holds the lease
+     */
+    boolean tryLock(String sender, String owner, Duration lease);
+
+    /**
+     * Release the lease only if nothing is buffered, so a fragment appended while the owner was busy is never stranded.
+     *
+     * @param sender
+     * @param owner
+     * @return true if released, false if there are fragments to process or the lease was lost
+     */
+    boolean unlockIfEmpty(String sender, String owner);
+
+    /**
+     * Release the lease regardless of what's buffered.
+     *
+     * @param sender
+     * @param owner
+     */
+    void unlock(String sender, String owner);
+}
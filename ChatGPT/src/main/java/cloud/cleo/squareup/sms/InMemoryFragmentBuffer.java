@@ -0,0 +1,136 @@
+package cloud.cleo.squareup.sms;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fragment buffer that lives in this container only. Used when no table is configured (local runs and tests), since
+ * each container would have its own buffer it doesn't coordinate across concurrent Lambdas.
+ *
+ * @author sjensen
+ */
+public class InMemoryFragmentBuffer implements FragmentBuffer {
+
+    /**
+     * Fragment IDs remembered per sender for dedupe, oldest forgotten first.
+     */
+    private final static int MAX_IDS = 1_000;
+
+    private final Map<String, State> senders = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean append(String sender, Fragment fragment) {
+        final var state = state(sender);
+        synchronized (state) {
+            if (!state.ids.add(fragment.id())) {
+                return false;
+            }
+            if (state.ids.size() > MAX_IDS) {
+                state.ids.remove(state.ids.iterator().next());
+            }
+            state.fragments.add(fragment);
+            state.lastAt = Instant.now();
+            return true;
+        }
+    }
+
+    @Override
+    public void restore(String sender, List<Fragment> fragments) {
+        final var state = state(sender);
+        synchronized (state) {
+            state.fragments.addAll(0, fragments);
+            state.inflight.clear();
+            fragments.forEach(f -> state.ids.add(f.id()));
+        }
+    }
+
+    @Override
+    public Instant lastFragmentAt(String sender) {
+        final var state = state(sender);
+        synchronized (state) {
+            return state.fragments.isEmpty() ? null : state.lastAt;
+        }
+    }
+
+    @Override
+    public List<Fragment> drain(String sender) {
+        final var state = state(sender);
+        synchronized (state) {
+            final var result = List.copyOf(state.fragments);
+            state.inflight.addAll(result);
+            state.fragments.clear();
+            return result;
+        }
+    }
+
+    @Override
+    public void complete(String sender) {
+        final var state = state(sender);
+        synchronized (state) {
+            state.inflight.clear();
+        }
+    }
+
+    @Override
+    public boolean tryLock(String sender, String owner, Duration lease) {
+        final var state = state(sender);
+        synchronized (state) {
+            final var now = Instant.now();
+            if (state.leaseOwner == null || state.leaseUntil.isBefore(now) || state.leaseOwner.equals(owner)) {
+                if (!owner.equals(state.leaseOwner) && !state.inflight.isEmpty()) {
+                    // Previous owner never finished, its fragments go back in front
+                    state.fragments.addAll(0, state.inflight);
+                    state.inflight.clear();
+                }
+                state.leaseOwner = owner;
+                state.leaseUntil = now.plus(lease);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public boolean unlockIfEmpty(String sender, String owner) {
+        final var state = state(sender);
+        synchronized (state) {
+            if (!owner.equals(state.leaseOwner) || !state.fragments.isEmpty()) {
+                return false;
+            }
+            state.leaseOwner = null;
+            state.leaseUntil = null;
+            return true;
+        }
+    }
+
+    @Override
+    public void unlock(String sender, String owner) {
+        final var state = state(sender);
+        synchronized (state) {
+            if (owner.equals(state.leaseOwner)) {
+                state.leaseOwner = null;
+                state.leaseUntil = null;
+            }
+        }
+    }
+
+    private State state(String sender) {
+        return senders.computeIfAbsent(sender, k -> new State());
+    }
+
+    private static class State {
+
+        final List<Fragment> fragments = new ArrayList<>();
+        final List<Fragment> inflight = new ArrayList<>();
+        final Set<String> ids = new LinkedHashSet<>();
+        Instant lastAt;
+        String leaseOwner;
+        Instant leaseUntil;
+    }
+}
@@ -0,0 +1,128 @@
+package cloud.cleo.squareup.sms;
+
+import static cloud.cleo.squareup.ChatGPTLambda.dynamoDbAsyncClient;
+import cloud.cleo.squareup.Metrics;
+import cloud.cleo.squareup.sms.FragmentBuffer.Fragment;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * SMS users often send a question as two or three quick texts. Rather than a GPT turn (and a reply) for each one, texts
+ * from the same sender are buffered and once the sender has been quiet for the debounce window they are taken as one
+ * turn.
+ *
+ * Whoever holds the lease on the sender does the waiting and runs the turns, anyone else just appends to the buffer and
+ * returns. Turns for a sender never run at the same time, so the session isn't written by two turns at once either.
+ *
+ * Buffer is DynamoDB when SMS_BUFFER_TABLE_NAME is set, otherwise in memory (local runs and tests). Window is
+ * SMS_DEBOUNCE_MILLIS, default 2 seconds.
+ *
+ * @author sjensen
+ */
+public final class SmsCoalescer {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(SmsCoalescer.class);
+
+    private final static String TABLE_NAME = System.getenv("SMS_BUFFER_TABLE_NAME");
+
+    private final static Duration DEBOUNCE = Duration.ofMillis(Long.parseLong(System.getenv().getOrDefault("SMS_DEBOUNCE_MILLIS", "2000")));
+
+    /**
+     * Longer than the Lambda timeout, so a crashed owner only holds a sender until the next text comes in after this.
+     */
+    private final static Duration LEASE = Duration.ofSeconds(90);
+
+    private final static SmsCoalescer me = new SmsCoalescer(TABLE_NAME == null || TABLE_NAME.isBlank()
+            ? new InMemoryFragmentBuffer() : new DynamoFragmentBuffer(dynamoDbAsyncClient, TABLE_NAME));
+
+    private final FragmentBuffer buffer;
+
+    SmsCoalescer(FragmentBuffer buffer) {
+        this.buffer = buffer;
+        log.debug("SMS fragment buffer is {} with debounce {}", buffer.getClass().getSimpleName(), DEBOUNCE);
+    }
+
+    public static SmsCoalescer getInstance() {
+        return me;
+    }
+
+    /**
+     * Buffer the texts and, if nobody else is handling this sender, run turns until the buffer is empty. Returns once
+     * the texts are safely buffered (someone else will process them) or processed.
+     *
+     * @param sender origination number
+     * @param fragments texts received, in order
+     * @param turn runs one GPT turn for the merged fragments
+     * @throws RuntimeException if a turn failed, the fragments for it are back in the buffer
+     */
+    public void submit(String sender, List<Fragment> fragments, Consumer<List<Fragment>> turn) {
+        fragments.forEach(f -> buffer.append(sender, f));
+
+        final var owner = UUID.randomUUID().toString();
+        if (!buffer.tryLock(sender, owner, LEASE)) {
+            log.debug("Another invocation is handling {}, texts left in buffer", sender);
+            Metrics.increment("Pinpoint.HandedOff");
+            return;
+        }
+
+        while (true) {
+            waitForQuiet(sender);
+            final var batch = buffer.drain(sender);
+            if (!batch.isEmpty()) {
+                try {
+                    turn.accept(batch);
+                } catch (RuntimeException e) {
+                    buffer.restore(sender, batch);
+                    buffer.unlock(sender, owner);
+                    throw e;
+                }
+                // Turn is saved, if we had died before here whoever took the lease next would have run it again
+                buffer.complete(sender);
+                Metrics.increment("Pinpoint.Turns");
+                Metrics.add("Pinpoint.CoalescedFragments", batch.size() - 1);
+            }
+            // Only let go if nothing came in while we were busy, otherwise go around again
+            if (buffer.unlockIfEmpty(sender, owner) || !buffer.tryLock(sender, owner, LEASE)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Merge fragment texts into the one message GPT sees.
+     *
+     * @param fragments
+     * @return
+     */
+    public static String merge(List<Fragment> fragments) {
+        return String.join(" ", fragments.stream().map(Fragment::text).filter(t -> t != null && !t.isBlank()).map(String::trim).toList());
+    }
+
+    /**
+     * Wait until nothing has been appended for the debounce window.
+     */
+    private void waitForQuiet(String sender) {
+        while (true) {
+            final var last = buffer.lastFragmentAt(sender);
+            if (last == null) {
+                return;
+            }
+            final var wait = Duration.between(Instant.now(), last.plus(DEBOUNCE));
+            if (wait.isNegative() || wait.isZero()) {
+                return;
+            }
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
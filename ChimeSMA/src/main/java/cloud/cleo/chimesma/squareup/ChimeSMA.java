@@ -2,10 +2,27 @@ package cloud.cleo.chimesma.squareup;
 
 import cloud.cleo.chimesma.actions.*;
 import cloud.cleo.chimesma.model.ParticipantTag;
+import cloud.cleo.chimesma.model.SMARequest;
+import cloud.cleo.chimesma.model.SMAResponse;
+import cloud.cleo.squareup.common.LocationHoursService;
+import cloud.cleo.squareup.common.Tracing;
+import com.amazonaws.services.lambda.runtime.Context;
+import java.time.Duration;
+import java.util.Collections;
 import java.util.EnumMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.crt.AwsCrtAsyncHttpClient;
+import software.amazon.awssdk.services.lambda.LambdaAsyncClient;
+import software.amazon.awssdk.services.lambda.model.InvocationType;
+import software.amazon.awssdk.services.ssm.SsmAsyncClient;
 
 /**
  * IVR for Square Retail using Lex Bot backed by ChatGPT.
@@ -15,9 +32,9 @@ import java.util.function.Function;
 public class ChimeSMA extends AbstractFlow {
 
     /**
-     * Simple Object that caches Square data about hours to determine whether store is open or closed
+     * Shared service that caches Square data about hours, only asked if there is no precomputed store schedule
      */
-    private final static SquareHours squareHours = SquareHours.getInstance();
+    private final static LocationHoursService squareHours = LocationHoursService.fromEnvironment();
 
     /**
      * Main Transfer number used
@@ -28,10 +45,89 @@ public class ChimeSMA extends AbstractFlow {
      */
     private final static String VC_ARN = System.getenv("VC_ARN");
 
-    private final static Action MAIN_MENU = getMainMenu();
+    /**
+     * Lambda that builds the caller profile (Square customer, phone type, prior sessions) while the welcome plays
+     */
+    private final static String CALLER_PROFILE_FUNCTION = System.getenv("CALLER_PROFILE_FUNCTION");
+
+    /**
+     * Most a new call waits on the caller profile invoke, it's fire and forget but should leave before we freeze.
+     */
+    private final static Duration PROFILE_SEND_WAIT = Duration.ofMillis(50);
+
+    /**
+     * Most the response waits on the collector for our spans, it's on localhost so normally a few ms.
+     */
+    private final static Duration TRACE_FLUSH_WAIT = Duration.ofMillis(100);
+
+    private final static SdkAsyncHttpClient crtAsyncHttpClient = AwsCrtAsyncHttpClient.create();
+
+    private final static LambdaAsyncClient lambdaClient = LambdaAsyncClient.builder()
+            .httpClient(crtAsyncHttpClient)
+            .build();
+
+    /**
+     * Open/closed from the schedule the StoreScheduleLambda keeps in SSM, so call setup never waits on Square
+     */
+    private final static StoreStatus storeStatus = new StoreStatus(SsmAsyncClient.builder().httpClient(crtAsyncHttpClient).build(),
+            System.getenv("STORE_SCHEDULE_PARAMETER"), squareHours);
+
+    /**
+     * Opens fresh Square, Lambda and SSM connections after a SnapStart restore (and re-reads the store schedule). DryRun
+     * only checks we may invoke.
+     */
+    private final static RestoreHook restoreHook = RestoreHook.register(() -> CompletableFuture.allOf(storeStatus.reload(),
+            CALLER_PROFILE_FUNCTION == null || CALLER_PROFILE_FUNCTION.isBlank()
+            ? CompletableFuture.completedFuture(null)
+            : lambdaClient.invoke(r -> r.functionName(CALLER_PROFILE_FUNCTION).invocationType(InvocationType.DRY_RUN))));
+
+    /**
+     * Per call values that the shared actions below need, kept in the call's transaction attributes. Nothing per call
+     * is ever set on an action, so the graph is built once and concurrent calls can't see each other's prompts.
+     */
+    private final static String ATTR_BOT_RESPONSE = "BotResponse";
+    private final static String ATTR_TRANSFER_NUMBER = "TransferNumber";
+
+    /**
+     * Tracing (when enabled) keeps the call span's start with its traceparent, and when the caller started waiting on us
+     * (call start or a bot hand-back), for what action and in which language. The wait ends when the next prompt or bot
+     * is handed to SMA, which can be a later invocation.
+     */
+    private final static String ATTR_CALL_START = "CallStart";
+    private final static String ATTR_WAIT_START = "WaitStart";
+    private final static String ATTR_WAIT_ACTION = "WaitAction";
+    private final static String ATTR_WAIT_LANGUAGE = "WaitLanguage";
+    private final static String WAIT_NEW_CALL = "new_call";
 
     private final static Action ERROR_ACTION = getSystemErrorAction();
 
+    /**
+     * Lex bot for each language, all sharing the same next action handler.
+     */
+    private final static Map<Language, StartBotConversationAction> BOTS = getBots();
+
+    private final static Action MAIN_MENU = getMainMenu();
+
+    private final static Action WELCOME = getWelcome();
+
+    /**
+     * Spans ended while handling the event (they end inside actions' content functions) are sent once the response is
+     * built. We wait at most TRACE_FLUSH_WAIT for the collector to take them before returning and being frozen, past
+     * that they are delivered when the container next runs or lost with it.
+     *
+     * @param request
+     * @param context
+     * @return
+     */
+    @Override
+    public SMAResponse handleRequest(SMARequest request, Context context) {
+        try {
+            return super.handleRequest(request, context);
+        } finally {
+            Tracing.flush(TRACE_FLUSH_WAIT);
+        }
+    }
+
     /**
      * Initial action is to play welcome message and whether store is open or closed
      *
@@ -39,10 +135,14 @@ public class ChimeSMA extends AbstractFlow {
      */
     @Override
     protected Action getInitialAction() {
+        return WELCOME;
+    }
 
-        // Play open or closed prompt based on Square Hours  
+    private static Action getWelcome() {
+
+        // Play open or closed prompt based on the store schedule
         final var openClosed = PlayAudioAction.builder()
-                .withKeyF(f -> squareHours.isOpen() ? "open.wav" : "closed.wav") // This is always in english
+                .withKeyF(f -> storeStatus.isOpen() ? "open.wav" : "closed.wav") // This is always in english
                 .withNextAction(MAIN_MENU)
                 .withErrorAction(MAIN_MENU)
                 .build();
@@ -62,91 +162,13 @@ public class ChimeSMA extends AbstractFlow {
      *
      * @return
      */
-    public static Action getMainMenu() {
+    private static Action getMainMenu() {
+
+        final var lexBotEN = BOTS.get(Language.English);
 
         final var hangup = HangupAction.builder()
                 .withDescription("Normal Hangup ").build();
 
-        // Function that passes the Calling Number to Lex
-        Function<StartBotConversationAction, Map<String, String>> attributesFunction = (action) -> {
-            return Map.of("callingNumber", action.getEvent().getCallDetails().getParticipants().get(0).getFrom());
-        };
-
-        // Map to Hold all all our Bots by Language
-        Map<Language, StartBotConversationAction> botLangMap = new EnumMap<>(Language.class);
-
-        final var lexBotEN = StartBotConversationAction.builder()
-                .withDescription("ChatGPT English")
-                .withLocale(Locale.forLanguageTag("en-US"))
-                .withContent("Tell us how we can help today?")
-                .withSessionAttributesF(attributesFunction)
-                .build();
-        botLangMap.put(Language.English, lexBotEN);
-
-        // Spanish
-        botLangMap.put(Language.Spanish, StartBotConversationAction.builder()
-                .withDescription("ChatGPT Spanish")
-                .withLocale(Locale.forLanguageTag("es-US"))
-                .withContent("Cuéntanos ¿cómo podemos ayudar hoy?") // Tell us how we can help today?
-                .withSessionAttributesF(attributesFunction)
-                .build());
-
-        // German
-        botLangMap.put(Language.German, StartBotConversationAction.builder()
-                .withDescription("ChatGPT German")
-                .withLocale(Locale.forLanguageTag("de-DE"))
-                .withContent("Sagen Sie uns, wie wir heute helfen können?") // Tell us how we can help today?
-                .withSessionAttributesF(attributesFunction)
-                .build());
-
-        // Finnish
-        botLangMap.put(Language.Finnish, StartBotConversationAction.builder()
-                .withDescription("ChatGPT Finnish")
-                .withLocale(Locale.forLanguageTag("fi-FI"))
-                .withContent("Kerro meille, kuinka voimme auttaa tänään?") // Tell us how we can help today?
-                .withSessionAttributesF(attributesFunction)
-                .build());
-
-        // French
-        botLangMap.put(Language.French, StartBotConversationAction.builder()
-                .withDescription("ChatGPT French")
-                .withLocale(Locale.forLanguageTag("fr-CA"))
-                .withContent("Dites-nous comment nous pouvons vous aider aujourd'hui ?") // Tell us how we can help today?
-                .withSessionAttributesF(attributesFunction)
-                .build());
-
-        // Dutch
-        botLangMap.put(Language.Dutch, StartBotConversationAction.builder()
-                .withDescription("ChatGPT Dutch")
-                .withLocale(Locale.forLanguageTag("nl-NL"))
-                .withContent("Vertel ons hoe we vandaag kunnen helpen?") // Tell us how we can help today?
-                .withSessionAttributesF(attributesFunction)
-                .build());
-
-        // Norwegian
-        botLangMap.put(Language.Norwegian, StartBotConversationAction.builder()
-                .withDescription("ChatGPT Norwegian")
-                .withLocale(Locale.forLanguageTag("no-NO"))
-                .withContent("Fortell oss hvordan vi kan hjelpe i dag?") // Tell us how we can help today?
-                .withSessionAttributesF(attributesFunction)
-                .build());
-
-        // Polish
-        botLangMap.put(Language.Polish, StartBotConversationAction.builder()
-                .withDescription("ChatGPT Polish")
-                .withLocale(Locale.forLanguageTag("pl-PL"))
-                .withContent("Powiedz nam, jak możemy dziś pomóc?") // Tell us how we can help today?
-                .withSessionAttributesF(attributesFunction)
-                .build());
-
-        // Swedish
-        botLangMap.put(Language.Swedish, StartBotConversationAction.builder()
-                .withDescription("ChatGPT Swedish")
-                .withLocale(Locale.forLanguageTag("sv-SE"))
-                .withContent("Berätta för oss hur vi kan hjälpa till idag?") // Tell us how we can help today?
-                .withSessionAttributesF(attributesFunction)
-                .build());
-
         //
         // MOH Flow TODO
         //
@@ -167,62 +189,160 @@ public class ChimeSMA extends AbstractFlow {
                 .withDigitsRecevedAction(HangupAction.builder().withParticipantTag(ParticipantTag.LEG_B).build())
                 .build();
 
+        // When transferring or hanging up, play back GPT's last response
+        final var sayHold = SpeakAction.builder()
+                .withDescription("Indicate MOH and press any digit to return")
+                .withTextF(tf -> botResponse(tf))
+                .withNextAction(anyDigit)
+                .build();
+
+        final var sayGoodbye = SpeakAction.builder()
+                .withDescription("Saying Good Bye")
+                .withTextF(tf -> botResponse(tf))
+                .withNextAction(hangup)
+                .build();
+
+        final var transferMain = CallAndBridgeAction.builder()
+                .withDescription("Send Call to Main Number")
+                .withRingbackToneKey("ringing.wav")
+                .withCallTimeoutSeconds(60) // Store has 40 seconds before VM, and default is 30, so push to 60 to be safe
+                .withUri(MAIN_NUMBER)
+                .build();
+        if (!"PSTN".equalsIgnoreCase(VC_ARN)) {
+            // Transfers to main number use SIP by sending call to Voice Connector
+            transferMain.setArn(VC_ARN);
+            transferMain.setDescription("Send Call to Main Number via SIP");
+        }
+
+        final var sayTransferMain = SpeakAction.builder()
+                .withDescription("Indicate transfer in progress with Bot response")
+                .withTextF(tf -> botResponse(tf))
+                .withNextAction(transferMain)
+                .build();
+
+        final var sayTransfer = SpeakAction.builder()
+                .withDescription("Indicate transfer in progress with Bot response")
+                .withTextF(tf -> botResponse(tf))
+                .build();
+        // Team member numbers vary, so only the transfer itself is made per call
+        sayTransfer.setNextActionF(a -> CallAndBridgeAction.builder()
+                .withDescription("Send Call to Team Member")
+                .withRingbackToneKey("ringing.wav")
+                .withCallTimeoutSeconds(60) // Store has 40 seconds before VM, and default is 30, so push to 60 to be safe
+                .withUri(takeAttribute(a, ATTR_TRANSFER_NUMBER))
+                .build());
+
         // Create a Next Action handler to be shared by all the Bots
         Function<StartBotConversationAction, Action> botNextAction = (a) -> {
             final var attrs = a.getActionData().getIntentResult().getSessionState().getSessionAttributes();
-            final var botResponse = attrs.get("bot_response");  // When transferring or hanging up, play back GPT's last response
+            final var botResponse = attrs.get("bot_response");
+            if (botResponse != null) {
+                a.getTransactionAttributes().put(ATTR_BOT_RESPONSE, botResponse);
+            }
             final var action = BotActions.fromString(attrs.get("action"));  // We don't need or want real intents, so the action when exiting the Bot will be set
-            return switch (action) {
+            final var next = switch (action) {
                 case transfer_call -> {
                     final var phone = attrs.get("transfer_number");
-                    final var transfer = CallAndBridgeAction.builder()
-                            .withDescription("Send Call to Team Member")
-                            .withRingbackToneKey("ringing.wav")
-                            .withCallTimeoutSeconds(60) // Store has 40 seconds before VM, and default is 30, so push to 60 to be safe
-                            .withUri(phone)
-                            .build();
-                    if (phone.equals(MAIN_NUMBER) && !VC_ARN.equalsIgnoreCase("PSTN")) {
-                        // We are transferring to main number, so use SIP by sending call to Voice Connector
-                        transfer.setArn(VC_ARN);
-                        transfer.setDescription("Send Call to Main Number via SIP");
+                    if (phone != null && phone.equals(MAIN_NUMBER)) {
+                        yield sayTransferMain;
                     }
-                    yield SpeakAction.builder()
-                    .withDescription("Indicate transfer in progress with Bot response")
-                    .withText(botResponse)
-                    .withNextAction(transfer)
-                    .build();
+                    a.getTransactionAttributes().put(ATTR_TRANSFER_NUMBER, phone);
+                    yield sayTransfer;
                 }
                 case hold_call ->
-                    SpeakAction.builder()
-                    .withDescription("Indicate MOH and press any digit to return")
-                    .withText(botResponse)
-                    .withNextAction(anyDigit)
-                    .build();
+                    sayHold;
                 case hangup_call ->
-                    SpeakAction.builder()
-                    .withDescription("Saying Good Bye")
-                    .withTextF(tf -> botResponse)
-                    .withNextAction(hangup)
-                    .build();
-                case switch_language -> {
-                    // Obtain the bot locale based on the language attribute from the session
-                    final var bot = botLangMap.getOrDefault(Language.valueOf(attrs.get("language")), lexBotEN);
-                    // Start bot in that language with GPT response (which will be in the target language)
-                    bot.setContentF(f -> botResponse);
-                    yield bot;
-                }
+                    sayGoodbye;
+                case switch_language ->
+                    // Bot in that language starts with GPT response (which will be in the target language)
+                    BOTS.getOrDefault(Language.valueOf(attrs.get("language")), lexBotEN);
                 case unknown ->
                     ERROR_ACTION;
             };
+            // Caller waits from here until the next prompt or bot is handed to SMA
+            startWait(a, action.name(), languageOf(next instanceof StartBotConversationAction ? next : a));
+            if (next == ERROR_ACTION) {
+                // The error prompts are shared with the library, so nothing of ours runs when they play
+                endWait(a, false);
+            }
+            return next;
         };
 
         // All Bots regardless of language will use the next action handler above
-        botLangMap.values().forEach(bot -> bot.setNextActionF(botNextAction));
+        BOTS.values().forEach(bot -> bot.setNextActionF(botNextAction));
 
         // We will start in English and GPT will detect and call back to us to switch languages as necessary
         return lexBotEN;
     }
 
+    /**
+     * Lex bot for each language. Each opens with GPT's response when switched to (it's already in that language),
+     * otherwise with the greeting.
+     *
+     * @return
+     */
+    private static Map<Language, StartBotConversationAction> getBots() {
+
+        // Function that passes the Calling Number to Lex, and the call's trace so GPT turns show up under it
+        Function<StartBotConversationAction, Map<String, String>> attributesFunction = (action) -> {
+            final var callingNumber = action.getEvent().getCallDetails().getParticipants().get(0).getFrom();
+            final var traceparent = attribute(action, Tracing.TRACEPARENT);
+            return traceparent == null
+                    ? Map.of("callingNumber", callingNumber)
+                    : Map.of("callingNumber", callingNumber, Tracing.TRACEPARENT, traceparent);
+        };
+
+        final var bots = new EnumMap<Language, StartBotConversationAction>(Language.class);
+        for (var lang : Language.values()) {
+            bots.put(lang, StartBotConversationAction.builder()
+                    .withDescription("ChatGPT " + lang)
+                    .withLocale(lang.locale)
+                    .withContentF(bot -> {
+                        endWait(bot, false);
+                        final var response = takeAttribute(bot, ATTR_BOT_RESPONSE);
+                        return response != null ? response : lang.greeting;
+                    })
+                    .withSessionAttributesF(attributesFunction)
+                    .build());
+        }
+        return Collections.unmodifiableMap(bots);
+    }
+
+    /**
+     * GPT's response to play, which is also when the caller stops waiting on us.
+     *
+     * @param action
+     * @return
+     */
+    private static String botResponse(Action action) {
+        endWait(action, false);
+        return takeAttribute(action, ATTR_BOT_RESPONSE);
+    }
+
+    /**
+     * Read a per call value.
+     *
+     * @param action
+     * @param name
+     * @return value or null if not set
+     */
+    private static String attribute(Action action, String name) {
+        final var value = action.getTransactionAttributes().get(name);
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * Read and remove a per call value, so it's only ever played once.
+     *
+     * @param action
+     * @param name
+     * @return value or null if not set
+     */
+    private static String takeAttribute(Action action, String name) {
+        final var value = action.getTransactionAttributes().remove(name);
+        return value != null ? value.toString() : null;
+    }
+
     /**
      * When an error occurs on a Action and the Action did not specify an Error Action
      *
@@ -256,11 +376,128 @@ public class ChimeSMA extends AbstractFlow {
     @Override
     protected void newCallHandler(Action action) {
         log.info("Call Started with " + action);
+        if (Tracing.isEnabled()) {
+            // The call span is ended (and sent) at hangup, until then only its ids and start are kept with the call
+            final var call = Tracing.startSpan("sma.call", null);
+            action.getTransactionAttributes().put(Tracing.TRACEPARENT, call.getTraceparent());
+            action.getTransactionAttributes().put(ATTR_CALL_START, Long.toString(call.getStartNanos()));
+            startWait(action, WAIT_NEW_CALL, Language.English.name());
+        }
+        startCallerProfile(action.getEvent().getCallDetails().getParticipants().get(0).getFrom());
+    }
+
+    /**
+     * Note the caller is now waiting on us.
+     *
+     * @param action
+     * @param type what they are waiting on, new_call or the bot action
+     * @param language
+     */
+    private static void startWait(Action action, String type, String language) {
+        if (!Tracing.isEnabled()) {
+            return;
+        }
+        final var attrs = action.getTransactionAttributes();
+        attrs.put(ATTR_WAIT_START, Long.toString(Tracing.nowNanos()));
+        attrs.put(ATTR_WAIT_ACTION, type);
+        if (language != null) {
+            attrs.put(ATTR_WAIT_LANGUAGE, language);
+        }
+    }
+
+    /**
+     * The caller has stopped waiting, record how long as a child of the call span. Call setup (new call to first bot
+     * audio) and bot hand-backs are separate span names so each has its own latency distribution.
+     *
+     * @param action
+     * @param abandoned caller hung up while waiting
+     */
+    private static void endWait(Action action, boolean abandoned) {
+        final var start = takeAttribute(action, ATTR_WAIT_START);
+        final var type = takeAttribute(action, ATTR_WAIT_ACTION);
+        final var language = takeAttribute(action, ATTR_WAIT_LANGUAGE);
+        if (start == null) {
+            return;
+        }
+        try {
+            final var span = Tracing.startSpan(WAIT_NEW_CALL.equals(type) ? "sma.call_setup" : "sma.bot_handback",
+                    attribute(action, Tracing.TRACEPARENT), Long.parseLong(start))
+                    .setAttribute("call.id", callId(action))
+                    .setAttribute("language", language)
+                    .setAttribute("action.type", type);
+            if (abandoned) {
+                span.setAttribute("abandoned", true);
+            }
+            span.end();
+        } catch (RuntimeException e) {
+            // Never fail the call over tracing
+            log.error("Unable to record wait span", e);
+        }
+    }
+
+    /**
+     * Language of the bot an action is, null if it's not one of ours.
+     *
+     * @param action
+     * @return
+     */
+    private static String languageOf(Action action) {
+        return BOTS.entrySet().stream()
+                .filter(e -> e.getValue() == action)
+                .map(e -> e.getKey().name())
+                .findAny()
+                .orElse(null);
+    }
+
+    private static String callId(Action action) {
+        return action.getEvent().getCallDetails().getParticipants().get(0).getCallId();
+    }
+
+    /**
+     * Kick off the caller profile build. This is an async (Event) invoke and the result is only logged, the profile
+     * gets built while the welcome and open/closed prompts are playing. We hold the call up at most PROFILE_SEND_WAIT
+     * so the request is normally on its way before this Lambda is frozen.
+     *
+     * @param callingNumber
+     */
+    private void startCallerProfile(String callingNumber) {
+        if (CALLER_PROFILE_FUNCTION == null || CALLER_PROFILE_FUNCTION.isBlank() || callingNumber == null) {
+            return;
+        }
+        try {
+            final var invoke = lambdaClient.invoke(r -> r.functionName(CALLER_PROFILE_FUNCTION)
+                    .invocationType(InvocationType.EVENT)
+                    .payload(SdkBytes.fromUtf8String("{\"callingNumber\":\"" + callingNumber.replaceAll("[^+0-9]", "") + "\"}")))
+                    .whenComplete((r, e) -> {
+                        if (e != null) {
+                            log.error("Unable to start caller profile", e);
+                        }
+                    });
+            invoke.get(PROFILE_SEND_WAIT.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            // Still going or already failed, whenComplete logs failures
+        } catch (Exception e) {
+            // Never hold up or fail the call over this
+            log.error("Unable to start caller profile", e);
+        }
     }
 
     @Override
     protected void hangupHandler(Action action) {
         log.info("Call Ended with " + action);
+        final var traceparent = attribute(action, Tracing.TRACEPARENT);
+        final var callStart = attribute(action, ATTR_CALL_START);
+        if (traceparent == null || callStart == null) {
+            return;
+        }
+        endWait(action, true);
+        try {
+            Tracing.resume("sma.call", traceparent, Long.parseLong(callStart))
+                    .setAttribute("call.id", callId(action))
+                    .end();
+        } catch (RuntimeException e) {
+            log.error("Unable to record call span", e);
+        }
     }
 
     /**
@@ -291,15 +528,27 @@ public class ChimeSMA extends AbstractFlow {
      * Voice Languages we support (that are built out in Lex)
      */
     static enum Language {
-        English,
-        Spanish,
-        German,
-        Finnish,
-        French,
-        Dutch,
-        Norwegian,
-        Polish,
-        Swedish;
+        English("en-US", "Tell us how we can help today?"),
+        Spanish("es-US", "Cuéntanos ¿cómo podemos ayudar hoy?"),
+        German("de-DE", "Sagen Sie uns, wie wir heute helfen können?"),
+        Finnish("fi-FI", "Kerro meille, kuinka voimme auttaa tänään?"),
+        French("fr-CA", "Dites-nous comment nous pouvons vous aider aujourd'hui ?"),
+        Dutch("nl-NL", "Vertel ons hoe we vandaag kunnen helpen?"),
+        Norwegian("no-NO", "Fortell oss hvordan vi kan hjelpe i dag?"),
+        Polish("pl-PL", "Powiedz nam, jak możemy dziś pomóc?"),
+        Swedish("sv-SE", "Berätta för oss hur vi kan hjälpa till idag?");
+
+        private final Locale locale;
+
+        /**
+         * Tell us how we can help today?
+         */
+        private final String greeting;
+
+        Language(String tag, String greeting) {
+            this.locale = Locale.forLanguageTag(tag);
+            this.greeting = greeting;
+        }
     }
 
 }
@@ -0,0 +1,65 @@
+package cloud.cleo.chimesma.squareup;
+
+import cloud.cleo.squareup.common.SquareEnvironment;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.crac.Context;
+import org.crac.Core;
+import org.crac.Resource;
+
+/**
+ * After a SnapStart restore, drop the Square connections from before the snapshot and open fresh ones (and the Lambda
+ * and SSM clients') before the first call comes in, so the open/closed check and the caller profile kick off don't pay for a
+ * dead socket and a timeout. There is no Metrics here, so the restore to ready time is logged.
+ *
+ * @author sjensen
+ */
+final class RestoreHook implements Resource {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(RestoreHook.class);
+
+    /**
+     * Most the restore hook waits for connections to open, SnapStart allows hooks 10 seconds.
+     */
+    private final static Duration MAX_WAIT = Duration.ofSeconds(3);
+
+    private final Supplier<CompletableFuture<?>> warm;
+
+    private RestoreHook(Supplier<CompletableFuture<?>> warm) {
+        this.warm = warm;
+    }
+
+    /**
+     * Register for restore notification, the returned hook must be kept reachable (CRaC only holds weak references).
+     *
+     * @param warm cheap calls that open connections to the other AWS services
+     * @return
+     */
+    static RestoreHook register(Supplier<CompletableFuture<?>> warm) {
+        final var hook = new RestoreHook(warm);
+        Core.getGlobalContext().register(hook);
+        return hook;
+    }
+
+    @Override
+    public void beforeCheckpoint(Context<? extends Resource> context) throws Exception {
+    }
+
+    @Override
+    public void afterRestore(Context<? extends Resource> context) throws Exception {
+        final var start = System.nanoTime();
+        try {
+            CompletableFuture.allOf(SquareEnvironment.reconnect().exceptionally(e -> null),
+                    warm.get().exceptionally(e -> null))
+                    .get(MAX_WAIT.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.warn("Connections not all open after {} ms", MAX_WAIT.toMillis());
+        }
+        log.info("Restore to ready took {} ms", (System.nanoTime() - start) / 1_000_000L);
+    }
+}
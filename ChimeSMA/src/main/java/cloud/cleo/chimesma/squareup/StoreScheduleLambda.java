@@ -0,0 +1,67 @@
+package cloud.cleo.chimesma.squareup;
+
+import cloud.cleo.squareup.common.LocationHoursService;
+import cloud.cleo.squareup.common.StoreSchedule;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.ScheduledEvent;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.http.crt.AwsCrtAsyncHttpClient;
+import software.amazon.awssdk.services.ssm.SsmAsyncClient;
+import software.amazon.awssdk.services.ssm.model.ParameterType;
+
+/**
+ * Runs on an EventBridge schedule, loads the Square Location and writes the store's open and close times for the next
+ * several days to the STORE_SCHEDULE_PARAMETER SSM parameter, which the Chime SMA reads (StoreStatus) so the greeting
+ * never waits on Square. If Square can't be reached the schedule is computed from the hours we already have.
+ *
+ * @author sjensen
+ */
+public class StoreScheduleLambda implements RequestHandler<ScheduledEvent, Void> {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(StoreScheduleLambda.class);
+
+    /**
+     * A week plus a day, so a refresher that stops running still leaves a week to notice.
+     */
+    private final static Duration HORIZON = Duration.ofDays(8);
+
+    private final static Duration LOAD_WAIT = Duration.ofSeconds(20);
+
+    private final static String PARAMETER = System.getenv("STORE_SCHEDULE_PARAMETER");
+
+    private final static LocationHoursService hours = LocationHoursService.fromEnvironment();
+
+    private final static SsmAsyncClient ssm = SsmAsyncClient.builder()
+            .httpClient(AwsCrtAsyncHttpClient.create())
+            .build();
+
+    @Override
+    public Void handleRequest(ScheduledEvent event, Context context) {
+        try {
+            hours.reload().get(LOAD_WAIT.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.error("Square Location not refreshed, computing from the cached copy", e);
+        }
+
+        final var schedule = StoreSchedule.compute(hours, Instant.now(), HORIZON);
+        if (schedule == null) {
+            throw new IllegalStateException("Store hours have never been loaded, schedule not updated");
+        }
+
+        final var text = schedule.format();
+        ssm.putParameter(r -> r.name(PARAMETER)
+                .value(text)
+                .type(ParameterType.STRING)
+                .overwrite(true))
+                .join();
+        log.info("Store schedule updated with {} transitions", schedule.transitions().size());
+        log.debug("Store schedule {}", schedule.transitions());
+        return null;
+    }
+}
@@ -0,0 +1,124 @@
+package cloud.cleo.chimesma.squareup;
+
+import cloud.cleo.squareup.common.LocationHoursService;
+import cloud.cleo.squareup.common.StoreSchedule;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.services.ssm.SsmAsyncClient;
+
+/**
+ * Whether the store is open, for the greeting. The StoreScheduleLambda keeps the upcoming open and close times in an
+ * SSM parameter (STORE_SCHEDULE_PARAMETER), this holds the last copy read so answering is a lookup in memory and call
+ * setup never waits on Square or SSM. Once our copy is RELOAD_INTERVAL old the parameter is read again in the
+ * background.
+ *
+ * Until there is a schedule (first deploy, before the refresher has run) or if it has run out, the Square hours answer
+ * instead, or closed if those have not been loaded (yet).
+ *
+ * @author sjensen
+ */
+final class StoreStatus {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(StoreStatus.class);
+
+    /**
+     * The refresher runs every 15 minutes, hours changed in Square show up within about 20.
+     */
+    private final static Duration RELOAD_INTERVAL = Duration.ofMinutes(5);
+
+    /**
+     * How long to wait for the parameter at init (not on a call).
+     */
+    private final static Duration INIT_WAIT = Duration.ofSeconds(2);
+
+    private final SsmAsyncClient ssm;
+
+    private final String parameter;
+
+    private final LocationHoursService fallback;
+
+    private volatile StoreSchedule schedule;
+
+    private volatile Instant lastLoad = Instant.EPOCH;
+
+    private final AtomicBoolean loading = new AtomicBoolean(false);
+
+    /**
+     * Create and read the schedule, waiting briefly since this is at init.
+     *
+     * @param ssm
+     * @param parameter SSM parameter name, null or blank to only use the fallback
+     * @param fallback Square hours for when there is no schedule
+     */
+    StoreStatus(SsmAsyncClient ssm, String parameter, LocationHoursService fallback) {
+        this.ssm = ssm;
+        this.parameter = parameter;
+        this.fallback = fallback;
+        try {
+            reload().get(INIT_WAIT.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.error("Store schedule not read at init", e);
+        }
+        if (schedule == null) {
+            log.warn("No store schedule, open/closed comes from Square hours until there is one");
+        }
+    }
+
+    /**
+     * Is the store open right now. Never blocks.
+     *
+     * @return
+     */
+    boolean isOpen() {
+        final var now = Instant.now();
+        if (lastLoad.plus(RELOAD_INTERVAL).isBefore(now)) {
+            reload();
+        }
+        final var s = schedule;
+        if (s != null && s.covers(now)) {
+            return s.isOpen(now);
+        }
+        // Only ask the fallback if it has a location, otherwise it would wait on Square to load one
+        return fallback.hasLocation() && fallback.isOpen();
+    }
+
+    /**
+     * Read the parameter again, unless a read is already running. Also used after a SnapStart restore, so the copy
+     * from the snapshot is replaced and SSM has a fresh connection.
+     *
+     * @return completes when read (never exceptionally)
+     */
+    CompletableFuture<Void> reload() {
+        if (parameter == null || parameter.isBlank() || !loading.compareAndSet(false, true)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        lastLoad = Instant.now();
+        try {
+            return ssm.getParameter(r -> r.name(parameter))
+                    .thenAccept(res -> {
+                        final var s = StoreSchedule.parse(res.parameter().value());
+                        if (s != null) {
+                            schedule = s;
+                            log.debug("Store schedule computed at {} read, {} open now", s.getComputedAt(), s.isOpen(Instant.now()) ? "is" : "not");
+                        }
+                    })
+                    .whenComplete((r, e) -> {
+                        loading.set(false);
+                        if (e != null) {
+                            log.error("Unable to read store schedule, keeping what we have", e);
+                        }
+                    })
+                    .exceptionally(e -> null);
+        } catch (RuntimeException e) {
+            loading.set(false);
+            log.error("Unable to read store schedule, keeping what we have", e);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+#!/bin/bash
+
+# Local load test of the ChatGPT Lambdas, nothing here talks to OpenAI, Square, Facebook or AWS.
+#
+# Build first:
+#   mvn -pl SquareCommon,ChatGPT,LoadTest -am package -DskipTests
+# Sessions go to DynamoDB Local:
+#   docker run -d -p 8000:8000 amazon/dynamodb-local
+#
+# Then for example:
+#   LoadTest/run.sh --channel lex --concurrency 25 --duration 120
+#   LoadTest/run.sh --channel pinpoint --concurrency 50 --openai-median-ms 1500
+
+cd "$(dirname "$0")"
+
+PORT=${LOADTEST_PORT:-8089}
+export LOADTEST_PORT=${PORT}
+STAND_INS=http://localhost:${PORT}
+
+# AWS SDK, stand-in credentials and every service we use pointed locally
+export AWS_REGION=us-east-1
+export AWS_ACCESS_KEY_ID=loadtest
+export AWS_SECRET_ACCESS_KEY=loadtest
+export AWS_ENDPOINT_URL_DYNAMODB=${DYNAMODB_ENDPOINT:-http://localhost:8000}
+export AWS_ENDPOINT_URL_SNS=${STAND_INS}
+export AWS_ENDPOINT_URL_SES=${STAND_INS}
+export AWS_ENDPOINT_URL_PINPOINT=${STAND_INS}
+
+export OPENAI_API_KEY=loadtest
+export OPENAI_MODEL=gpt-loadtest
+export OPENAI_BASE_URL=${STAND_INS}/
+
+export SQUARE_API_KEY=loadtest
+export SQUARE_LOCATION_ID=LOADTEST
+export SQUARE_ENVIRONMENT=SANDBOX
+export SQUARE_BASE_URL=${STAND_INS}
+
+export FB_GRAPH_URL=${STAND_INS}/
+export FB_PAGE_ID=loadtest
+export FB_PAGE_ACCESS_TOKEN=loadtest
+
+export SESSION_TABLE_NAME=loadtest-sessions
+export MAIN_NUMBER=+16125550100
+
+# Send notifications inline to the stand-ins, and don't wait for more texts before taking a turn
+export OUTBOX_MODE=SYNC
+export SMS_DEBOUNCE_MILLIS=0
+
+export LOG_LEVEL=${LOG_LEVEL:-WARN}
+
+# Turn spans are only kept when asked for, for example OTEL_TRACES_FILE=target/traces.jsonl (OTLP JSON, a line per flush)
+
+# Lambda logs and EMF metrics go to the log, the report goes to the terminal
+java -jar target/loadtest.jar "$@" > target/loadtest.log
@@ -0,0 +1,15 @@
+package cloud.cleo.squareup.loadtest;
+
+import java.util.List;
+
+/**
+ * A recorded conversation, what the caller or texter said each turn. Blank is silence, just like Lex sends it.
+ *
+ * @param name
+ * @param turns
+ *
+ * @author sjensen
+ */
+public record Conversation(String name, List<String> turns) {
+
+}
@@ -0,0 +1,57 @@
+package cloud.cleo.squareup.loadtest;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Turn latencies and failures for one run. Every sample is kept and sorted at the end, a run is at most a few hundred
+ * thousand turns so there's no need for anything fancier.
+ *
+ * @author sjensen
+ */
+public class LatencyRecorder {
+
+    private final ConcurrentLinkedQueue<Long> nanos = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder failures = new LongAdder();
+
+    public void record(long elapsedNanos) {
+        nanos.add(elapsedNanos);
+    }
+
+    public void failed() {
+        failures.increment();
+    }
+
+    /**
+     * Summary of the run.
+     *
+     * @param label
+     * @param seconds how long the measured part of the run was
+     * @return
+     */
+    public String report(String label, double seconds) {
+        final long[] sorted = nanos.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        final var sb = new StringBuilder();
+        sb.append(String.format("%-10s turns=%d failures=%d throughput=%.1f turns/s%n", label, sorted.length, failures.sum(), sorted.length / seconds));
+        if (sorted.length > 0) {
+            sb.append(String.format("%-10s p50=%.0f ms p95=%.0f ms p99=%.0f ms max=%.0f ms%n", label,
+                    millis(percentile(sorted, 50)), millis(percentile(sorted, 95)), millis(percentile(sorted, 99)), millis(sorted[sorted.length - 1])));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Nearest rank percentile.
+     */
+    private static long percentile(long[] sorted, int p) {
+        final int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -0,0 +1,221 @@
+package cloud.cleo.squareup.loadtest;
+
+import cloud.cleo.squareup.ChatGPTLambda;
+import cloud.cleo.squareup.ChatGPTLambdaLex;
+import cloud.cleo.squareup.ChatGPTLambdaPinpoint;
+import cloud.cleo.squareup.ChatGPTLambdaPinpoint.PinpointEvent;
+import cloud.cleo.squareup.ChatGPTSessionState;
+import cloud.cleo.squareup.JsonCodecs;
+import cloud.cleo.squareup.LexV2Event;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.fasterxml.jackson.core.type.TypeReference;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.services.dynamodb.model.ResourceInUseException;
+
+/**
+ * Drives ChatGPTLambdaLex or ChatGPTLambdaPinpoint in process with recorded conversations at a fixed concurrency,
+ * against the StandIns and DynamoDB Local, then reports turn latency percentiles and throughput. Each virtual user runs
+ * conversations back to back with a new session each time, like new callers coming in.
+ *
+ * Run through run.sh, it sets up the environment that points the Lambda code at the stand-ins.
+ *
+ * <pre>
+ * run.sh [--channel lex|pinpoint] [--concurrency 10] [--duration 60] [--warmup 10] [--openai-median-ms 800]
+ * </pre>
+ *
+ * @author sjensen
+ */
+public class LoadTest {
+
+    private final String channel;
+    private final int concurrency;
+    private final Duration duration;
+    private final Duration warmup;
+    private final List<Conversation> conversations;
+
+    private final byte[] lexTemplate;
+
+    private ChatGPTLambdaLex lex;
+    private ChatGPTLambdaPinpoint pinpoint;
+
+    private LoadTest(String channel, int concurrency, Duration duration, Duration warmup, List<Conversation> conversations) throws IOException {
+        this.channel = channel;
+        this.concurrency = concurrency;
+        this.duration = duration;
+        this.warmup = warmup;
+        this.conversations = conversations;
+        this.lexTemplate = JsonCodecs.sample(JsonCodecs.SAMPLE_LEX_EVENT);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (System.getenv("OPENAI_BASE_URL") == null) {
+            System.err.println("OPENAI_BASE_URL is not set, use run.sh so nothing talks to the real services");
+            System.exit(1);
+        }
+
+        String channel = "lex";
+        int concurrency = 10;
+        int durationSeconds = 60;
+        int warmupSeconds = 10;
+        Long openAiMedian = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--channel" ->
+                    channel = args[i + 1];
+                case "--concurrency" ->
+                    concurrency = Integer.parseInt(args[i + 1]);
+                case "--duration" ->
+                    durationSeconds = Integer.parseInt(args[i + 1]);
+                case "--warmup" ->
+                    warmupSeconds = Integer.parseInt(args[i + 1]);
+                case "--openai-median-ms" ->
+                    openAiMedian = Long.valueOf(args[i + 1]);
+                default ->
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        var script = read("/openai-script.json", new TypeReference<Script>() {
+        });
+        if (openAiMedian != null) {
+            script = script.withLatency(openAiMedian);
+        }
+        final List<Conversation> conversations = read("/conversations.json", new TypeReference<List<Conversation>>() {
+        });
+
+        // Stand-ins have to be up before the Lambda classes load, Square is called at init
+        try (var standIns = new StandIns(Integer.parseInt(System.getenv().getOrDefault("LOADTEST_PORT", "8089")), script)) {
+            standIns.start();
+            createSessionTable();
+
+            final var test = new LoadTest(channel, concurrency, Duration.ofSeconds(durationSeconds), Duration.ofSeconds(warmupSeconds), conversations);
+            test.run();
+        }
+        System.exit(0);
+    }
+
+    private void run() throws InterruptedException {
+        System.err.println("Loading " + channel + " handler");
+        switch (channel) {
+            case "lex" ->
+                lex = new ChatGPTLambdaLex();
+            case "pinpoint" ->
+                pinpoint = new ChatGPTLambdaPinpoint();
+            default ->
+                throw new IllegalArgumentException("Channel must be lex or pinpoint");
+        }
+
+        if (!warmup.isZero()) {
+            System.err.println("Warming up for " + warmup.toSeconds() + "s with " + concurrency + " users");
+            drive(warmup, new LatencyRecorder());
+        }
+
+        System.err.println("Measuring for " + duration.toSeconds() + "s with " + concurrency + " users");
+        final var recorder = new LatencyRecorder();
+        final var start = System.nanoTime();
+        drive(duration, recorder);
+        final var seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        System.err.print(recorder.report(channel, seconds));
+    }
+
+    /**
+     * Run all the virtual users until the time is up, a conversation in progress is finished.
+     */
+    private void drive(Duration length, LatencyRecorder recorder) throws InterruptedException {
+        final var deadline = System.nanoTime() + length.toNanos();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int u = 0; u < concurrency; u++) {
+                final int user = u;
+                executor.submit(() -> {
+                    int n = user;
+                    while (System.nanoTime() < deadline) {
+                        final var conversation = conversations.get(n++ % conversations.size());
+                        try {
+                            converse(user, conversation, recorder);
+                        } catch (Exception e) {
+                            System.err.println("Conversation " + conversation.name() + " failed: " + e);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private void converse(int user, Conversation conversation, LatencyRecorder recorder) throws IOException {
+        // Unique per user so phone type, profile and SMS buffers behave like different people
+        final var phone = String.format("+1612555%04d", user % 10_000);
+        final var sessionId = UUID.randomUUID().toString();
+        Map<String, String> attrs = new HashMap<>(Map.of("callingNumber", phone, "blankCounter", "0"));
+
+        for (var text : conversation.turns()) {
+            final long start = System.nanoTime();
+            try {
+                if (lex != null) {
+                    final LexV2Event event = JsonCodecs.LEX_EVENT_READER.readValue(lexTemplate);
+                    event.setSessionId(sessionId);
+                    event.setInputTranscript(text);
+                    event.getSessionState().setSessionAttributes(attrs);
+
+                    final var response = lex.handleRequest(event);
+                    recorder.record(System.nanoTime() - start);
+
+                    attrs = new HashMap<>(response.getSessionState().getSessionAttributes());
+                    if ("Close".equals(response.getSessionState().getDialogAction().getType())) {
+                        return;
+                    }
+                } else {
+                    final var ppe = new PinpointEvent();
+                    ppe.setOriginationNumber(phone);
+                    ppe.setDestinationNumber("+13205550100");
+                    ppe.setMessageBody(text.isBlank() ? "?" : text);
+                    ppe.setInboundMessageId(UUID.randomUUID().toString());
+
+                    final var msg = new SQSEvent.SQSMessage();
+                    msg.setMessageId(UUID.randomUUID().toString());
+                    msg.setBody(JsonCodecs.mapper.writeValueAsString(ppe));
+                    final var event = new SQSEvent();
+                    event.setRecords(List.of(msg));
+
+                    final var response = pinpoint.handleRequest(event, null);
+                    recorder.record(System.nanoTime() - start);
+                    if (!response.getBatchItemFailures().isEmpty()) {
+                        recorder.failed();
+                    }
+                }
+            } catch (RuntimeException e) {
+                recorder.failed();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Session table in DynamoDB Local, created from the same bean schema the Lambda uses.
+     */
+    private static void createSessionTable() {
+        final var name = System.getenv("SESSION_TABLE_NAME");
+        try {
+            ChatGPTLambda.enhancedClient.table(name, TableSchema.fromBean(ChatGPTSessionState.class)).createTable().join();
+            System.err.println("Created table " + name);
+        } catch (CompletionException e) {
+            if (!(e.getCause() instanceof ResourceInUseException)) {
+                throw e;
+            }
+        }
+    }
+
+    private static <T> T read(String resource, TypeReference<T> type) throws IOException {
+        try (InputStream in = LoadTest.class.getResourceAsStream(resource)) {
+            return JsonCodecs.mapper.readValue(in, type);
+        }
+    }
+}
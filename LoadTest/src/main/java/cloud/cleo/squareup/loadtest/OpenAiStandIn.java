@@ -0,0 +1,141 @@
+package cloud.cleo.squareup.loadtest;
+
+import static cloud.cleo.squareup.JsonCodecs.mapper;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import com.github.tomakehurst.wiremock.extension.ResponseDefinitionTransformerV2;
+import com.github.tomakehurst.wiremock.http.ResponseDefinition;
+import com.github.tomakehurst.wiremock.stubbing.ServeEvent;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Answers chat completion requests from the Script. Handles streaming requests too (server sent events, one chunk
+ * per word) so a streaming client can be load tested the same way.
+ *
+ * @author sjensen
+ */
+public class OpenAiStandIn implements ResponseDefinitionTransformerV2 {
+
+    public final static String NAME = "openai-script";
+
+    private final Script script;
+
+    private final List<Pattern> patterns;
+
+    public OpenAiStandIn(Script script) {
+        this.script = script;
+        this.patterns = script.rules().stream().map(r -> Pattern.compile(r.match(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL)).toList();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean applyGlobally() {
+        return false;
+    }
+
+    @Override
+    public ResponseDefinition transform(ServeEvent serveEvent) {
+        try {
+            final var request = mapper.readTree(serveEvent.getRequest().getBody());
+            final var message = answer(request);
+            final var stream = request.path("stream").asBoolean(false);
+            final var model = request.path("model").asText("gpt-loadtest");
+            return ResponseDefinitionBuilder.like(serveEvent.getResponseDefinition()).but()
+                    .withHeader("Content-Type", stream ? "text/event-stream" : "application/json")
+                    .withBody(stream ? streamed(message, model) : completion(message, model))
+                    .build();
+        } catch (Exception e) {
+            return ResponseDefinitionBuilder.responseDefinition()
+                    .withStatus(500)
+                    .withBody("{\"error\":{\"message\":\"" + e.getMessage() + "\"}}")
+                    .build();
+        }
+    }
+
+    /**
+     * The assistant message for this request.
+     */
+    private ObjectNode answer(JsonNode request) {
+        final var messages = request.path("messages");
+        final var last = messages.get(messages.size() - 1);
+        final var message = mapper.createObjectNode().put("role", "assistant");
+
+        if ("function".equals(last.path("role").asText())) {
+            return message.put("content", script.afterFunctionReply());
+        }
+
+        final Set<String> offered = new HashSet<>();
+        request.path("functions").forEach(f -> offered.add(f.path("name").asText()));
+
+        final var text = last.path("content").asText("");
+        for (int i = 0; i < patterns.size(); i++) {
+            final var rule = script.rules().get(i);
+            if (offered.contains(rule.function()) && patterns.get(i).matcher(text).matches()) {
+                message.putNull("content");
+                message.putObject("function_call")
+                        .put("name", rule.function())
+                        .put("arguments", rule.arguments() == null ? "{}" : rule.arguments().toString());
+                return message;
+            }
+        }
+        return message.put("content", script.reply());
+    }
+
+    private static String completion(ObjectNode message, String model) throws Exception {
+        final var res = mapper.createObjectNode()
+                .put("id", "chatcmpl-" + UUID.randomUUID())
+                .put("object", "chat.completion")
+                .put("created", System.currentTimeMillis() / 1000)
+                .put("model", model);
+        res.putArray("choices").addObject()
+                .put("index", 0)
+                .put("finish_reason", message.has("function_call") ? "function_call" : "stop")
+                .set("message", message);
+        res.putObject("usage")
+                .put("prompt_tokens", 0)
+                .put("completion_tokens", 0)
+                .put("total_tokens", 0);
+        return mapper.writeValueAsString(res);
+    }
+
+    private static String streamed(ObjectNode message, String model) throws Exception {
+        final var id = "chatcmpl-" + UUID.randomUUID();
+        final var sb = new StringBuilder();
+        if (message.has("function_call")) {
+            sb.append(chunk(id, model, mapper.createObjectNode().put("role", "assistant").set("function_call", message.get("function_call")), null));
+            sb.append(chunk(id, model, mapper.createObjectNode(), "function_call"));
+        } else {
+            sb.append(chunk(id, model, mapper.createObjectNode().put("role", "assistant").put("content", ""), null));
+            for (var word : message.path("content").asText().split("(?<= )")) {
+                sb.append(chunk(id, model, mapper.createObjectNode().put("content", word), null));
+            }
+            sb.append(chunk(id, model, mapper.createObjectNode(), "stop"));
+        }
+        return sb.append("data: [DONE]\n\n").toString();
+    }
+
+    private static String chunk(String id, String model, JsonNode delta, String finishReason) throws Exception {
+        final var res = mapper.createObjectNode()
+                .put("id", id)
+                .put("object", "chat.completion.chunk")
+                .put("created", System.currentTimeMillis() / 1000)
+                .put("model", model);
+        final var choice = res.putArray("choices").addObject().put("index", 0);
+        choice.set("delta", delta);
+        if (finishReason == null) {
+            choice.putNull("finish_reason");
+        } else {
+            choice.put("finish_reason", finishReason);
+        }
+        return "data: " + mapper.writeValueAsString(res) + "\n\n";
+    }
+}
@@ -0,0 +1,33 @@
+package cloud.cleo.squareup.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.util.List;
+
+/**
+ * How the OpenAI stand-in answers. The last user message is checked against each rule in order and the first match
+ * (whose function was offered in the request) comes back as a function_call, otherwise the plain reply is returned.
+ * After a function result the afterFunctionReply is returned so every turn ends.
+ *
+ * @param latencyMedianMillis median completion latency, latency is log normal like the real thing
+ * @param latencySigma spread of the latency
+ * @param rules
+ * @param reply
+ * @param afterFunctionReply
+ *
+ * @author sjensen
+ */
+public record Script(long latencyMedianMillis, double latencySigma, List<Rule> rules, String reply, String afterFunctionReply) {
+
+    /**
+     * @param match regex against the user message, case insensitive
+     * @param function name of the function to call
+     * @param arguments arguments for the call
+     */
+    public record Rule(String match, String function, JsonNode arguments) {
+
+    }
+
+    public Script withLatency(long medianMillis) {
+        return new Script(medianMillis, latencySigma, rules, reply, afterFunctionReply);
+    }
+}
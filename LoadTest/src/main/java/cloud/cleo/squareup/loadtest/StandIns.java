@@ -0,0 +1,114 @@
+package cloud.cleo.squareup.loadtest;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.any;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathMatching;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+
+/**
+ * Local stand-ins for everything a turn talks to except DynamoDB (that's DynamoDB Local). One WireMock server on one
+ * port serves OpenAI, Square, Facebook Graph, Pinpoint phone validation, SNS and SES, the Lambda code is pointed at it
+ * with OPENAI_BASE_URL, SQUARE_BASE_URL, FB_GRAPH_URL and AWS_ENDPOINT_URL_* (see run.sh).
+ *
+ * Square and Facebook answer with canned bodies from stubs/__files after a short delay, OpenAI is driven by the Script.
+ *
+ * @author sjensen
+ */
+public class StandIns implements AutoCloseable {
+
+    private final static int SQUARE_DELAY_MIN_MILLIS = 40;
+    private final static int SQUARE_DELAY_MAX_MILLIS = 120;
+
+    private final static int FACEBOOK_DELAY_MIN_MILLIS = 60;
+    private final static int FACEBOOK_DELAY_MAX_MILLIS = 150;
+
+    private final static int AWS_DELAY_MIN_MILLIS = 10;
+    private final static int AWS_DELAY_MAX_MILLIS = 40;
+
+    private final WireMockServer server;
+
+    public StandIns(int port, Script script) {
+        server = new WireMockServer(options()
+                .port(port)
+                .usingFilesUnderClasspath("stubs")
+                .containerThreads(200)
+                .asynchronousResponseEnabled(true)
+                .asynchronousResponseThreads(50)
+                .disableRequestJournal()
+                .extensions(new OpenAiStandIn(script)));
+        register(script);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    @Override
+    public void close() {
+        server.stop();
+    }
+
+    private void register(Script script) {
+        // OpenAI
+        server.stubFor(post(urlPathEqualTo("/v1/chat/completions"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withLogNormalRandomDelay(script.latencyMedianMillis(), script.latencySigma())
+                        .withTransformers(OpenAiStandIn.NAME)));
+
+        // Square
+        server.stubFor(get(urlPathMatching("/v2/locations/[^/]+")).willReturn(square("square-location.json")));
+        server.stubFor(post(urlPathEqualTo("/v2/catalog/search")).willReturn(square("square-catalog-search.json")));
+        server.stubFor(post(urlPathEqualTo("/v2/catalog/search-catalog-items")).willReturn(square("square-catalog-items.json")));
+        server.stubFor(post(urlPathEqualTo("/v2/team-members/search")).willReturn(square("square-team-members.json")));
+        server.stubFor(post(urlPathEqualTo("/v2/customers/search")).willReturn(square("square-customers.json")));
+
+        // Facebook Graph, name lookups are GETs and everything else is a POST
+        server.stubFor(get(urlPathMatching("/v[0-9.]+/.*")).willReturn(facebook("facebook-user.json")));
+        server.stubFor(post(urlPathMatching("/v[0-9.]+/.*")).willReturn(facebook("facebook-post.json")));
+
+        // Pinpoint phone number validate (rest-json)
+        server.stubFor(post(urlPathEqualTo("/v1/phone/number/validate")).willReturn(aws("pinpoint-validate.json", "application/json")));
+
+        // SNS and SES are query protocol, both POST to / with the Action in the form body
+        server.stubFor(post(urlPathEqualTo("/")).withRequestBody(containing("Action=Publish"))
+                .willReturn(aws("sns-publish.xml", "text/xml")));
+        server.stubFor(post(urlPathEqualTo("/")).withRequestBody(containing("Action=SendEmail"))
+                .willReturn(aws("ses-send-email.xml", "text/xml")));
+
+        // Anything we didn't expect shows up as a failure rather than hanging
+        server.stubFor(any(urlPathMatching("/.*")).atPriority(10).willReturn(aResponse()
+                .withStatus(404)
+                .withBody("No load test stand-in for this request")));
+    }
+
+    private static ResponseDefinitionBuilder square(String file) {
+        return aResponse()
+                .withStatus(200)
+                .withHeader("Content-Type", "application/json")
+                .withBodyFile(file)
+                .withUniformRandomDelay(SQUARE_DELAY_MIN_MILLIS, SQUARE_DELAY_MAX_MILLIS);
+    }
+
+    private static ResponseDefinitionBuilder facebook(String file) {
+        return aResponse()
+                .withStatus(200)
+                .withHeader("Content-Type", "application/json")
+                .withBodyFile(file)
+                .withUniformRandomDelay(FACEBOOK_DELAY_MIN_MILLIS, FACEBOOK_DELAY_MAX_MILLIS);
+    }
+
+    private static ResponseDefinitionBuilder aws(String file, String contentType) {
+        return aResponse()
+                .withStatus(200)
+                .withHeader("Content-Type", contentType)
+                .withBodyFile(file)
+                .withUniformRandomDelay(AWS_DELAY_MIN_MILLIS, AWS_DELAY_MAX_MILLIS);
+    }
+}
@@ -0,0 +1,427 @@
+package cloud.cleo.squareup.common;
+
+import com.squareup.square.AsyncSquareClient;
+import com.squareup.square.types.BusinessHoursPeriod;
+import com.squareup.square.types.GetLocationsRequest;
+import com.squareup.square.types.Location;
+import com.squareup.square.types.LocationStatus;
+import java.time.DayOfWeek;
+import static java.time.DayOfWeek.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import lombok.Getter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Square Location and open hours, shared by the Chime SMA and ChatGPT Lambdas.
+ *
+ * The location is loaded at init and then served from memory. Once it is older than the TTL the cached copy is still
+ * returned while a single background refresh runs (stale-while-revalidate), and concurrent callers never trigger more
+ * than one API call. If Square is down we keep answering from the last good copy.
+ *
+ * The weekly hours are flattened into a minute of week table when loaded, so isOpen() is a single bit lookup. Square
+ * has no concept of holiday hours on a Location, so special hours come from configuration (SQUARE_SPECIAL_HOURS) in the
+ * form 2025-12-25=CLOSED;2025-12-24=09:00-14:00,16:00-18:00 and override the weekly hours for that date.
+ *
+ * @author sjensen
+ */
+public final class LocationHoursService {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(LocationHoursService.class);
+
+    /**
+     * How long a loaded location is considered fresh, after that a refresh is started in the background.
+     */
+    private final static Duration TTL = Duration.ofHours(1);
+
+    /**
+     * After a failed load, don't try again until this much time has passed.
+     */
+    private final static Duration RETRY_INTERVAL = Duration.ofMinutes(1);
+
+    /**
+     * How long to wait for the first load, at init or if we have never been able to load.
+     */
+    private final static Duration FIRST_LOAD_WAIT = Duration.ofSeconds(3);
+
+    private final static int MINUTES_PER_DAY = 24 * 60;
+
+    private final Supplier<CompletableFuture<Location>> loader;
+
+    private final Map<LocalDate, SpecialHours> specialHours;
+
+    private volatile Schedule schedule;
+
+    private volatile Instant lastAttempt = Instant.EPOCH;
+
+    private final AtomicReference<CompletableFuture<Schedule>> inFlight = new AtomicReference<>();
+
+    /**
+     * Create the service and start loading the location.
+     *
+     * @param loader supplies the Location from Square (can complete with null if not found), null if Square disabled
+     * @param specialHours special/holiday hours configuration, null or blank for none
+     */
+    public LocationHoursService(Supplier<CompletableFuture<Location>> loader, String specialHours) {
+        this.loader = loader;
+        this.specialHours = parseSpecialHours(specialHours);
+        // Load now, so SnapStart init captures the location
+        awaitFirstLoad();
+    }
+
+    /**
+     * Create a service that makes its own Square client from SQUARE_API_KEY, SQUARE_LOCATION_ID and SQUARE_ENVIRONMENT.
+     * If Square is not configured the service never loads and the store is always reported closed.
+     *
+     * @return
+     */
+    public static LocationHoursService fromEnvironment() {
+        final var key = System.getenv("SQUARE_API_KEY");
+        final var loc = System.getenv("SQUARE_LOCATION_ID");
+
+        final boolean squareEnabled = !((loc == null || loc.isBlank() || loc.equalsIgnoreCase("DISABLED")) || (key == null || key.isBlank() || key.equalsIgnoreCase("DISABLED")));
+        log.debug("Square Enabled = {}", squareEnabled);
+        if (!squareEnabled) {
+            return new LocationHoursService(null, null);
+        }
+
+        final var client = AsyncSquareClient.builder()
+                .token(key)
+                .environment(SquareEnvironment.fromEnvironment())
+                .httpClient(SquareEnvironment.httpClient())
+                .build();
+
+        return new LocationHoursService(() -> client.locations()
+                .get(GetLocationsRequest.builder().locationId(loc).build())
+                .thenApply(res -> res.getLocation().orElse(null)),
+                System.getenv("SQUARE_SPECIAL_HOURS"));
+    }
+
+    /**
+     * Is the store open right now. If the location has never been loaded, then closed.
+     *
+     * @return
+     */
+    public boolean isOpen() {
+        final var s = current();
+        return s != null && isOpen(s, ZonedDateTime.now(s.timeZone));
+    }
+
+    /**
+     * Is the store open at the given time.
+     *
+     * @param when
+     * @return
+     */
+    public boolean isOpen(ZonedDateTime when) {
+        final var s = current();
+        return s != null && isOpen(s, when.withZoneSameInstant(s.timeZone));
+    }
+
+    /**
+     * Has the location been loaded.
+     *
+     * @return
+     */
+    public boolean isLoaded() {
+        return current() != null;
+    }
+
+    /**
+     * Has the location been loaded, without ever waiting on Square. If not, a load is started in the background (unless
+     * one is running or failed recently) so a later call can answer yes.
+     *
+     * @return
+     */
+    public boolean hasLocation() {
+        if (loader == null) {
+            return false;
+        }
+        if (schedule == null && inFlight.get() == null && lastAttempt.plus(RETRY_INTERVAL).isBefore(Instant.now())) {
+            refresh();
+        }
+        return schedule != null;
+    }
+
+    /**
+     * The current schedule, stale if Square could not be reached recently.
+     *
+     * @return schedule or null if never loaded
+     */
+    public Schedule getSchedule() {
+        return current();
+    }
+
+    /**
+     * Special hours configured for the given date range, inclusive.
+     *
+     * @param from
+     * @param to
+     * @return
+     */
+    public List<SpecialHours> getSpecialHours(LocalDate from, LocalDate to) {
+        return specialHours.values().stream()
+                .filter(sh -> !sh.date.isBefore(from) && !sh.date.isAfter(to))
+                .toList();
+    }
+
+    /**
+     * Load the location from Square now, regardless of the TTL (the schedule refresher wants it fresh every run). Joins
+     * a refresh already running.
+     *
+     * @return future with the new schedule, fails if Square could not be reached (the cached copy is kept)
+     */
+    public CompletableFuture<Schedule> reload() {
+        if (loader == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Square is not enabled"));
+        }
+        return refresh();
+    }
+
+    private boolean isOpen(Schedule s, ZonedDateTime now) {
+        if (!s.active) {
+            return false;
+        }
+        final int minuteOfDay = now.getHour() * 60 + now.getMinute();
+        final var special = specialHours.get(now.toLocalDate());
+        if (special != null) {
+            return special.open.get(minuteOfDay);
+        }
+        return s.openMinutes.get((now.getDayOfWeek().getValue() - 1) * MINUTES_PER_DAY + minuteOfDay);
+    }
+
+    /**
+     * Return what we have, kicking off a refresh if it's stale. Only blocks (briefly) when there is nothing at all.
+     */
+    private Schedule current() {
+        final var s = schedule;
+        if (loader == null) {
+            return null;
+        }
+        if (s == null) {
+            return awaitFirstLoad();
+        }
+        if (s.loadedAt.plus(TTL).isBefore(Instant.now()) && lastAttempt.plus(RETRY_INTERVAL).isBefore(Instant.now())) {
+            refresh();
+        }
+        return s;
+    }
+
+    private Schedule awaitFirstLoad() {
+        if (loader == null) {
+            return null;
+        }
+        if (inFlight.get() == null && lastAttempt.plus(RETRY_INTERVAL).isAfter(Instant.now())) {
+            // Failed recently, don't hammer Square
+            return schedule;
+        }
+        try {
+            return refresh().get(FIRST_LOAD_WAIT.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.error("Unable to load Square Location", e);
+            return schedule;
+        }
+    }
+
+    /**
+     * Start a refresh unless one is already running, in which case join that one.
+     */
+    private CompletableFuture<Schedule> refresh() {
+        final var mine = new CompletableFuture<Schedule>();
+        final var existing = inFlight.compareAndExchange(null, mine);
+        if (existing != null) {
+            return existing;
+        }
+
+        lastAttempt = Instant.now();
+        try {
+            loader.get().whenComplete((loc, t) -> {
+                try {
+                    if (t != null) {
+                        log.error("Square Location refresh failed, keeping cached location", t);
+                        mine.completeExceptionally(t);
+                    } else if (loc == null) {
+                        mine.completeExceptionally(new IllegalStateException("Square Location not found"));
+                    } else {
+                        final var s = new Schedule(loc);
+                        schedule = s;
+                        log.debug("Square Location loaded, timezone {} with {} open periods", s.timeZone, s.periods.size());
+                        mine.complete(s);
+                    }
+                } catch (Exception e) {
+                    log.error("Unable to process Square Location", e);
+                    mine.completeExceptionally(e);
+                } finally {
+                    inFlight.set(null);
+                }
+            });
+        } catch (Exception e) {
+            inFlight.set(null);
+            mine.completeExceptionally(e);
+        }
+        return mine;
+    }
+
+    private static Map<LocalDate, SpecialHours> parseSpecialHours(String config) {
+        final var map = new TreeMap<LocalDate, SpecialHours>();
+        if (config == null || config.isBlank() || config.equalsIgnoreCase("NONE")) {
+            return map;
+        }
+        for (var entry : config.split(";")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            try {
+                final var parts = entry.trim().split("=", 2);
+                final var date = LocalDate.parse(parts[0].trim());
+                map.put(date, new SpecialHours(date, parts[1].trim()));
+            } catch (Exception e) {
+                log.error("Ignoring invalid special hours entry [{}]", entry, e);
+            }
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Parse HH:mm[:ss] to minute of day, allowing 24:00 to mean end of day.
+     */
+    private static int minuteOfDay(String time) {
+        final var parts = time.split(":");
+        return Integer.parseInt(parts[0]) * 60 + Integer.parseInt(parts[1]);
+    }
+
+    /**
+     * Mark [start,end) in the bit set, wrapping around past the end when the period runs overnight.
+     */
+    private static void mark(BitSet bits, int start, int end, int size) {
+        if (end > start) {
+            bits.set(start, Math.min(end, size));
+        } else if (end < start) {
+            bits.set(start, size);
+            bits.set(0, end);
+        }
+    }
+
+    /**
+     * Immutable snapshot of a loaded Location.
+     */
+    @Getter
+    public static class Schedule {
+
+        private final Location location;
+        private final ZoneId timeZone;
+        private final List<OpenPeriod> periods;
+        private final Instant loadedAt;
+        private final boolean active;
+        @Getter(lombok.AccessLevel.NONE)
+        private final BitSet openMinutes = new BitSet(7 * MINUTES_PER_DAY);
+
+        private Schedule(Location loc) {
+            this.location = loc;
+            this.timeZone = ZoneId.of(loc.getTimezone().get());
+            this.loadedAt = Instant.now();
+            this.active = loc.getStatus().map(st -> !LocationStatus.INACTIVE.equals(st)).orElse(true);
+
+            final var list = new ArrayList<OpenPeriod>();
+            loc.getBusinessHours().flatMap(bh -> bh.getPeriods()).orElse(List.of()).forEach(p -> {
+                final var op = new OpenPeriod(p);
+                list.add(op);
+                final int dayStart = (op.dow.getValue() - 1) * MINUTES_PER_DAY;
+                final int size = 7 * MINUTES_PER_DAY;
+                final int start = dayStart + minuteOfDay(p.getStartLocalTime().get());
+                final int end = (dayStart + minuteOfDay(p.getEndLocalTime().get())
+                        + (op.end.isBefore(op.start) ? MINUTES_PER_DAY : 0)) % size;
+                mark(openMinutes, start, end == 0 ? size : end, size);
+            });
+            this.periods = List.copyOf(list);
+        }
+
+        /**
+         * No hours defined, Square shows this as closed every day.
+         *
+         * @return
+         */
+        public boolean isTemporarilyClosed() {
+            return periods.isEmpty();
+        }
+    }
+
+    /**
+     * Weekly open period.
+     */
+    @Getter
+    public static class OpenPeriod {
+
+        private final DayOfWeek dow;
+        private final LocalTime start;
+        private final LocalTime end;
+
+        private OpenPeriod(BusinessHoursPeriod bhp) {
+            dow = switch (bhp.getDayOfWeek().get().getEnumValue()) {
+                case SUN ->
+                    SUNDAY;
+                case MON ->
+                    MONDAY;
+                case TUE ->
+                    TUESDAY;
+                case WED ->
+                    WEDNESDAY;
+                case THU ->
+                    THURSDAY;
+                case FRI ->
+                    FRIDAY;
+                case SAT ->
+                    SATURDAY;
+                case UNKNOWN ->
+                    throw new RuntimeException("Day of Week Cannot be matched " + bhp.getDayOfWeek().get());
+            };
+
+            final var e = bhp.getEndLocalTime().get();
+            start = LocalTime.parse(bhp.getStartLocalTime().get());
+            end = e.startsWith("24") ? LocalTime.MAX : LocalTime.parse(e);
+        }
+    }
+
+    /**
+     * Special hours for one date, either closed or a list of open ranges.
+     */
+    @Getter
+    public static class SpecialHours {
+
+        private final LocalDate date;
+        private final String hours;
+        @Getter(lombok.AccessLevel.NONE)
+        private final BitSet open = new BitSet(MINUTES_PER_DAY);
+
+        private SpecialHours(LocalDate date, String hours) {
+            this.date = date;
+            this.hours = hours.toUpperCase();
+            if (!this.hours.equals("CLOSED")) {
+                for (var range : hours.split(",")) {
+                    final var se = range.trim().split("-");
+                    mark(open, minuteOfDay(se[0].trim()), minuteOfDay(se[1].trim()), MINUTES_PER_DAY);
+                }
+            }
+        }
+
+        public boolean isClosed() {
+            return open.isEmpty();
+        }
+    }
+}
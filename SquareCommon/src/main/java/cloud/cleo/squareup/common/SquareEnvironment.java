@@ -0,0 +1,99 @@
+package cloud.cleo.squareup.common;
+
+import com.squareup.square.core.Environment;
+import com.squareup.square.core.RetryInterceptor;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Which Square API to talk to. SQUARE_ENVIRONMENT picks SANDBOX or PRODUCTION (default), SQUARE_BASE_URL overrides
+ * both and points the client somewhere else entirely, like the stand-ins in the LoadTest harness.
+ *
+ * All Square clients share one OkHttp client so there is a single connection pool to reset after a SnapStart restore,
+ * see reconnect().
+ *
+ * @author sjensen
+ */
+public final class SquareEnvironment {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(SquareEnvironment.class);
+
+    /**
+     * Same retries and call timeout the Square SDK sets up when it builds its own client.
+     */
+    private final static OkHttpClient httpClient = new OkHttpClient.Builder()
+            .addInterceptor(new RetryInterceptor(2))
+            .callTimeout(60, TimeUnit.SECONDS)
+            .build();
+
+    private SquareEnvironment() {
+    }
+
+    /**
+     * Environment for new Square clients based on SQUARE_BASE_URL and SQUARE_ENVIRONMENT.
+     *
+     * @return
+     */
+    public static Environment fromEnvironment() {
+        final var url = System.getenv("SQUARE_BASE_URL");
+        if (url != null && !url.isBlank()) {
+            return Environment.custom(url);
+        }
+        final var senv = System.getenv("SQUARE_ENVIRONMENT");
+        return switch (senv == null ? "" : senv) {
+            default ->
+                Environment.PRODUCTION;
+            case "SANDBOX", "sandbox" ->
+                Environment.SANDBOX;
+        };
+    }
+
+    /**
+     * HTTP client to hand to every Square client builder.
+     *
+     * @return
+     */
+    public static OkHttpClient httpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Drop every pooled connection and open a fresh one to the Square API. Call after a SnapStart restore, sockets
+     * from before the snapshot are dead and would only fail or hang the first real call. The hostname is resolved
+     * again as part of opening the new connection.
+     *
+     * @return completes once Square answered (with any status), or exceptionally if it couldn't be reached
+     */
+    public static CompletableFuture<Void> reconnect() {
+        httpClient.connectionPool().evictAll();
+
+        final var future = new CompletableFuture<Void>();
+        final var request = new Request.Builder()
+                .url(fromEnvironment().getUrl())
+                .head()
+                .build();
+        httpClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onResponse(Call call, Response response) {
+                response.close();
+                log.debug("Square connection open, HEAD returned {}", response.code());
+                future.complete(null);
+            }
+
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+}
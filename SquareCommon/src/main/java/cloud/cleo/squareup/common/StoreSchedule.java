@@ -0,0 +1,197 @@
+package cloud.cleo.squareup.common;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import lombok.Getter;
+
+/**
+ * Store open/closed status worked out ahead of time, as the instants the store opens and closes over the next several
+ * days. Weekly hours, special hours and daylight saving are all handled when the schedule is computed (from the
+ * LocationHoursService), so isOpen() is a binary search with no Square call and no time zone math.
+ *
+ * The text form is small enough for an SSM parameter, the time zone, when it was computed, how long it's good for and
+ * then one transition per line, for example:
+ *
+ * <pre>
+ * America/Chicago
+ * 2026-10-19T14:00:00Z
+ * P8D
+ * 2026-10-19T14:00:00Z OPEN
+ * 2026-10-19T22:00:00Z CLOSED
+ * </pre>
+ *
+ * The first transition is the status when the schedule was computed.
+ *
+ * @author sjensen
+ */
+public final class StoreSchedule {
+
+    private final static String OPEN = "OPEN";
+
+    private final static String CLOSED = "CLOSED";
+
+    @Getter
+    private final ZoneId timeZone;
+
+    @Getter
+    private final Instant computedAt;
+
+    /**
+     * Past this the schedule doesn't know.
+     */
+    @Getter
+    private final Instant validUntil;
+
+    /**
+     * Epoch seconds of each transition, ascending.
+     */
+    private final long[] at;
+
+    private final boolean[] open;
+
+    private StoreSchedule(ZoneId timeZone, Instant computedAt, Instant validUntil, long[] at, boolean[] open) {
+        this.timeZone = timeZone;
+        this.computedAt = computedAt;
+        this.validUntil = validUntil;
+        this.at = at;
+        this.open = open;
+    }
+
+    /**
+     * Work out the transitions from the store hours, a minute at a time in the store's time zone.
+     *
+     * @param hours loaded hours service
+     * @param from start, truncated to the minute
+     * @param horizon how far ahead
+     * @return schedule, null if the hours have never been loaded
+     */
+    public static StoreSchedule compute(LocationHoursService hours, Instant from, Duration horizon) {
+        final var schedule = hours.getSchedule();
+        if (schedule == null) {
+            return null;
+        }
+        final var zone = schedule.getTimeZone();
+        final var start = from.truncatedTo(ChronoUnit.MINUTES);
+        final var end = start.plus(horizon);
+
+        final var at = new ArrayList<Long>();
+        final var open = new ArrayList<Boolean>();
+        Boolean last = null;
+        for (var t = start; t.isBefore(end); t = t.plus(1, ChronoUnit.MINUTES)) {
+            // Wall clock time in the store's zone, so a DST change moves the instants, not the hours
+            final var isOpen = hours.isOpen(ZonedDateTime.ofInstant(t, zone));
+            if (last == null || isOpen != last) {
+                at.add(t.getEpochSecond());
+                open.add(isOpen);
+                last = isOpen;
+            }
+        }
+        return new StoreSchedule(zone, start, end, toLongs(at), toBooleans(open));
+    }
+
+    /**
+     * Read the text form.
+     *
+     * @param text
+     * @return schedule, null if text is null, blank or NONE
+     * @throws IllegalArgumentException if it can't be read
+     */
+    public static StoreSchedule parse(String text) {
+        if (text == null || text.isBlank() || text.trim().equalsIgnoreCase("NONE")) {
+            return null;
+        }
+        try {
+            final var lines = text.trim().split("\n");
+            final var zone = ZoneId.of(lines[0].trim());
+            final var computedAt = Instant.parse(lines[1].trim());
+            final var validUntil = computedAt.plus(Duration.parse(lines[2].trim()));
+            final var at = new long[lines.length - 3];
+            final var open = new boolean[lines.length - 3];
+            for (int i = 3; i < lines.length; i++) {
+                final var parts = lines[i].trim().split(" ");
+                at[i - 3] = Instant.parse(parts[0]).getEpochSecond();
+                open[i - 3] = OPEN.equals(parts[1]);
+            }
+            return new StoreSchedule(zone, computedAt, validUntil, at, open);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid store schedule", e);
+        }
+    }
+
+    /**
+     * Text form, see class doc.
+     *
+     * @return
+     */
+    public String format() {
+        final var sb = new StringBuilder(64 + at.length * 32);
+        sb.append(timeZone.getId()).append('\n')
+                .append(computedAt).append('\n')
+                .append(Duration.between(computedAt, validUntil));
+        for (int i = 0; i < at.length; i++) {
+            sb.append('\n').append(Instant.ofEpochSecond(at[i])).append(' ').append(open[i] ? OPEN : CLOSED);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Does the schedule say anything about this instant.
+     *
+     * @param when
+     * @return
+     */
+    public boolean covers(Instant when) {
+        return at.length > 0 && !when.isBefore(computedAt) && when.isBefore(validUntil);
+    }
+
+    /**
+     * Is the store open. Outside what the schedule covers the nearest known status is returned, check covers() first.
+     *
+     * @param when
+     * @return
+     */
+    public boolean isOpen(Instant when) {
+        if (at.length == 0) {
+            return false;
+        }
+        final var i = Arrays.binarySearch(at, when.getEpochSecond());
+        // Exact hit is a transition, otherwise the one before the insertion point is in effect
+        final var idx = i >= 0 ? i : Math.max(0, -i - 2);
+        return open[idx];
+    }
+
+    /**
+     * Upcoming transitions, for logging.
+     *
+     * @return
+     */
+    public List<String> transitions() {
+        final var list = new ArrayList<String>(at.length);
+        for (int i = 0; i < at.length; i++) {
+            list.add(ZonedDateTime.ofInstant(Instant.ofEpochSecond(at[i]), timeZone) + " " + (open[i] ? OPEN : CLOSED));
+        }
+        return list;
+    }
+
+    private static long[] toLongs(List<Long> list) {
+        final var arr = new long[list.size()];
+        for (int i = 0; i < arr.length; i++) {
+            arr[i] = list.get(i);
+        }
+        return arr;
+    }
+
+    private static boolean[] toBooleans(List<Boolean> list) {
+        final var arr = new boolean[list.size()];
+        for (int i = 0; i < arr.length; i++) {
+            arr[i] = list.get(i);
+        }
+        return arr;
+    }
+}
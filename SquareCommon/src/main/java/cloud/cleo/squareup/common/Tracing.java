@@ -0,0 +1,406 @@
+package cloud.cleo.squareup.common;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Very small tracer that exports OpenTelemetry spans. Spans ended during an invocation are held in memory and sent as
+ * one OTLP/HTTP JSON request when the handler calls flush(), to the collector at OTEL_EXPORTER_OTLP_ENDPOINT (in
+ * Lambda that's the collector extension on localhost:4318). With OTEL_TRACES_FILE set the same JSON is also appended to
+ * that file, one line per flush, for tests and local runs. With neither set nothing is recorded.
+ *
+ * Trace context moves between the Chime SMA and ChatGPT Lambdas as a W3C traceparent string (00-traceId-spanId-01),
+ * in the SMA transaction attributes and the Lex session attributes.
+ *
+ * https://opentelemetry.io/docs/specs/otlp/#otlphttp
+ *
+ * @author sjensen
+ */
+public final class Tracing {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(Tracing.class);
+
+    /**
+     * Session/transaction attribute name used to pass the trace context along.
+     */
+    public final static String TRACEPARENT = "traceparent";
+
+    private final static String ENDPOINT = tracesEndpoint();
+
+    private final static Path FILE = blank(System.getenv("OTEL_TRACES_FILE")) ? null : Path.of(System.getenv("OTEL_TRACES_FILE"));
+
+    private final static String SERVICE_NAME = serviceName();
+
+    /**
+     * The collector is local, if it can't take the spans quickly they are dropped rather than holding up the caller.
+     */
+    private final static Duration EXPORT_TIMEOUT = Duration.ofSeconds(1);
+
+    private final static boolean ENABLED = ENDPOINT != null || FILE != null;
+
+    private final static HexFormat HEX = HexFormat.of();
+
+    // Plain mapper, we only ever write simple trees
+    private final static ObjectMapper mapper = new ObjectMapper();
+
+    private final static HttpClient http = ENDPOINT == null ? null : HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(EXPORT_TIMEOUT)
+            .build();
+
+    private final static ConcurrentLinkedQueue<Span> finished = new ConcurrentLinkedQueue<>();
+
+    private Tracing() {
+    }
+
+    /**
+     * Is there anywhere to send spans, callers can skip passing context along when not.
+     *
+     * @return
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Now as nanoseconds since the epoch, the form spans carry and what to store to end a span in a later invocation.
+     *
+     * @return
+     */
+    public static long nowNanos() {
+        final var now = Instant.now();
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
+    /**
+     * Start a span now.
+     *
+     * @param name
+     * @param parent traceparent of the parent span, null or invalid to start a new trace
+     * @return
+     */
+    public static Span startSpan(String name, String parent) {
+        return startSpan(name, parent, nowNanos());
+    }
+
+    /**
+     * Start a span at an earlier time, like when the caller started waiting in a previous invocation.
+     *
+     * @param name
+     * @param parent traceparent of the parent span, null or invalid to start a new trace
+     * @param startNanos epoch nanos
+     * @return
+     */
+    public static Span startSpan(String name, String parent, long startNanos) {
+        final var ids = parse(parent);
+        return ids == null
+                ? new Span(name, randomHex(16), randomHex(8), null, startNanos)
+                : new Span(name, ids[0], randomHex(8), ids[1], startNanos);
+    }
+
+    /**
+     * Pick up a span started in an earlier invocation so it can be ended, it keeps the ids in its traceparent.
+     *
+     * @param name
+     * @param traceparent the span's own traceparent
+     * @param startNanos epoch nanos it started
+     * @return span, or a new root span if traceparent is null or invalid
+     */
+    public static Span resume(String name, String traceparent, long startNanos) {
+        final var ids = parse(traceparent);
+        return ids == null
+                ? new Span(name, randomHex(16), randomHex(8), null, startNanos)
+                : new Span(name, ids[0], ids[1], null, startNanos);
+    }
+
+    /**
+     * Throw away spans ended so far without exporting, used after SnapStart priming.
+     */
+    public static void discard() {
+        finished.clear();
+    }
+
+    /**
+     * Export everything ended since the last flush, waiting (at most EXPORT_TIMEOUT) for the collector. Call at the end
+     * of each invocation, never throws.
+     */
+    public static void flush() {
+        flush(EXPORT_TIMEOUT);
+    }
+
+    /**
+     * Export everything ended since the last flush, waiting at most maxWait for the collector, for handlers where the
+     * caller is waiting on the response (Chime SMA). Lambda freezes the sandbox (collector extension too) once the
+     * handler returns, so spans the collector hasn't taken by then go out when the container next thaws, or are lost if
+     * it never does. Never throws.
+     *
+     * @param maxWait
+     */
+    public static void flush(Duration maxWait) {
+        export(maxWait);
+    }
+
+    private static void export(Duration wait) {
+        if (!ENABLED || finished.isEmpty()) {
+            return;
+        }
+        final var spans = new ArrayList<Span>();
+        Span s;
+        while ((s = finished.poll()) != null) {
+            spans.add(s);
+        }
+
+        final String body;
+        try {
+            body = mapper.writeValueAsString(toOtlp(spans));
+        } catch (IOException e) {
+            log.error("Unable to serialize spans, dropped", e);
+            return;
+        }
+
+        if (FILE != null) {
+            try {
+                synchronized (Tracing.class) {
+                    Files.writeString(FILE, body + "\n", StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                }
+            } catch (IOException e) {
+                log.error("Unable to write spans to {}", FILE, e);
+            }
+        }
+
+        if (http != null) {
+            try {
+                final var send = http.sendAsync(HttpRequest.newBuilder(URI.create(ENDPOINT))
+                        .timeout(EXPORT_TIMEOUT)
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(body))
+                        .build(), HttpResponse.BodyHandlers.discarding())
+                        .whenComplete((res, e) -> {
+                            if (e != null) {
+                                log.warn("Unable to export {} spans: {}", spans.size(), e.toString());
+                            } else if (res.statusCode() / 100 != 2) {
+                                log.warn("Collector returned {}, {} spans dropped", res.statusCode(), spans.size());
+                            }
+                        });
+                send.get(wait.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                log.debug("Collector did not take {} spans within {}, they may be late or lost", spans.size(), wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                // Logged above
+            }
+        }
+    }
+
+    /**
+     * ExportTraceServiceRequest in the OTLP JSON encoding (ids as hex, 64 bit numbers as strings).
+     */
+    private static ObjectNode toOtlp(ArrayList<Span> spans) {
+        final var root = mapper.createObjectNode();
+        final var resourceSpans = root.putArray("resourceSpans").addObject();
+        attribute(resourceSpans.putObject("resource").putArray("attributes"), "service.name", SERVICE_NAME);
+        final var scopeSpans = resourceSpans.putArray("scopeSpans").addObject();
+        scopeSpans.putObject("scope").put("name", Tracing.class.getName());
+        final var list = scopeSpans.putArray("spans");
+        for (var span : spans) {
+            final var o = list.addObject()
+                    .put("traceId", span.traceId)
+                    .put("spanId", span.spanId);
+            if (span.parentSpanId != null) {
+                o.put("parentSpanId", span.parentSpanId);
+            }
+            o.put("name", span.name)
+                    .put("kind", 1) // SPAN_KIND_INTERNAL
+                    .put("startTimeUnixNano", Long.toString(span.startNanos))
+                    .put("endTimeUnixNano", Long.toString(span.endNanos));
+            final var attrs = o.putArray("attributes");
+            span.attributes.forEach((k, v) -> attribute(attrs, k, v));
+            if (span.error != null) {
+                o.putObject("status").put("code", 2).put("message", span.error); // STATUS_CODE_ERROR
+            }
+        }
+        return root;
+    }
+
+    private static void attribute(ArrayNode attrs, String key, Object value) {
+        final var valueNode = attrs.addObject().put("key", key).putObject("value");
+        switch (value) {
+            case Long l ->
+                valueNode.put("intValue", l.toString());
+            case Boolean b ->
+                valueNode.put("boolValue", b);
+            default ->
+                valueNode.put("stringValue", value.toString());
+        }
+    }
+
+    /**
+     * @return trace id and span id, or null if not a valid traceparent
+     */
+    private static String[] parse(String traceparent) {
+        if (traceparent == null) {
+            return null;
+        }
+        final var parts = traceparent.trim().split("-");
+        if (parts.length != 4 || parts[1].length() != 32 || parts[2].length() != 16
+                || !(parts[1] + parts[2]).chars().allMatch(HexFormat::isHexDigit) || parts[1].chars().allMatch(c -> c == '0')) {
+            return null;
+        }
+        return new String[]{parts[1], parts[2]};
+    }
+
+    private static String randomHex(int bytes) {
+        final var b = new byte[bytes];
+        ThreadLocalRandom.current().nextBytes(b);
+        return HEX.formatHex(b);
+    }
+
+    private static boolean blank(String s) {
+        return s == null || s.isBlank() || s.trim().equalsIgnoreCase("NONE");
+    }
+
+    private static String tracesEndpoint() {
+        final var traces = System.getenv("OTEL_EXPORTER_OTLP_TRACES_ENDPOINT");
+        if (!blank(traces)) {
+            return traces.trim();
+        }
+        final var base = System.getenv("OTEL_EXPORTER_OTLP_ENDPOINT");
+        if (!blank(base)) {
+            return base.trim().replaceAll("/+$", "") + "/v1/traces";
+        }
+        return null;
+    }
+
+    private static String serviceName() {
+        final var name = System.getenv("OTEL_SERVICE_NAME");
+        if (!blank(name)) {
+            return name;
+        }
+        final var function = System.getenv("AWS_LAMBDA_FUNCTION_NAME");
+        return function != null ? function : "local";
+    }
+
+    /**
+     * A unit of work, sent when ended and flushed. Not thread safe, each span belongs to the code that started it.
+     */
+    public final static class Span {
+
+        private final String name;
+        private final String traceId;
+        private final String spanId;
+        private final String parentSpanId;
+        private final long startNanos;
+        private final Map<String, Object> attributes = new LinkedHashMap<>();
+        private long endNanos;
+        private String error;
+        private boolean ended;
+
+        private Span(String name, String traceId, String spanId, String parentSpanId, long startNanos) {
+            this.name = name;
+            this.traceId = traceId;
+            this.spanId = spanId;
+            this.parentSpanId = parentSpanId;
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * Set an attribute, null values are ignored.
+         *
+         * @param key
+         * @param value
+         * @return this
+         */
+        public Span setAttribute(String key, String value) {
+            if (value != null) {
+                attributes.put(key, value);
+            }
+            return this;
+        }
+
+        public Span setAttribute(String key, long value) {
+            attributes.put(key, value);
+            return this;
+        }
+
+        public Span setAttribute(String key, boolean value) {
+            attributes.put(key, value);
+            return this;
+        }
+
+        /**
+         * Mark the span failed.
+         *
+         * @param t
+         * @return this
+         */
+        public Span setError(Throwable t) {
+            this.error = t.getClass().getSimpleName() + (t.getMessage() != null ? ": " + t.getMessage() : "");
+            return this;
+        }
+
+        /**
+         * W3C traceparent for this span, pass it along to make children elsewhere.
+         *
+         * @return
+         */
+        public String getTraceparent() {
+            return "00-" + traceId + "-" + spanId + "-01";
+        }
+
+        /**
+         * When the span started.
+         *
+         * @return epoch nanos
+         */
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        /**
+         * End now, only the first end counts.
+         */
+        public void end() {
+            end(nowNanos());
+        }
+
+        /**
+         * End at a given time, only the first end counts.
+         *
+         * @param endNanos epoch nanos
+         */
+        public void end(long endNanos) {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            this.endNanos = Math.max(endNanos, startNanos);
+            if (ENABLED) {
+                finished.add(this);
+            }
+        }
+    }
+}